@@ -32,22 +32,38 @@ package com.qualcomm.robotcore.eventloop;
 
 import com.qualcomm.robotcore.eventloop.opmode.OpModeManager;
 import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.hardware.DcMotor;
 import com.qualcomm.robotcore.hardware.Gamepad;
 import com.qualcomm.robotcore.robocol.Command;
+import com.qualcomm.robotcore.robocol.CommandRetransmitter;
+import com.qualcomm.robotcore.robocol.FragmentReassembler;
+import com.qualcomm.robotcore.robocol.Frame;
+import com.qualcomm.robotcore.robocol.FrameCoalescer;
 import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.robocol.LinkQualityEstimator;
+import com.qualcomm.robotcore.robocol.MsgDispatcher;
 import com.qualcomm.robotcore.robocol.PeerDiscovery;
 import com.qualcomm.robotcore.robocol.RobocolDatagram;
 import com.qualcomm.robotcore.robocol.RobocolDatagramSocket;
+import com.qualcomm.robotcore.robocol.RobocolParsable;
+import com.qualcomm.robotcore.robocol.SendQueue;
+import com.qualcomm.robotcore.robocol.SendScheduler;
 import com.qualcomm.robotcore.robocol.Telemetry;
+import com.qualcomm.robotcore.robocol.TelemetryAggregate;
+import com.qualcomm.robotcore.robocol.TelemetryDelta;
+import com.qualcomm.robotcore.robocol.TelemetryDeltaEncoder;
+import com.qualcomm.robotcore.robocol.TelemetryRateController;
+import com.qualcomm.robotcore.robocol.TelemetrySeries;
 import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.FixedRateScheduler;
 import com.qualcomm.robotcore.util.Range;
 import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.TimeSeriesStore;
 
 import java.net.InetAddress;
 import java.net.SocketException;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Event Loop Manager
@@ -59,75 +75,43 @@ public class EventLoopManager {
 
 	private static final boolean DEBUG = false;
 	private static final int HEARTBEAT_WAIT_DELAY = 250; // in milliseconds
+	private static final long EVENT_LOOP_STOP_TIMEOUT = 1000; // in milliseconds
 	private static final int MAX_COMMAND_CACHE = 8;
-	private static final int MAX_COMMAND_ATTEMPTS = 10;
-	private static final int SOCKET_SCHEDULED_SEND_INTERVAL = 100; // in milliseconds
+	private static final int MAX_TELEMETRY_VALUE_LENGTH = 256; // in bytes
+	private static final int MAX_STORE_KEYS_PER_TAG = 1024;
 
 	public final static String SYSTEM_TELEMETRY = "SYSTEM_TELEMETRY";
+	public final static String LINK_QUALITY_TELEMETRY = "LINK_QUALITY_TELEMETRY";
+	public final static String LOOP_TIMING_TELEMETRY = "LOOP_TIMING_TELEMETRY";
 	public static final String ROBOT_BATTERY_LEVEL_KEY = "Robot Battery Level";
 	public static final String RC_BATTERY_LEVEL_KEY = "RobotController Battery Level";
+	public static final String EVENT_LOOP_TIME_KEY = "Event Loop Time";
 	public static final String RESTART_OPMODE = "RESTART_OPMODE";
 	public static final String OPMODE_RESTART_FINISHED = "OPMODE_RESTART_FINISHED";
 
 	private static final EventLoop EMPTY_EVENT_LOOP = new EmptyEventLoop();
+	private static final Gamepad REST_GAMEPAD = new Gamepad();
 
 	// If no heartbeat is received in this amount of time, forcibly shut down the robot
 	private static final double SECONDS_UNTIL_FORCED_SHUTDOWN = 2.0;
 
+	// how often link quality is reported to the driver station
+	private static final double LINK_QUALITY_REPORT_INTERVAL = 1.0; // in seconds
+
+	// least time between soft loop overrun reports
+	private static final double SOFT_OVERRUN_REPORT_INTERVAL = 1.0; // in seconds
+
 	/**
 	 * Callback to monitor when event loop changes state
+	 * <p>
+	 * Called on whichever thread changed the state. That is usually the thread handling a driver
+	 * station message or the event loop thread, but EMERGENCY_STOP after a hard loop overrun is
+	 * reported on the loop watchdog thread, while the event loop thread may still be running.
 	 */
 	public interface EventLoopMonitor {
 		void onStateChange(State state);
 	}
 
-	/**
-	 * Responsible for sending scheduled items via the socket
-	 */
-	private class ScheduledSendRunnable implements Runnable {
-
-		private Set<Command> removeList = new HashSet<Command>();
-
-		@Override
-		public void run() {
-
-			while (!Thread.interrupted()) {
-				for (Command cmd : commandSendCache) {
-					if (cmd.getAttempts() > MAX_COMMAND_ATTEMPTS) {
-						// too many attempts
-						RobotLog.w("Failed to send command, too many attempts: " + cmd.toString());
-						removeList.add(cmd);
-					} else if (cmd.isAcknowledged()) {
-						// command ack'd, remove from list
-						RobotLog.v("Command " + cmd.getName() + " has been acknowledged by remote device");
-						removeList.add(cmd);
-					} else {
-						// no ack received, send
-						try {
-							RobotLog.v("Sending command: " + cmd.getName() + ", attempt " + cmd.getAttempts());
-							socket.send(new RobocolDatagram(cmd.toByteArray()));
-						} catch (RobotCoreException e) {
-							RobotLog.w("Failed to send command " + cmd.getName());
-							RobotLog.logStacktrace(e);
-						}
-					}
-				}
-
-				// update cache
-				commandSendCache.removeAll(removeList);
-				removeList.clear();
-
-				// sleep
-				try {
-					Thread.sleep(SOCKET_SCHEDULED_SEND_INTERVAL);
-				} catch (InterruptedException e) {
-					// if we are interrupted, shut down this thread
-					return;
-				}
-			}
-		}
-	}
-
 	/**
 	 * Responsible for pulling items off the socket and processing them
 	 */
@@ -163,26 +147,7 @@ public class EventLoopManager {
 						buildAndSendTelemetry(RESTART_OPMODE, lastActiveOpMode);
 					}
 
-					switch (msg.getMsgType()) {
-					case GAMEPAD:
-						processGamepadEvent(msg);
-						break;
-					case HEARTBEAT:
-						processHeartbeatEvent(msg);
-						break;
-					case PEER_DISCOVERY:
-						processPeerDiscoveryEvent(msg);
-						break;
-					case COMMAND:
-						processCommandEvent(msg);
-						break;
-					case EMPTY:
-						processEmptyEvent();
-						break;
-					default:
-						processUnknownEvent(msg);
-						break;
-					}
+					dispatch(msg);
 				} catch (RobotCoreException e) {
 					RobotLog.w("RobotCore event loop cannot process event: " + e);
 				}
@@ -202,6 +167,7 @@ public class EventLoopManager {
 		public void run() {
 
 			RobotLog.v("EventLoopRunnable has started");
+			LoopWatchdog watchdog = null;
 			try {
 				ElapsedTime loopTime = new ElapsedTime();
 				final double MIN_THROTTLE = 0.0010; // in seconds
@@ -209,19 +175,28 @@ public class EventLoopManager {
 
 				while (Thread.interrupted() == false) {
 
-					while (loopTime.time() < MIN_THROTTLE) {
-						// don't go faster than throttle allows
-						Thread.sleep(THROTTLE_RESOLUTION);
+					FixedRateScheduler scheduler = loopScheduler;
+					if (scheduler != null) {
+						// run at a fixed rate against absolute deadlines
+						scheduler.awaitNext();
+					} else {
+						while (loopTime.time() < MIN_THROTTLE) {
+							// don't go faster than throttle allows
+							Thread.sleep(THROTTLE_RESOLUTION);
+						}
 					}
 					loopTime.reset();
+					phaseTimer.startIteration();
 
 					if (RobotLog.hasGlobalErrorMsg()) {
 						buildAndSendTelemetry(SYSTEM_TELEMETRY, RobotLog.getGlobalErrorMsg());
 					}
+					phaseTimer.mark(LoopPhaseTimer.Phase.ERROR_CHECK);
 
 					// skip this iteration if we've never received a heartbeat
 					if (lastHeartbeatReceived.startTime() == 0.0) {
 						Thread.sleep(HEARTBEAT_WAIT_DELAY);
+						if (scheduler != null) scheduler.restart();
 						continue;
 					}
 
@@ -229,14 +204,29 @@ public class EventLoopManager {
 						// we haven't received a heartbeat from the driver station in a while
 						handleDroppedConnection();
 						Thread.sleep(1000); //from decompiled version
+						if (scheduler != null) scheduler.restart();
 					}
 
-					// wait for all sync'd devices to be ready
-					for (SyncdDevice device : syncdDevices) {
-						device.blockUntilReady();
+					if (linkQualityReportTime.time() > LINK_QUALITY_REPORT_INTERVAL) {
+						linkQualityReportTime.reset();
+						sendLinkQualityTelemetry();
+						sendLoopTimingTelemetry();
 					}
+					phaseTimer.mark(LoopPhaseTimer.Phase.HEARTBEAT_CHECK);
+
+					// watch the rest of the iteration for overruns
+					watchdog = loopWatchdog;
+					if (watchdog != null) watchdog.startIteration();
+
+					// wait for all sync'd devices to be ready, concurrently
+					syncdDevices.awaitReady();
+					phaseTimer.mark(LoopPhaseTimer.Phase.SYNC_WAIT);
+
+					// give the event loop a consistent view of the gamepads
+					acquireGamepads();
 
 					// run the event loop
+					long loopStart = System.nanoTime();
 					try {
 						eventLoop.loop();
 					} catch (Exception e) {
@@ -252,11 +242,20 @@ public class EventLoopManager {
 
 						throw new RobotCoreException("EventLoop Exception in loop()");
 					} finally {
+						phaseTimer.mark(LoopPhaseTimer.Phase.LOOP);
+
 						// notify sync'd devices that the event loop is complete
-						for (SyncdDevice device : syncdDevices) {
-							device.startBlockingWork();
-						}
+						syncdDevices.startBlockingWork();
 					}
+
+					TimeSeriesStore store = timeSeriesStore;
+					if (store != null) {
+						long loopEnd = System.nanoTime();
+						store.append(EVENT_LOOP_TIME_KEY, loopEnd, (loopEnd - loopStart) / 1e9);
+					}
+					phaseTimer.mark(LoopPhaseTimer.Phase.BLOCKING_WORK);
+					phaseTimer.endIteration();
+					if (watchdog != null) watchdog.endIteration();
 				}
 			} catch (InterruptedException e) {
 				// interrupted, cancel this loop
@@ -266,6 +265,8 @@ public class EventLoopManager {
 				changeState(State.EMERGENCY_STOP);
 
 				buildAndSendTelemetry(SYSTEM_TELEMETRY, RobotLog.getGlobalErrorMsg());
+			} finally {
+				if (watchdog != null) watchdog.endIteration();
 			}
 			RobotLog.v("EventLoopRunnable has exited");
 		}
@@ -273,6 +274,7 @@ public class EventLoopManager {
 
 	public void handleDroppedConnection(){
 		this.clientAddr = null; // assume this client is no longer connected
+		resetTelemetryDeltaEncoding();
 		OpModeManager opModeManager = eventLoop.getOpModeManager();
 		if (!this.isWaitingForRestart) {
 			this.lastActiveOpMode = opModeManager.getActiveOpModeName();
@@ -320,30 +322,89 @@ public class EventLoopManager {
 		DROPPED_CONNECTION
 	}
 
-	public State state = State.NOT_STARTED;
+	public volatile State state = State.NOT_STARTED;
 
-	private Thread eventLoopThread = new Thread();
-	private Thread scheduledSendThread = new Thread();
+	// read by the loop watchdog thread
+	private volatile Thread eventLoopThread = new Thread();
+	private volatile long lastSwitchLatency = 0;
 
 	private final RobocolDatagramSocket socket;
 	private boolean shutdownRecvLoop = false;
 	private boolean isWaitingForRestart = false;
 
 	private ElapsedTime lastHeartbeatReceived = new ElapsedTime();
+	private final ElapsedTime linkQualityReportTime = new ElapsedTime();
 	private String lastActiveOpMode = "";
 
-	private EventLoop eventLoop = EMPTY_EVENT_LOOP;
+	private volatile EventLoop eventLoop = EMPTY_EVENT_LOOP;
 
+	// gamepad state as seen by the event loop thread, copied in before every loop; op modes keep
+	// references to these, so they are never replaced
 	private final Gamepad gamepad[] = { new Gamepad(), new Gamepad() };
-	private Heartbeat heartbeat = new Heartbeat(Heartbeat.Token.EMPTY);
 
-	private EventLoopMonitor callback = null;
+	// written by the recv thread only
+	private final Gamepad gamepadDecoders[] = { new Gamepad(), new Gamepad() };
+	private final GamepadTripleBuffer gamepadBuffers[] = { new GamepadTripleBuffer(), new GamepadTripleBuffer() };
+	private final Heartbeat heartbeat = new Heartbeat(Heartbeat.Token.EMPTY); // decoded into in place
+
+	private volatile EventLoopMonitor callback = null;
 
-	private final Set<SyncdDevice> syncdDevices = new CopyOnWriteArraySet<SyncdDevice>();
+	private final SyncdDeviceBarrier syncdDevices = new SyncdDeviceBarrier();
 	private final Command[] commandRecvCache = new Command[MAX_COMMAND_CACHE];
 	private int commandRecvCachePosition = 0;
 
-	private final Set<Command> commandSendCache = new CopyOnWriteArraySet<Command>();
+	private final CommandRetransmitter commandRetransmitter = new CommandRetransmitter(new CommandRetransmitter.Transmitter() {
+		@Override
+		public void transmit(Command command) {
+			send(SendScheduler.Lane.COMMAND, command);
+		}
+	});
+
+	private final SendScheduler sendScheduler = new SendScheduler(new SendScheduler.Transmitter() {
+		@Override
+		public void transmit(RobocolParsable message) {
+			FrameCoalescer coalescer = EventLoopManager.this.coalescer;
+			if (coalescer != null) {
+				coalescer.send(message);
+			} else {
+				socket.send(message);
+			}
+		}
+	});
+
+	private final SendQueue sendQueue = new SendQueue(new SendQueue.Sender() {
+		@Override
+		public void send(Telemetry telemetry) {
+			encodeAndSendTelemetry(telemetry);
+		}
+
+		@Override
+		public void send(TelemetryAggregate aggregate) {
+			EventLoopManager.this.send(SendScheduler.Lane.TELEMETRY, aggregate); // never as a delta
+		}
+
+		@Override
+		public void send(TelemetrySeries series) {
+			EventLoopManager.this.send(SendScheduler.Lane.TELEMETRY, series);
+		}
+	});
+
+	private final MsgDispatcher dispatcher = new MsgDispatcher();
+	private final FragmentReassembler fragmentReassembler = new FragmentReassembler();
+
+	private final LinkQualityEstimator linkQuality = new LinkQualityEstimator();
+	private final TelemetryRateController telemetryRateController = new TelemetryRateController(linkQuality);
+	private final Telemetry linkQualityTelemetry = new Telemetry();
+	private final LoopPhaseTimer phaseTimer = new LoopPhaseTimer();
+	private final Telemetry loopTimingTelemetry = new Telemetry();
+
+	private volatile FrameCoalescer coalescer = null;
+	private volatile TelemetryDeltaEncoder telemetryDeltaEncoder = null;
+	private volatile TimeSeriesStore timeSeriesStore = null;
+	private final Map<String, Map<String, String>> storeKeys = new HashMap<String, Map<String, String>>();
+	private volatile FixedRateScheduler loopScheduler = null;
+	private volatile LoopWatchdog loopWatchdog = null;
+	private final ElapsedTime softOverrunReportTime = new ElapsedTime(0);
 
 	private InetAddress clientAddr;
 
@@ -354,13 +415,18 @@ public class EventLoopManager {
 	 */
 	public EventLoopManager(RobocolDatagramSocket socket) {
 		this.socket = socket;
+		this.commandRetransmitter.setLinkQualityEstimator(linkQuality);
+		this.sendQueue.setRateController(telemetryRateController);
+		this.linkQualityTelemetry.setTag(LINK_QUALITY_TELEMETRY);
+		this.loopTimingTelemetry.setTag(LOOP_TIMING_TELEMETRY);
+		this.registerHandlers();
 		this.changeState(State.NOT_STARTED);
 	}
 
 	/**
 	 * Set a monitor for this event loop
 	 *
-	 * @param monitor event loop monitor
+	 * @param monitor event loop monitor; see EventLoopMonitor for the threads it is called on
 	 */
 	public void setMonitor(EventLoopMonitor monitor) {
 		this.callback = monitor;
@@ -375,8 +441,10 @@ public class EventLoopManager {
 	public void start(EventLoop eventLoop) throws RobotCoreException {
 		this.shutdownRecvLoop = false;
 
-		this.scheduledSendThread = new Thread(new ScheduledSendRunnable());
-		this.scheduledSendThread.start();
+		this.sendScheduler.start();
+		this.sendQueue.start();
+		this.commandRetransmitter.start();
+		this.dispatcher.start();
 
 		new Thread(new RecvRunnable()).start();
 		this.setEventLoop(eventLoop);
@@ -386,19 +454,242 @@ public class EventLoopManager {
 	 * Shut down the event processor
 	 */
 	public void shutdown() {
+		this.sendQueue.stop();
+		RobotLog.v(String.format("Telemetry sender saved the event loop %.1f ms over %d messages, %d superseded",
+				sendQueue.getTimeSaved() / 1e6, sendQueue.getPostedCount(), sendQueue.getSupersededCount()));
+		this.commandRetransmitter.stop();
+		this.dispatcher.stop();
+
+		// drain the send path in order, so the last messages are on the wire before the socket closes
+		this.sendScheduler.stop();
+		this.disableFrameCoalescing();
 		this.socket.close();
-		this.scheduledSendThread.interrupt();
 		this.shutdownRecvLoop = true;
+		this.clearLoopBudget();
 		this.stopEventLoop();
 	}
 
+	/**
+	 * Coalesce outgoing heartbeat echoes, command acks, command retries and telemetry into
+	 * Frame datagrams
+	 * <p>
+	 * Only enable this if the driver station understands MsgType.FRAME.
+	 *
+	 * @param window coalescing window, in nanoseconds
+	 */
+	public void enableFrameCoalescing(long window) {
+		FrameCoalescer old = this.coalescer;
+		FrameCoalescer coalescer = new FrameCoalescer(socket, window);
+		coalescer.start();
+		this.coalescer = coalescer;
+		if (old != null) old.stop();
+	}
+
+	/**
+	 * Send every outgoing message in its own datagram
+	 */
+	public void disableFrameCoalescing() {
+		FrameCoalescer old = this.coalescer;
+		this.coalescer = null;
+		if (old != null) old.stop();
+	}
+
+	/**
+	 * Get the telemetry send queue, for the event loop time it saves
+	 *
+	 * @return send queue
+	 */
+	public SendQueue getSendQueue() {
+		return sendQueue;
+	}
+
+	/**
+	 * Send the telemetry of a tag as aggregates
+	 * <p>
+	 * Between sends, each numeric key of the tag keeps the count, min, max, mean and last value
+	 * of every telemetry sent by the op mode, and these go out in a single
+	 * MsgType.TELEMETRY_AGGREGATE message. Only enable this if the driver station understands
+	 * that message type.
+	 *
+	 * @param tag telemetry tag
+	 * @param aggregate true to aggregate, false to send only the latest telemetry
+	 */
+	public void setTelemetryAggregation(String tag, boolean aggregate) {
+		sendQueue.setAggregating(tag, aggregate);
+	}
+
+	/**
+	 * Get the telemetry rate controller, to set the rate range of a tag or read its current rate
+	 *
+	 * @return telemetry rate controller
+	 */
+	public TelemetryRateController getTelemetryRateController() {
+		return telemetryRateController;
+	}
+
+	/**
+	 * Get the send scheduler, to change its rate limits or read its per lane counters
+	 *
+	 * @return send scheduler
+	 */
+	public SendScheduler getSendScheduler() {
+		return sendScheduler;
+	}
+
+	/**
+	 * Get the frame coalescer, for its counters
+	 *
+	 * @return frame coalescer; or null if coalescing is disabled
+	 */
+	public FrameCoalescer getFrameCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * Send op mode telemetry as deltas against the previous message with the same tag
+	 * <p>
+	 * Key IDs are announced to the driver station with commands. Only enable this if the driver
+	 * station understands MsgType.TELEMETRY_DELTA. System telemetry is always sent in full.
+	 *
+	 * @param keyframeInterval number of messages per tag between full keyframes
+	 */
+	public void enableTelemetryDeltaEncoding(int keyframeInterval) {
+		this.telemetryDeltaEncoder = new TelemetryDeltaEncoder(new TelemetryDeltaEncoder.CommandSender() {
+			@Override
+			public void sendCommand(Command command) {
+				EventLoopManager.this.sendCommand(command);
+			}
+		}, keyframeInterval);
+	}
+
+	/**
+	 * Send every telemetry message in full
+	 */
+	public void disableTelemetryDeltaEncoding() {
+		this.telemetryDeltaEncoder = null;
+	}
+
+	/**
+	 * Get the loop phase timer, for the time spent in each phase of the event loop
+	 * <p>
+	 * Its histograms cover the time since the last loop timing report, sent with tag
+	 * LOOP_TIMING_TELEMETRY every second.
+	 *
+	 * @return loop phase timer
+	 */
+	public LoopPhaseTimer getLoopPhaseTimer() {
+		return phaseTimer;
+	}
+
+	/**
+	 * Run the event loop at a fixed rate
+	 * <p>
+	 * Each loop starts on an absolute deadline, so the period does not depend on how long loop()
+	 * takes or on sleep granularity. Takes effect on the next loop.
+	 *
+	 * @param frequency target loop rate, in Hz
+	 * @param policy what to do when a loop runs past the next deadline
+	 */
+	public void setLoopRate(double frequency, FixedRateScheduler.CatchUp policy) {
+		this.loopScheduler = new FixedRateScheduler(frequency, policy);
+	}
+
+	/**
+	 * Run the event loop as fast as the minimum throttle allows
+	 */
+	public void clearLoopRate() {
+		this.loopScheduler = null;
+	}
+
+	/**
+	 * Get the fixed rate scheduler, for the achieved rate, jitter and overruns
+	 *
+	 * @return fixed rate scheduler; or null if the loop rate is not fixed
+	 */
+	public FixedRateScheduler getLoopScheduler() {
+		return loopScheduler;
+	}
+
+	/**
+	 * Watch each event loop for overruns
+	 * <p>
+	 * A loop still running past the soft budget is counted, and the stack of the event loop thread
+	 * is logged and reported as system telemetry, at most once a second. A loop still running past
+	 * the hard budget sets the power of every motor in the hardware map to zero, and moves the
+	 * event loop to EMERGENCY_STOP; the event loop thread is interrupted, so it exits if the loop
+	 * ever returns. The wait for the next loop and for the first heartbeat is not counted.
+	 *
+	 * @param softBudget loop time past which the stack is sampled, in nanoseconds
+	 * @param hardBudget loop time past which the robot is stopped, in nanoseconds; or
+	 *                   LoopWatchdog.NO_HARD_BUDGET
+	 */
+	public void setLoopBudget(long softBudget, long hardBudget) {
+		LoopWatchdog watchdog = new LoopWatchdog(softBudget, hardBudget, new LoopWatchdog.Listener() {
+			@Override
+			public void onSoftOverrun(long elapsed, StackTraceElement[] stack) {
+				handleSoftOverrun(elapsed, stack);
+			}
+
+			@Override
+			public void onHardOverrun(long elapsed, StackTraceElement[] stack) {
+				handleHardOverrun(elapsed, stack);
+			}
+		});
+		watchdog.start();
+
+		LoopWatchdog old = this.loopWatchdog;
+		this.loopWatchdog = watchdog;
+		if (old != null) old.stop();
+	}
+
+	/**
+	 * Stop watching event loops for overruns
+	 */
+	public void clearLoopBudget() {
+		LoopWatchdog old = this.loopWatchdog;
+		this.loopWatchdog = null;
+		if (old != null) old.stop();
+	}
+
+	/**
+	 * Get the loop watchdog, for its overrun counts and last stack sample
+	 *
+	 * @return loop watchdog; or null if loops are not watched
+	 */
+	public LoopWatchdog getLoopWatchdog() {
+		return loopWatchdog;
+	}
+
+	/**
+	 * Keep every numeric telemetry value and series sample the op mode sends, and the time each
+	 * event loop takes, in a time series store on the robot
+	 * <p>
+	 * Values are stored under their key; keys of telemetry with a tag other than the default are
+	 * prefixed with the tag and a slash. The store is not closed when it is replaced or when the
+	 * event loop shuts down.
+	 *
+	 * @param store time series store; or null to stop storing
+	 */
+	public void setTimeSeriesStore(TimeSeriesStore store) {
+		this.timeSeriesStore = store;
+	}
+
+	/**
+	 * Get the time series store
+	 *
+	 * @return time series store; or null if not storing
+	 */
+	public TimeSeriesStore getTimeSeriesStore() {
+		return timeSeriesStore;
+	}
+
 	/**
 	 * Register a sync'd device
 	 * 
 	 * @param device sync'd device
 	 */
 	public void registerSyncdDevice(SyncdDevice device) {
-		this.syncdDevices.add(device);
+		this.syncdDevices.register(device);
 	}
 
 	/**
@@ -407,7 +698,29 @@ public class EventLoopManager {
 	 * @param device sync'd device
 	 */
 	public void unregisterSyncdDevice(SyncdDevice device) {
-		this.syncdDevices.remove(device);
+		this.syncdDevices.unregister(device);
+	}
+
+	/**
+	 * Limit how long each event loop waits for sync'd devices to be ready
+	 * <p>
+	 * Devices are waited for concurrently. A device not ready in time is logged, and either
+	 * skipped for that loop or, with MissPolicy.EMERGENCY_STOP, stops the event loop.
+	 *
+	 * @param deadline longest wait, in nanoseconds; SyncdDeviceBarrier.NO_DEADLINE to wait for ever
+	 * @param policy what to do with a device that is not ready in time
+	 */
+	public void setSyncdDeviceDeadline(long deadline, SyncdDeviceBarrier.MissPolicy policy) {
+		this.syncdDevices.setDeadline(deadline, policy);
+	}
+
+	/**
+	 * Get the sync'd device barrier, for the readiness latency and misses of each device
+	 *
+	 * @return sync'd device barrier
+	 */
+	public SyncdDeviceBarrier getSyncdDeviceBarrier() {
+		return syncdDevices;
 	}
 
 	/**
@@ -422,14 +735,31 @@ public class EventLoopManager {
 			RobotLog.d("Event loop cannot be null, using empty event loop");
 		}
 
+		long switchStart = System.nanoTime();
+
 		// cancel the old event loop
 		this.stopEventLoop();
+		long stopped = System.nanoTime();
 
 		// assign the new event loop
 		this.eventLoop = eventLoop;
 
 		// start the new event loop
 		this.startEventLoop();
+
+		lastSwitchLatency = System.nanoTime() - switchStart;
+		RobotLog.v(String.format("Event loop switch took %.1f ms, %.1f ms of it stopping the old loop",
+				lastSwitchLatency / 1e6, (stopped - switchStart) / 1e6));
+	}
+
+	/**
+	 * Time the last setEventLoop() took: stopping and tearing down the old event loop, and
+	 * initializing and starting the new one
+	 *
+	 * @return switch latency, in nanoseconds; 0 if the event loop was never set
+	 */
+	public long getLastSwitchLatency() {
+		return lastSwitchLatency;
 	}
 
 	/**
@@ -467,7 +797,8 @@ public class EventLoopManager {
 	/**
 	 * Get the gamepads
 	 * <p>
-	 * Array index will match the user number
+	 * Array index will match the user number. Call this from the event loop; the state is a
+	 * snapshot taken before each call to loop(), and does not change while loop() runs.
 	 * 
 	 * @return gamepad
 	 */
@@ -477,6 +808,8 @@ public class EventLoopManager {
 
 	/**
 	 * Get the current heartbeat state
+	 * <p>
+	 * The same object is updated in place as each heartbeat arrives.
 	 *
 	 * @return heartbeat
 	 */
@@ -484,6 +817,29 @@ public class EventLoopManager {
 		return heartbeat;
 	}
 
+	/**
+	 * Get the message dispatcher, to register handlers for other message types
+	 * <p>
+	 * Registering a built in message type replaces the built in handling.
+	 *
+	 * @return message dispatcher
+	 */
+	public MsgDispatcher getMsgDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Get the link quality estimates
+	 * <p>
+	 * Loss, reordering and jitter come from the driver station heartbeats; round trip times come
+	 * from acknowledged commands, since heartbeats are only timed by the driver station.
+	 *
+	 * @return link quality estimator
+	 */
+	public LinkQualityEstimator getLinkQuality() {
+		return linkQuality;
+	}
+
 	private void clearWaitForRestart() {
 		isWaitingForRestart = false;
 	}
@@ -495,24 +851,112 @@ public class EventLoopManager {
 	/**
 	 * Send telemetry data
 	 * <p>
-	 * Send the telemetry data, and then clear the sent data
+	 * Send the telemetry data, and then clear the sent data. The data is handed to the telemetry
+	 * sender thread to be encoded and sent; if telemetry with the same tag is sent again before
+	 * that happens, only the newer data is sent. How often each tag is sent adapts to the link,
+	 * see getTelemetryRateController().
 	 * 
 	 * @param telemetry telemetry data
 	 */
 	public void sendTelemetryData(Telemetry telemetry) {
-		try {
-			socket.send(new RobocolDatagram(telemetry.toByteArray()));
-		} catch (RobotCoreException e) {
-			RobotLog.w("Failed to send telemetry data");
-			RobotLog.logStacktrace(e);
-		}
+		TimeSeriesStore store = this.timeSeriesStore;
+		if (store != null) storeTelemetry(store, telemetry);
+
+		sendQueue.post(telemetry);
 
 		// clear the stale telemetry data
 		telemetry.clearData();
 	}
 
+	private void storeTelemetry(TimeSeriesStore store, Telemetry telemetry) {
+		long now = System.nanoTime();
+
+		synchronized (telemetry) {
+			synchronized (storeKeys) {
+				String tag = telemetry.getTag();
+				Map<String, String> prefixed = null;
+				if (!Telemetry.DEFAULT_TAG.equals(tag)) {
+					prefixed = storeKeys.get(tag);
+					if (prefixed == null) {
+						prefixed = new HashMap<String, String>();
+						storeKeys.put(tag, prefixed);
+					}
+				}
+
+				for (int i = 0; i < telemetry.getNumberCount(); i++) {
+					store.append(storeKey(prefixed, tag, telemetry.getNumberKey(i)), now, telemetry.getNumberValue(i));
+				}
+
+				TelemetrySeries series = telemetry.getSeries();
+				if (series == null) return;
+				for (int k = 0; k < series.getKeyCount(); k++) {
+					String key = storeKey(prefixed, tag, series.getKey(k));
+					for (int j = 0; j < series.getSampleCount(k); j++) {
+						store.append(key, series.getTime(k, j), series.getValue(k, j));
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Key a value is stored under: the telemetry key, prefixed with the tag and a slash unless the
+	 * tag is the default. Prefixed keys are kept per tag, so storing builds no strings.
+	 */
+	private static String storeKey(Map<String, String> prefixed, String tag, String key) {
+		if (prefixed == null) return key;
+
+		String stored = prefixed.get(key);
+		if (stored == null) {
+			if (prefixed.size() >= MAX_STORE_KEYS_PER_TAG) prefixed.clear(); // keys that keep changing
+			stored = tag + "/" + key;
+			prefixed.put(key, stored);
+		}
+		return stored;
+	}
+
+	private void encodeAndSendTelemetry(Telemetry telemetry) {
+		TelemetryDeltaEncoder encoder = this.telemetryDeltaEncoder;
+		if (encoder != null) {
+			TelemetryDelta delta = encoder.encode(telemetry);
+			if (delta.hasChanges()) send(SendScheduler.Lane.TELEMETRY, delta);
+		} else {
+			send(SendScheduler.Lane.TELEMETRY, telemetry);
+		}
+	}
+
+	/**
+	 * Send a command
+	 * <p>
+	 * The command is sent immediately, and resent until the remote device acknowledges it.
+	 *
+	 * @param command command to send
+	 */
 	public void sendCommand(Command command) {
-		commandSendCache.add(command);
+		sendCommand(command, null);
+	}
+
+	/**
+	 * Send a command, and be notified when it completes
+	 *
+	 * @param command command to send
+	 * @param callback notified once the command is acknowledged or has failed; may be null
+	 */
+	public void sendCommand(Command command, CommandRetransmitter.CompletionCallback callback) {
+		commandRetransmitter.send(command, callback);
+	}
+
+	/**
+	 * Get the command retransmitter, for its round trip time and timeout estimates
+	 *
+	 * @return command retransmitter
+	 */
+	public CommandRetransmitter getCommandRetransmitter() {
+		return commandRetransmitter;
+	}
+
+	private void send(SendScheduler.Lane lane, RobocolParsable message) {
+		sendScheduler.send(lane, message);
 	}
 
 	private void startEventLoop() throws RobotCoreException {
@@ -522,9 +966,7 @@ public class EventLoopManager {
 			this.eventLoop.init(this);
 
 			// notify sync'd devices that the event loop init is complete
-			for (SyncdDevice device : this.syncdDevices) {
-				device.startBlockingWork();
-			}
+			this.syncdDevices.startBlockingWork();
 		} catch (Exception e) {
 			RobotLog.w("Caught exception during looper init: " + e);
 			RobotLog.logStacktrace(e);
@@ -551,12 +993,16 @@ public class EventLoopManager {
 		// cancel the old event loop
 		eventLoopThread.interrupt();
 
-		// TODO: add an 'event loop finish' notification (Thunderbots)		
-		// give time for the event loop to finish
-		try {
-			Thread.sleep(200);
-		} catch (InterruptedException e) {
-			// if we receive an interrupt we will rush the event loop teardown
+		// wait for the event loop to finish its current iteration, unless this is the event loop
+		if (Thread.currentThread() != eventLoopThread) {
+			try {
+				eventLoopThread.join(EVENT_LOOP_STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				// if we receive an interrupt we will rush the event loop teardown
+			}
+			if (eventLoopThread.isAlive()) {
+				RobotLog.w(String.format("Event loop did not stop within %d ms; tearing it down anyway", EVENT_LOOP_STOP_TIMEOUT));
+			}
 		}
 
 		// inform old event loop that it's been shut down
@@ -581,8 +1027,9 @@ public class EventLoopManager {
 	private void changeState(State state) {
 		this.state = state;
 		RobotLog.v("EventLoopManager state is " + state);
+		EventLoopMonitor callback = this.callback;
 		if (callback != null)
-			this.callback.onStateChange(state);
+			callback.onStateChange(state);
 	}
 
 	public void noLongerWaitForRestart(String name) {
@@ -595,31 +1042,98 @@ public class EventLoopManager {
 	/*
 	 * Event processing methods
 	 */
+	private void dispatch(RobocolDatagram msg) throws RobotCoreException {
+		if (!dispatcher.dispatch(msg)) processUnknownEvent(msg);
+	}
+
+	/*
+	 * Heartbeats, gamepads and peer discovery are quick and time critical, so they are handled on
+	 * the recv thread. Commands may run user code of any duration, so they get a lane of their own.
+	 */
+	private void registerHandlers() {
+		dispatcher.registerInline(RobocolParsable.MsgType.GAMEPAD, new MsgDispatcher.Handler() {
+			@Override
+			public void handle(RobocolDatagram msg) throws RobotCoreException {
+				processGamepadEvent(msg);
+			}
+		});
+		dispatcher.registerInline(RobocolParsable.MsgType.HEARTBEAT, new MsgDispatcher.Handler() {
+			@Override
+			public void handle(RobocolDatagram msg) throws RobotCoreException {
+				processHeartbeatEvent(msg);
+			}
+		});
+		dispatcher.registerInline(RobocolParsable.MsgType.PEER_DISCOVERY, new MsgDispatcher.Handler() {
+			@Override
+			public void handle(RobocolDatagram msg) throws RobotCoreException {
+				processPeerDiscoveryEvent(msg);
+			}
+		});
+		dispatcher.registerOnLane(RobocolParsable.MsgType.COMMAND, new MsgDispatcher.Handler() {
+			@Override
+			public void handle(RobocolDatagram msg) throws RobotCoreException {
+				processCommandEvent(msg);
+			}
+		});
+		dispatcher.registerInline(RobocolParsable.MsgType.FRAME, new MsgDispatcher.Handler() {
+			@Override
+			public void handle(RobocolDatagram msg) throws RobotCoreException {
+				processFrameEvent(msg);
+			}
+		});
+		dispatcher.registerInline(RobocolParsable.MsgType.EMPTY, new MsgDispatcher.Handler() {
+			@Override
+			public void handle(RobocolDatagram msg) {
+				processEmptyEvent();
+			}
+		});
+		dispatcher.registerInline(RobocolParsable.MsgType.FRAGMENT, new MsgDispatcher.Handler() {
+			@Override
+			public void handle(RobocolDatagram msg) throws RobotCoreException {
+				processFragmentEvent(msg);
+			}
+		});
+	}
+
 	private void processGamepadEvent(RobocolDatagram msg) throws RobotCoreException {
 		if (DEBUG)
 			RobotLog.v("processing gamepad event");
 
-		Gamepad incomingGamepad = new Gamepad();
-		incomingGamepad.fromByteArray(msg.getData());
-
-		if (incomingGamepad.user < 1 || incomingGamepad.user > 2) {
+		byte user = Gamepad.peekUser(msg.getData());
+		if (user < 1 || user > 2) {
 			// this gamepad user is invalid, we cannot use
 			RobotLog.d("Gamepad with user %d received. Only users 1 and 2 are valid");
 			return;
 		}
 
-		int position = incomingGamepad.user - 1;
+		int position = user - 1;
 
-		// swap out the old gamepad state for the current gamepad state
-		gamepad[position] = incomingGamepad;
+		// the decoder holds the last keyframe, which compact packets may be relative to
+		Gamepad decoder = gamepadDecoders[position];
+		decoder.fromByteArray(msg.getData());
+		publishGamepad(position);
 
-		if (gamepad[0].id == gamepad[1].id) {
+		int other = 1 - position;
+		if (gamepadDecoders[position].id == gamepadDecoders[other].id) {
 			// a gamepad was moved, reset the old gamepad
 			RobotLog.v("Gamepad moved position, removing stale gamepad");
-			if (position == 0)
-				gamepad[1] = new Gamepad();
-			if (position == 1)
-				gamepad[0] = new Gamepad();
+			gamepadDecoders[other].copy(REST_GAMEPAD);
+			publishGamepad(other);
+		}
+	}
+
+	private void publishGamepad(int position) {
+		GamepadTripleBuffer buffer = gamepadBuffers[position];
+		buffer.getBackBuffer().copy(gamepadDecoders[position]);
+		buffer.publish();
+	}
+
+	/*
+	 * Take the latest gamepad state; called by the event loop thread before each loop
+	 */
+	private void acquireGamepads() {
+		for (int i = 0; i < gamepad.length; i++) {
+			gamepad[i].copy(gamepadBuffers[i].acquire());
 		}
 	}
 
@@ -627,12 +1141,23 @@ public class EventLoopManager {
 		if (DEBUG)
 			RobotLog.v("processing heartbeat event");
 
-		this.socket.send(msg);
-		Heartbeat currentHeartbeat = new Heartbeat(Heartbeat.Token.EMPTY);
-		currentHeartbeat.fromByteArray(msg.getData());
+		long arrival = System.nanoTime();
+		heartbeat.fromByteArray(msg.getData());
+		send(SendScheduler.Lane.CONTROL, heartbeat);
+		linkQuality.onHeartbeatReceived(heartbeat, arrival);
 
 		this.lastHeartbeatReceived.reset();
-		this.heartbeat = currentHeartbeat;
+	}
+
+	private void processFragmentEvent(RobocolDatagram msg) throws RobotCoreException {
+		RobocolDatagram complete = fragmentReassembler.add(msg);
+		if (complete == null) return;
+
+		if (complete.getMsgType() == RobocolParsable.MsgType.FRAGMENT) {
+			RobotLog.w("Dropping reassembled message that is itself a fragment");
+			return;
+		}
+		dispatch(complete);
 	}
 
 	private void processPeerDiscoveryEvent(RobocolDatagram msg) throws RobotCoreException {
@@ -648,6 +1173,10 @@ public class EventLoopManager {
 
 		// update remoteAddr with latest address
 		this.clientAddr = msg.getAddress();
+		resetTelemetryDeltaEncoding();
+		linkQuality.reset();
+		telemetryRateController.reset();
+		fragmentReassembler.reset();
 		RobotLog.i("new remote peer discovered: " + clientAddr.getHostAddress());
 
 		try {
@@ -658,10 +1187,11 @@ public class EventLoopManager {
 
 		final PeerDiscovery message = new PeerDiscovery(PeerDiscovery.PeerType.PEER);
 		RobotLog.v("Sending peer discovery packet");
-		RobocolDatagram packet = new RobocolDatagram(message);
-		if (socket.getInetAddress() == null)
-			packet.setAddress(clientAddr);
-		socket.send(packet);
+		if (socket.getInetAddress() == null) {
+			socket.send(message, clientAddr);
+		} else {
+			socket.send(message);
+		}
 	}
 
 	private void processCommandEvent(RobocolDatagram msg) throws RobotCoreException {
@@ -672,14 +1202,14 @@ public class EventLoopManager {
 
 		// is this a command ack?
 		if (command.isAcknowledged()) {
-			// yes, remove from send cache and stop processing
-			commandSendCache.remove(command);
+			// yes, complete the pending command and stop processing
+			commandRetransmitter.acknowledge(command);
 			return;
 		}
 
 		// acknowledge this command
 		command.acknowledge();
-		socket.send(new RobocolDatagram(command));
+		send(SendScheduler.Lane.CONTROL, command);
 
 		// check if it's in the cache
 		for (Command c : commandRecvCache) {
@@ -693,6 +1223,13 @@ public class EventLoopManager {
 		// cache the command
 		commandRecvCache[(commandRecvCachePosition++) % commandRecvCache.length] = command;
 
+		if (command.getName().equals(Gamepad.CMD_NEGOTIATE_VERSION)) {
+			byte version = Gamepad.negotiateRobocolVersion(command.getExtra());
+			RobotLog.v("Driver station offered gamepad version " + command.getExtra() + ", using " + version);
+			sendCommand(new Command(Gamepad.CMD_NEGOTIATE_VERSION_RESP, Byte.toString(version)));
+			return;
+		}
+
 		// process the command
 		try {
 			eventLoop.processCommand(command);
@@ -703,6 +1240,25 @@ public class EventLoopManager {
 		}
 	}
 
+	private void processFrameEvent(RobocolDatagram msg) throws RobotCoreException {
+		if (DEBUG)
+			RobotLog.v("processing frame event");
+
+		for (RobocolDatagram contained : Frame.unpack(msg)) {
+			if (contained.getMsgType() == RobocolParsable.MsgType.FRAME) {
+				RobotLog.w("Dropping nested frame");
+				continue;
+			}
+
+			try {
+				dispatch(contained);
+			} catch (RobotCoreException e) {
+				// don't let one bad message drop the rest of the frame
+				RobotLog.w("RobotCore event loop cannot process framed event: " + e);
+			}
+		}
+	}
+
 	private void processEmptyEvent() {
 		// take no action
 	}
@@ -715,7 +1271,100 @@ public class EventLoopManager {
 		Telemetry telemetry = new Telemetry();
 		telemetry.setTag(tag);
 		telemetry.addData(tag, msg);
-		sendTelemetryData(telemetry);
+		send(SendScheduler.Lane.SYSTEM, telemetry); // always in full, never as a delta
+	}
+
+	private void sendLinkQualityTelemetry() {
+		linkQuality.addTo(linkQualityTelemetry);
+		telemetryRateController.addTo(linkQualityTelemetry);
+		send(SendScheduler.Lane.TELEMETRY, linkQualityTelemetry); // always in full, never as a delta
+		linkQualityTelemetry.clearData();
+	}
+
+	/*
+	 * Report the p50, p99 and max time of each event loop phase over the last interval, and the
+	 * achieved rate and jitter if the loop rate is fixed; called on the event loop thread
+	 */
+	private void sendLoopTimingTelemetry() {
+		phaseTimer.addTo(loopTimingTelemetry);
+		phaseTimer.reset();
+
+		FixedRateScheduler scheduler = loopScheduler;
+		if (scheduler != null) {
+			loopTimingTelemetry.addData("loop rate", scheduler.getAchievedRate());
+			loopTimingTelemetry.addData("jitter p99", scheduler.getJitterPercentile(99) / 1e3);
+			loopTimingTelemetry.addData("overruns", scheduler.getOverrunCount());
+		}
+
+		LoopWatchdog watchdog = loopWatchdog;
+		if (watchdog != null) {
+			loopTimingTelemetry.addData("soft overruns", watchdog.getSoftOverrunCount());
+			loopTimingTelemetry.addData("hard overruns", watchdog.getHardOverrunCount());
+		}
+
+		if (loopTimingTelemetry.hasData()) send(SendScheduler.Lane.TELEMETRY, loopTimingTelemetry);
+		loopTimingTelemetry.clearData();
+	}
+
+	/*
+	 * Overrun reactions, called on the loop watchdog thread
+	 */
+	private void handleSoftOverrun(long elapsed, StackTraceElement[] stack) {
+		if (softOverrunReportTime.time() < SOFT_OVERRUN_REPORT_INTERVAL) return;
+		softOverrunReportTime.reset();
+
+		LoopWatchdog watchdog = loopWatchdog;
+		String msg = String.format("Event loop overrun #%d, %.0f ms in: ",
+				watchdog == null ? 0 : watchdog.getSoftOverrunCount(), elapsed / 1e6);
+		msg += LoopWatchdog.summarize(stack, MAX_TELEMETRY_VALUE_LENGTH - msg.length());
+
+		RobotLog.w(msg);
+		buildAndSendTelemetry(SYSTEM_TELEMETRY, msg);
+	}
+
+	private void handleHardOverrun(long elapsed, StackTraceElement[] stack) {
+		// the overrun may be of a loop that has since been replaced; leave the new one alone
+		Thread thread = eventLoopThread;
+		EventLoop loop = eventLoop;
+		LoopWatchdog watchdog = loopWatchdog;
+		if (watchdog == null || watchdog.getLoopThread() != thread) {
+			RobotLog.v("Ignoring hard overrun of a replaced event loop");
+			return;
+		}
+
+		String msg = String.format("Event loop stuck for %.0f ms, robot stopped: ", elapsed / 1e6);
+		msg += LoopWatchdog.summarize(stack, MAX_TELEMETRY_VALUE_LENGTH - msg.length());
+		RobotLog.e(msg);
+
+		stopMotors(loop);
+		RobotLog.setGlobalErrorMsg(msg);
+		changeState(State.EMERGENCY_STOP);
+
+		// if the loop ever returns, let it go no further
+		thread.interrupt();
+
+		buildAndSendTelemetry(SYSTEM_TELEMETRY, RobotLog.getGlobalErrorMsg());
+	}
+
+	/*
+	 * Set the power of every motor in the hardware map of an event loop to zero
+	 */
+	private void stopMotors(EventLoop loop) {
+		OpModeManager opModeManager = loop.getOpModeManager();
+		if (opModeManager == null || opModeManager.getHardwareMap() == null) return;
+
+		for (DcMotor motor : opModeManager.getHardwareMap().dcMotor) {
+			try {
+				motor.setPower(0.0);
+			} catch (Exception e) {
+				RobotLog.w("Unable to stop motor " + motor.getPortNumber() + ": " + e);
+			}
+		}
+	}
+
+	private void resetTelemetryDeltaEncoding() {
+		TelemetryDeltaEncoder encoder = this.telemetryDeltaEncoder;
+		if (encoder != null) encoder.reset();
 	}
 
 }
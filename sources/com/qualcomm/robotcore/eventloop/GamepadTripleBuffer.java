@@ -0,0 +1,59 @@
+package com.qualcomm.robotcore.eventloop;
+
+import com.qualcomm.robotcore.hardware.Gamepad;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands gamepad state from one writer thread to one reader thread without locks or allocation
+ * <p>
+ * Three preallocated gamepads rotate between the writer (back), the most recently published
+ * state (middle) and the reader (front). The writer fills the back buffer and publishes it by
+ * swapping it with the middle; the reader acquires by swapping the front with the middle if
+ * anything new was published. The swap is a single atomic exchange, so the reader always sees a
+ * complete state, and a gamepad it has acquired is not written to until it acquires again.
+ */
+public class GamepadTripleBuffer {
+
+	private static final int INDEX_MASK = 0x3;
+	private static final int FRESH = 0x4; // middle holds state the reader hasn't seen
+
+	private final Gamepad[] buffers = { new Gamepad(), new Gamepad(), new Gamepad() };
+
+	// index of the middle buffer, plus the FRESH flag
+	private final AtomicInteger middle = new AtomicInteger(1);
+
+	private int back = 0;  // only touched by the writer
+	private int front = 2; // only touched by the reader
+
+	/**
+	 * Get the buffer to write the next state into; writer only
+	 *
+	 * @return back buffer
+	 */
+	public Gamepad getBackBuffer() {
+		return buffers[back];
+	}
+
+	/**
+	 * Publish the back buffer, and take a new one; writer only
+	 */
+	public void publish() {
+		back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+	}
+
+	/**
+	 * Get the most recently published state; reader only
+	 * <p>
+	 * The returned gamepad is stable until the next call.
+	 *
+	 * @return gamepad
+	 */
+	public Gamepad acquire() {
+		if ((middle.get() & FRESH) != 0) {
+			front = middle.getAndSet(front) & INDEX_MASK;
+		}
+		return buffers[front];
+	}
+
+}
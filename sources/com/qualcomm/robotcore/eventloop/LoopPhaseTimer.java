@@ -0,0 +1,142 @@
+package com.qualcomm.robotcore.eventloop;
+
+import com.qualcomm.robotcore.robocol.Telemetry;
+import com.qualcomm.robotcore.util.LogLinearHistogram;
+
+/**
+ * Times each phase of an event loop iteration
+ * <p>
+ * The loop thread calls startIteration() and then mark() at the end of each phase; the time since
+ * the previous mark is recorded in the histogram of that phase. Marking costs a System.nanoTime()
+ * call and a histogram update, and never allocates. The histograms cover the time since the last
+ * reset(), normally the last report.
+ * <p>
+ * Intended for a single loop thread; readers on other threads may see a slightly inconsistent
+ * snapshot.
+ */
+public class LoopPhaseTimer {
+
+	/**
+	 * Phases of an event loop iteration
+	 */
+	public enum Phase {
+		/** sending the global error message, if any */
+		ERROR_CHECK("error check"),
+		/** heartbeat timeout check, and the periodic link and timing reports */
+		HEARTBEAT_CHECK("heartbeat check"),
+		/** waiting in SyncdDevice.blockUntilReady() */
+		SYNC_WAIT("sync wait"),
+		/** taking the gamepads and running EventLoop.loop() */
+		LOOP("loop"),
+		/** SyncdDevice.startBlockingWork() and storing the loop time */
+		BLOCKING_WORK("blocking work"),
+		/** the whole iteration, not counting the wait before it */
+		ITERATION("iteration");
+
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final LogLinearHistogram[] histograms = new LogLinearHistogram[PHASES.length];
+	private final String[][] keys = new String[PHASES.length][];
+
+	private long iterationStart = 0;
+	private long lastMark = 0;
+
+	public LoopPhaseTimer() {
+		for (int i = 0; i < PHASES.length; i++) {
+			histograms[i] = new LogLinearHistogram();
+			String label = PHASES[i].getLabel();
+			keys[i] = new String[] { label + " p50", label + " p99", label + " max" };
+		}
+	}
+
+	/**
+	 * Start timing an iteration
+	 */
+	public void startIteration() {
+		iterationStart = System.nanoTime();
+		lastMark = iterationStart;
+	}
+
+	/**
+	 * End a phase, recording the time since the previous mark or the start of the iteration
+	 *
+	 * @param phase phase that just ended
+	 */
+	public void mark(Phase phase) {
+		long now = System.nanoTime();
+		histograms[phase.ordinal()].record(now - lastMark);
+		lastMark = now;
+	}
+
+	/**
+	 * End the iteration, recording its total time
+	 */
+	public void endIteration() {
+		long now = System.nanoTime();
+		histograms[Phase.ITERATION.ordinal()].record(now - iterationStart);
+		lastMark = now;
+	}
+
+	/**
+	 * Get a percentile of the time spent in a phase
+	 *
+	 * @param phase phase
+	 * @param percentile between 0 and 100
+	 * @return time, in nanoseconds
+	 */
+	public long getPercentile(Phase phase, double percentile) {
+		return histograms[phase.ordinal()].getPercentile(percentile);
+	}
+
+	/**
+	 * @param phase phase
+	 * @return longest time spent in the phase, in nanoseconds
+	 */
+	public long getMax(Phase phase) {
+		return histograms[phase.ordinal()].getMax();
+	}
+
+	/**
+	 * @param phase phase
+	 * @return number of times the phase was timed
+	 */
+	public long getCount(Phase phase) {
+		return histograms[phase.ordinal()].getCount();
+	}
+
+	/**
+	 * Clear all histograms
+	 */
+	public void reset() {
+		for (LogLinearHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Add the p50, p99 and max of each phase timed since the last reset, in microseconds
+	 *
+	 * @param telemetry telemetry to add to
+	 */
+	public void addTo(Telemetry telemetry) {
+		for (int i = 0; i < PHASES.length; i++) {
+			LogLinearHistogram histogram = histograms[i];
+			if (histogram.getCount() == 0) continue;
+			telemetry.addData(keys[i][0], histogram.getPercentile(50) / 1e3);
+			telemetry.addData(keys[i][1], histogram.getPercentile(99) / 1e3);
+			telemetry.addData(keys[i][2], histogram.getMax() / 1e3);
+		}
+	}
+
+}
@@ -0,0 +1,232 @@
+package com.qualcomm.robotcore.eventloop;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Watches event loop iterations for overruns against a soft and a hard budget
+ * <p>
+ * The loop thread calls startIteration() and endIteration() around the work it does each
+ * iteration; both only write a volatile field. A watchdog thread wakes when the iteration in
+ * progress reaches a budget. An iteration still running past the soft budget is a soft overrun:
+ * the loop thread stack is sampled and the listener told, once per iteration. One still running
+ * past the hard budget is a hard overrun, reported the same way so the listener can stop the
+ * robot. While no iteration is in progress, or once the one in progress has overrun, the
+ * watchdog checks every quarter of the soft budget, so an overrun is noticed at most that late.
+ */
+public class LoopWatchdog {
+
+	/** Hard budget that disables the hard overrun; iterations are then only sampled */
+	public static final long NO_HARD_BUDGET = Long.MAX_VALUE;
+
+	/**
+	 * Told of overruns, on the watchdog thread
+	 */
+	public interface Listener {
+		/**
+		 * @param elapsed time since the iteration started, in nanoseconds
+		 * @param stack loop thread stack when the overrun was seen
+		 */
+		void onSoftOverrun(long elapsed, StackTraceElement[] stack);
+
+		/**
+		 * @param elapsed time since the iteration started, in nanoseconds
+		 * @param stack loop thread stack when the overrun was seen
+		 */
+		void onHardOverrun(long elapsed, StackTraceElement[] stack);
+	}
+
+	private static final long IDLE = Long.MIN_VALUE;
+	private static final int IDLE_CHECKS_PER_BUDGET = 4;
+
+	private final long softBudget;
+	private final long hardBudget;
+	private final Listener listener;
+
+	private volatile long iterationStart = IDLE;
+	private volatile Thread loopThread = null;
+
+	private volatile boolean running = false;
+	private Thread watchdogThread = null;
+
+	// written by the watchdog thread only
+	private volatile long softOverruns = 0;
+	private volatile long hardOverruns = 0;
+	private volatile StackTraceElement[] lastStackSample = new StackTraceElement[0];
+
+	/**
+	 * Constructor
+	 *
+	 * @param softBudget iteration time past which the loop thread stack is sampled, in nanoseconds
+	 * @param hardBudget iteration time past which the robot must be stopped, in nanoseconds; or
+	 *                   NO_HARD_BUDGET
+	 * @param listener told of overruns
+	 */
+	public LoopWatchdog(long softBudget, long hardBudget, Listener listener) {
+		if (softBudget <= 0 || hardBudget < softBudget) {
+			throw new IllegalArgumentException("Invalid loop budgets " + softBudget + ", " + hardBudget);
+		}
+		this.softBudget = softBudget;
+		this.hardBudget = hardBudget;
+		this.listener = listener;
+	}
+
+	/**
+	 * Start the watchdog thread
+	 */
+	public synchronized void start() {
+		if (running) return;
+
+		running = true;
+		watchdogThread = new Thread(new WatchdogRunnable(), "Loop watchdog");
+		watchdogThread.start();
+	}
+
+	/**
+	 * Stop the watchdog thread
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+
+		running = false;
+		watchdogThread.interrupt();
+		if (Thread.currentThread() == watchdogThread) return; // stopped by the listener
+
+		try {
+			watchdogThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Start watching an iteration; called on the loop thread
+	 */
+	public void startIteration() {
+		Thread current = Thread.currentThread();
+		if (loopThread != current) loopThread = current;
+		iterationStart = System.nanoTime();
+	}
+
+	/**
+	 * Stop watching the iteration; called on the loop thread
+	 */
+	public void endIteration() {
+		iterationStart = IDLE;
+	}
+
+	/**
+	 * @return thread that last called startIteration(); or null if none has
+	 */
+	public Thread getLoopThread() {
+		return loopThread;
+	}
+
+	/**
+	 * @return soft budget, in nanoseconds
+	 */
+	public long getSoftBudget() {
+		return softBudget;
+	}
+
+	/**
+	 * @return hard budget, in nanoseconds; or NO_HARD_BUDGET
+	 */
+	public long getHardBudget() {
+		return hardBudget;
+	}
+
+	/**
+	 * @return number of iterations that ran past the soft budget
+	 */
+	public long getSoftOverrunCount() {
+		return softOverruns;
+	}
+
+	/**
+	 * @return number of iterations that ran past the hard budget
+	 */
+	public long getHardOverrunCount() {
+		return hardOverruns;
+	}
+
+	/**
+	 * @return loop thread stack sampled at the last overrun; empty if there was none
+	 */
+	public StackTraceElement[] getLastStackSample() {
+		return lastStackSample;
+	}
+
+	/**
+	 * Describe the top of a stack in a single line, as short "Class.method:line" frames from the
+	 * innermost out, keeping as many as fit
+	 *
+	 * @param stack stack sample
+	 * @param maxLength longest description, in characters
+	 * @return description; or an empty string if the stack is empty
+	 */
+	public static String summarize(StackTraceElement[] stack, int maxLength) {
+		StringBuilder builder = new StringBuilder();
+		for (StackTraceElement frame : stack) {
+			String className = frame.getClassName();
+			String name = className.substring(className.lastIndexOf('.') + 1) + "." + frame.getMethodName();
+			if (frame.getLineNumber() >= 0) name += ":" + frame.getLineNumber();
+
+			int separator = builder.length() == 0 ? 0 : 3;
+			if (builder.length() + separator + name.length() > maxLength) break;
+			if (separator > 0) builder.append(" < ");
+			builder.append(name);
+		}
+		return builder.toString();
+	}
+
+	private class WatchdogRunnable implements Runnable {
+
+		// start time of the last iteration reported, so each is reported once per budget
+		private long softReported = IDLE;
+		private long hardReported = IDLE;
+
+		@Override
+		public void run() {
+			while (running) {
+				long start = iterationStart;
+				long now = System.nanoTime();
+				long wake = now + softBudget / IDLE_CHECKS_PER_BUDGET;
+
+				if (start != IDLE) {
+					long elapsed = now - start;
+					if (elapsed >= hardBudget) {
+						if (hardReported != start) {
+							hardReported = start;
+							if (softReported != start) {
+								softReported = start;
+								softOverruns += 1;
+							}
+							hardOverruns += 1;
+							listener.onHardOverrun(elapsed, sample());
+						}
+					} else if (elapsed >= softBudget) {
+						if (softReported != start) {
+							softReported = start;
+							softOverruns += 1;
+							listener.onSoftOverrun(elapsed, sample());
+						}
+					} else {
+						wake = start + softBudget;
+					}
+				}
+
+				long remaining = wake - System.nanoTime();
+				if (remaining > 0) LockSupport.parkNanos(LoopWatchdog.this, remaining);
+				Thread.interrupted(); // woken by stop()
+			}
+		}
+
+		private StackTraceElement[] sample() {
+			Thread thread = loopThread;
+			StackTraceElement[] stack = thread == null ? new StackTraceElement[0] : thread.getStackTrace();
+			lastStackSample = stack;
+			return stack;
+		}
+	}
+
+}
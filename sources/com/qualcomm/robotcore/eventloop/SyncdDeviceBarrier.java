@@ -0,0 +1,271 @@
+package com.qualcomm.robotcore.eventloop;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.LogLinearHistogram;
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.util.Arrays;
+
+/**
+ * Waits for every sync'd device to be ready, concurrently, up to a deadline
+ * <p>
+ * Each device has a waiter thread that calls its blockUntilReady(), so an iteration waits for
+ * the slowest device rather than for the sum of all of them. A device not ready by the deadline
+ * is reported, and either skipped for the iteration or, by policy, escalated to an emergency
+ * stop. A skipped device is left waiting; it takes part in the first iteration after it becomes
+ * ready, and startBlockingWork() is only called on devices that were ready for the iteration.
+ * <p>
+ * A device is ready when registered, as blockUntilReady() returns at once until
+ * startBlockingWork() is first called.
+ */
+public class SyncdDeviceBarrier {
+
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	/**
+	 * What to do when a device is not ready by the deadline
+	 */
+	public enum MissPolicy {
+		/** run the iteration without the device */
+		SKIP,
+		/** stop the event loop, as if the device had thrown */
+		EMERGENCY_STOP
+	}
+
+	/*
+	 * Waiter of a single device; fields are guarded by the barrier
+	 */
+	private class Waiter implements Runnable {
+		final SyncdDevice device;
+		final Thread thread;
+		final LogLinearHistogram latency = new LogLinearHistogram();
+
+		boolean ready = true;
+		boolean pending = false; // blockUntilReady() requested, not yet returned
+		long armTime = 0;
+		RobotCoreException failure = null;
+		long misses = 0;
+		boolean missing = false;
+
+		Waiter(SyncdDevice device) {
+			this.device = device;
+			this.thread = new Thread(this, "SyncdDevice waiter");
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					synchronized (SyncdDeviceBarrier.this) {
+						while (!pending) SyncdDeviceBarrier.this.wait();
+					}
+
+					device.blockUntilReady();
+					long now = System.nanoTime();
+
+					synchronized (SyncdDeviceBarrier.this) {
+						latency.record(now - armTime);
+						pending = false;
+						ready = true;
+						SyncdDeviceBarrier.this.notifyAll();
+					}
+				}
+			} catch (InterruptedException e) {
+				// unregistered
+			} catch (RobotCoreException e) {
+				synchronized (SyncdDeviceBarrier.this) {
+					failure = e;
+					SyncdDeviceBarrier.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private Waiter[] waiters = new Waiter[0];
+
+	private long deadline = NO_DEADLINE;
+	private MissPolicy policy = MissPolicy.SKIP;
+	private long missedIterations = 0;
+
+	/**
+	 * Set how long an iteration waits for devices, and what happens to devices that miss it
+	 *
+	 * @param deadline longest wait, in nanoseconds; NO_DEADLINE to wait for ever
+	 * @param policy what to do with a device that is not ready in time
+	 */
+	public synchronized void setDeadline(long deadline, MissPolicy policy) {
+		if (deadline <= 0) throw new IllegalArgumentException("Invalid sync'd device deadline " + deadline);
+		this.deadline = deadline;
+		this.policy = policy;
+	}
+
+	public synchronized long getDeadline() {
+		return deadline;
+	}
+
+	public synchronized MissPolicy getMissPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Add a device, and start its waiter thread
+	 *
+	 * @param device sync'd device
+	 */
+	public synchronized void register(SyncdDevice device) {
+		if (find(device) != null) return;
+
+		Waiter waiter = new Waiter(device);
+		waiters = Arrays.copyOf(waiters, waiters.length + 1);
+		waiters[waiters.length - 1] = waiter;
+		waiter.thread.start();
+	}
+
+	/**
+	 * Remove a device, and stop its waiter thread
+	 *
+	 * @param device sync'd device
+	 */
+	public synchronized void unregister(SyncdDevice device) {
+		for (int i = 0; i < waiters.length; i++) {
+			if (waiters[i].device != device) continue;
+
+			waiters[i].thread.interrupt();
+			Waiter[] remaining = new Waiter[waiters.length - 1];
+			System.arraycopy(waiters, 0, remaining, 0, i);
+			System.arraycopy(waiters, i + 1, remaining, i, waiters.length - i - 1);
+			waiters = remaining;
+			return;
+		}
+	}
+
+	/**
+	 * Remove every device
+	 */
+	public synchronized void clear() {
+		for (Waiter waiter : waiters) {
+			waiter.thread.interrupt();
+		}
+		waiters = new Waiter[0];
+	}
+
+	/**
+	 * Wait until every device is ready, or the deadline passes
+	 *
+	 * @throws RobotCoreException if a device failed, or missed the deadline under EMERGENCY_STOP
+	 * @throws InterruptedException if the event loop is interrupted while waiting
+	 */
+	public synchronized void awaitReady() throws RobotCoreException, InterruptedException {
+		long start = System.nanoTime();
+
+		for (Waiter waiter : waiters) {
+			if (waiter.ready || waiter.pending) continue;
+			waiter.pending = true;
+			waiter.armTime = start;
+		}
+		notifyAll();
+
+		while (true) {
+			boolean allReady = true;
+			for (Waiter waiter : waiters) {
+				if (waiter.failure != null) throw waiter.failure;
+				allReady &= waiter.ready;
+			}
+			if (allReady) break;
+
+			if (deadline == NO_DEADLINE) {
+				wait();
+			} else {
+				long remaining = start + deadline - System.nanoTime();
+				if (remaining <= 0) break;
+				wait(remaining / 1000000, (int) (remaining % 1000000));
+			}
+		}
+
+		boolean missed = false;
+		for (Waiter waiter : waiters) {
+			if (waiter.ready) {
+				if (waiter.missing) {
+					waiter.missing = false;
+					RobotLog.i("Sync'd device " + waiter.device + " is ready again");
+				}
+				continue;
+			}
+
+			missed = true;
+			waiter.misses += 1;
+			if (!waiter.missing) {
+				waiter.missing = true;
+				RobotLog.w(String.format("Sync'd device %s not ready within %.1f ms", waiter.device, deadline / 1e6));
+			}
+			if (policy == MissPolicy.EMERGENCY_STOP) {
+				RobotLog.setGlobalErrorMsg("Sync'd device " + waiter.device + " stopped responding");
+				throw new RobotCoreException("Sync'd device missed its deadline: " + waiter.device);
+			}
+		}
+		if (missed) missedIterations += 1;
+	}
+
+	/**
+	 * Call startBlockingWork() on every device that was ready for this iteration
+	 */
+	public void startBlockingWork() {
+		Waiter[] waiters;
+		synchronized (this) {
+			waiters = this.waiters;
+		}
+
+		for (Waiter waiter : waiters) {
+			synchronized (this) {
+				if (!waiter.ready) continue;
+				waiter.ready = false;
+			}
+			waiter.device.startBlockingWork();
+		}
+	}
+
+	/**
+	 * Get a percentile of the time a device took to become ready
+	 *
+	 * @param device sync'd device
+	 * @param percentile between 0 and 100
+	 * @return latency, in nanoseconds; 0 if the device is not registered
+	 */
+	public synchronized long getReadyLatencyPercentile(SyncdDevice device, double percentile) {
+		Waiter waiter = find(device);
+		return waiter == null ? 0 : waiter.latency.getPercentile(percentile);
+	}
+
+	/**
+	 * @param device sync'd device
+	 * @return longest time the device took to become ready, in nanoseconds
+	 */
+	public synchronized long getMaxReadyLatency(SyncdDevice device) {
+		Waiter waiter = find(device);
+		return waiter == null ? 0 : waiter.latency.getMax();
+	}
+
+	/**
+	 * @param device sync'd device
+	 * @return number of iterations the device was not ready by the deadline
+	 */
+	public synchronized long getMissCount(SyncdDevice device) {
+		Waiter waiter = find(device);
+		return waiter == null ? 0 : waiter.misses;
+	}
+
+	/**
+	 * @return number of iterations that ran without some device
+	 */
+	public synchronized long getMissedIterations() {
+		return missedIterations;
+	}
+
+	private Waiter find(SyncdDevice device) {
+		for (Waiter waiter : waiters) {
+			if (waiter.device == device) return waiter;
+		}
+		return null;
+	}
+
+}
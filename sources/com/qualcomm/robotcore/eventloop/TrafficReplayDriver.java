@@ -0,0 +1,89 @@
+package com.qualcomm.robotcore.eventloop;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.robocol.RobocolReplaySocket;
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs an event loop against a captured stream of driver station traffic
+ * <p>
+ * The capture is fed through an EventLoopManager exactly as a live socket would feed it, at the
+ * original speed or faster, so event loop behavior can be benchmarked and regression tested
+ * offline against real match traffic.
+ */
+public class TrafficReplayDriver {
+
+	private final File capture;
+	private final double speed;
+
+	private RobocolReplaySocket socket = null;
+	private EventLoopManager eventLoopManager = null;
+	private long elapsed = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capture capture written by a TrafficRecorder
+	 * @param speed 1 for real time, 2 for twice as fast, or RobocolReplaySocket.AS_FAST_AS_POSSIBLE
+	 */
+	public TrafficReplayDriver(File capture, double speed) {
+		this.capture = capture;
+		this.speed = speed;
+	}
+
+	/**
+	 * Replay the whole capture into an event loop, and shut it down afterwards
+	 *
+	 * @param eventLoop event loop to run
+	 * @throws IOException if the capture cannot be read
+	 * @throws RobotCoreException if the event loop fails to init
+	 * @throws InterruptedException if interrupted while replaying
+	 */
+	public void run(EventLoop eventLoop) throws IOException, RobotCoreException, InterruptedException {
+		socket = new RobocolReplaySocket(capture, speed);
+		eventLoopManager = new EventLoopManager(socket);
+
+		long start = System.nanoTime();
+		try {
+			eventLoopManager.start(eventLoop);
+			socket.waitForEnd();
+		} finally {
+			elapsed = System.nanoTime() - start;
+			eventLoopManager.shutdown();
+		}
+
+		RobotLog.i(String.format("Replayed %d datagrams in %.3f seconds, %d sent in reply",
+				socket.getReplayedCount(), elapsed / 1e9, socket.getSentCount()));
+	}
+
+	/**
+	 * Get the replay socket, for its counters and to record the replies
+	 *
+	 * @return socket; or null before run()
+	 */
+	public RobocolReplaySocket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Get the event loop manager of the replay
+	 *
+	 * @return event loop manager; or null before run()
+	 */
+	public EventLoopManager getEventLoopManager() {
+		return eventLoopManager;
+	}
+
+	/**
+	 * Wall clock time the last replay took
+	 *
+	 * @return elapsed time in nanoseconds
+	 */
+	public long getElapsedTime() {
+		return elapsed;
+	}
+
+}
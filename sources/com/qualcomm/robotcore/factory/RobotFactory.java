@@ -32,19 +32,41 @@ package com.qualcomm.robotcore.factory;
 
 import com.qualcomm.robotcore.eventloop.EventLoopManager;
 import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.robocol.RobocolDatagramChannelSocket;
 import com.qualcomm.robotcore.robocol.RobocolDatagramSocket;
 import com.qualcomm.robotcore.robot.Robot;
 
 public class RobotFactory {
 
+	/**
+	 * Transport used by a robot to exchange Robocol datagrams with the driver station
+	 */
+	public enum Transport {
+		DATAGRAM_SOCKET,  /// blocking java.net.DatagramSocket
+		DATAGRAM_CHANNEL  /// non-blocking java.nio DatagramChannel with a Selector
+	}
+
 	public static Robot createRobot() throws RobotCoreException {
+		return createRobot(Transport.DATAGRAM_SOCKET);
+	}
+
+	public static Robot createRobot(Transport transport) throws RobotCoreException {
 
-		RobocolDatagramSocket socket = new RobocolDatagramSocket();
+		RobocolDatagramSocket socket;
+		switch (transport) {
+		case DATAGRAM_CHANNEL:
+			socket = new RobocolDatagramChannelSocket();
+			break;
+		default:
+			socket = new RobocolDatagramSocket();
+			break;
+		}
 		EventLoopManager eventProcessor = new EventLoopManager(socket);
 
 		Robot robot = new Robot();
 		robot.eventLoopManager = eventProcessor;
 		robot.socket = socket;
+		robot.sendQueue = eventProcessor.getSendQueue();
 
 		return robot;
 	}
@@ -39,9 +39,8 @@ import android.os.Build;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.robocol.RobocolParsable;
 import com.qualcomm.robotcore.util.Range;
-import com.qualcomm.robotcore.util.RobotLog;
 
-import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.HashSet;
@@ -218,10 +217,58 @@ public class Gamepad implements RobocolParsable {
 
 	private static final byte ROBOCOL_VERSION = 2;
 
+	/**
+	 * Compact encoding, with quantized analog values and optional changed fields only. Only send
+	 * this once the robot controller has agreed to it; see CMD_NEGOTIATE_VERSION.
+	 */
+	public static final byte COMPACT_ROBOCOL_VERSION = 3;
+
+	/**
+	 * Highest gamepad version this library can decode
+	 */
+	public static final byte MAX_ROBOCOL_VERSION = COMPACT_ROBOCOL_VERSION;
+
+	/**
+	 * Sent by the driver station with the highest gamepad version it can send as the extra data.
+	 * The robot controller answers with CMD_NEGOTIATE_VERSION_RESP, carrying the version to use.
+	 * An older robot controller does not answer, so the driver station keeps sending version 2.
+	 */
+	public static final String CMD_NEGOTIATE_VERSION = "CMD_GAMEPAD_NEGOTIATE_VERSION";
+	public static final String CMD_NEGOTIATE_VERSION_RESP = "CMD_GAMEPAD_NEGOTIATE_VERSION_RESP";
+
+	/*
+	 * Compact payload: version, user, flags, keyframe sequence, then [id as a zigzag varint],
+	 * timestamp (64 bits in a keyframe, otherwise the low 16 bits), [left stick], [right stick],
+	 * [triggers], [buttons as a short]. Sticks and triggers are 8 bits each, or 16 bits with
+	 * FLAG_HIGH_RESOLUTION. An absent field is at rest, or with FLAG_DELTA is the same as in the
+	 * keyframe. A typical packet is 11 to 17 bytes, against 45 bytes for version 2.
+	 */
+	private static final int COMPACT_MIN_PAYLOAD_SIZE = 4;
+	private static final int COMPACT_KEYFRAME_INTERVAL = 16; // in packets
+
+	private static final int FLAG_ID              = 0x01;
+	private static final int FLAG_KEYFRAME        = 0x02;
+	private static final int FLAG_LEFT_STICK      = 0x04;
+	private static final int FLAG_RIGHT_STICK     = 0x08;
+	private static final int FLAG_TRIGGERS        = 0x10;
+	private static final int FLAG_BUTTONS         = 0x20;
+	private static final int FLAG_HIGH_RESOLUTION = 0x40;
+	private static final int FLAG_DELTA           = 0x80;
+
 	private static final float MAX_MOTION_RANGE = 1.0f;
 
 	private final GamepadCallback callback;
 
+	// compact encoding options, used when sending
+	private byte robocolVersion = ROBOCOL_VERSION;
+	private boolean highResolution = false;
+	private boolean changedFieldsOnly = false;
+
+	// last keyframe sent, or received
+	private Gamepad keyframe = null;
+	private int keyframeSequence = -1;
+	private int sinceKeyframe = Integer.MAX_VALUE;
+
 	private static Set<Integer> gameControllerDeviceIdCache = new HashSet<Integer>();
 
 	// Set of devices to consume input events from. If null, inputs from all detected devices will be used.
@@ -321,58 +368,58 @@ public class Gamepad implements RobocolParsable {
 	}
 
 	@Override
-	public byte[] toByteArray() throws RobotCoreException {
+	public int encodedSize() {
+		if (robocolVersion >= COMPACT_ROBOCOL_VERSION) return HEADER_LENGTH + compactPayloadSize(compactFlags());
 
-		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		return BUFFER_SIZE;
+	}
 
-		try {
-			int buttons = 0;
-
-			buffer.put(getRobocolMsgType().asByte());
-			buffer.putShort(PAYLOAD_SIZE);
-			buffer.put(ROBOCOL_VERSION);
-			buffer.putInt(id);
-			buffer.putLong(timestamp).array();
-			buffer.putFloat(left_stick_x).array();
-			buffer.putFloat(left_stick_y).array();
-			buffer.putFloat(right_stick_x).array();
-			buffer.putFloat(right_stick_y).array();
-			buffer.putFloat(left_trigger).array();
-			buffer.putFloat(right_trigger).array();
-
-			buttons = (buttons << 1) + (dpad_up ? 1 : 0);
-			buttons = (buttons << 1) + (dpad_down ? 1 : 0);
-			buttons = (buttons << 1) + (dpad_left ? 1 : 0);
-			buttons = (buttons << 1) + (dpad_right ? 1 : 0);
-			buttons = (buttons << 1) + (a ? 1 : 0);
-			buttons = (buttons << 1) + (b ? 1 : 0);
-			buttons = (buttons << 1) + (x ? 1 : 0);
-			buttons = (buttons << 1) + (y ? 1 : 0);
-			buttons = (buttons << 1) + (guide ? 1 : 0);
-			buttons = (buttons << 1) + (start ? 1 : 0);
-			buttons = (buttons << 1) + (back ? 1 : 0);
-			buttons = (buttons << 1) + (left_bumper ? 1 : 0);
-			buttons = (buttons << 1) + (right_bumper ? 1 : 0);
-			buffer.putInt(buttons);
-
-			buffer.put(user);
-		} catch (BufferOverflowException e) {
-			RobotLog.logStacktrace(e);
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		if (robocolVersion >= COMPACT_ROBOCOL_VERSION) {
+			writeCompact(buffer);
+			return;
 		}
 
+		if (buffer.remaining() < BUFFER_SIZE) {
+			throw new RobotCoreException("Expected buffer with at least " + BUFFER_SIZE + " bytes remaining, found " + buffer.remaining());
+		}
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort(PAYLOAD_SIZE);
+		buffer.put(ROBOCOL_VERSION);
+		buffer.putInt(id);
+		buffer.putLong(timestamp);
+		buffer.putFloat(left_stick_x);
+		buffer.putFloat(left_stick_y);
+		buffer.putFloat(right_stick_x);
+		buffer.putFloat(right_stick_y);
+		buffer.putFloat(left_trigger);
+		buffer.putFloat(right_trigger);
+		buffer.putInt(packButtons());
+		buffer.put(user);
+	}
+
+	@Override
+	public byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
 		return buffer.array();
 	}
 
 	@Override
 	public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+		if (byteArray.length > HEADER_LENGTH && byteArray[HEADER_LENGTH] >= COMPACT_ROBOCOL_VERSION) {
+			fromCompactByteArray(byteArray);
+			return;
+		}
+
 		if (byteArray.length < BUFFER_SIZE) {
 			throw new RobotCoreException("Expected buffer of at least " + BUFFER_SIZE + " bytes, received " + byteArray.length);
 		}
 
 		ByteBuffer byteBuffer = ByteBuffer.wrap(byteArray, HEADER_LENGTH, PAYLOAD_SIZE);
 
-		int buttons = 0;
-
 		byte version = byteBuffer.get();
 
 		// extract version 1 values
@@ -385,21 +432,7 @@ public class Gamepad implements RobocolParsable {
 			right_stick_y = byteBuffer.getFloat();
 			left_trigger = byteBuffer.getFloat();
 			right_trigger = byteBuffer.getFloat();
-
-			buttons = byteBuffer.getInt();
-			dpad_up      = (buttons & 0x1000) != 0;
-			dpad_down    = (buttons & 0x0800) != 0;
-			dpad_left    = (buttons & 0x0400) != 0;
-			dpad_right   = (buttons & 0x0200) != 0;
-			a            = (buttons & 0x0100) != 0;
-			b            = (buttons & 0x0080) != 0;
-			x            = (buttons & 0x0040) != 0;
-			y            = (buttons & 0x0020) != 0;
-			guide        = (buttons & 0x0010) != 0;
-			start        = (buttons & 0x0008) != 0;
-			back         = (buttons & 0x0004) != 0;
-			left_bumper  = (buttons & 0x0002) != 0;
-			right_bumper = (buttons & 0x0001) != 0;
+			unpackButtons(byteBuffer.getInt());
 		}
 
 		// extract version 2 values
@@ -410,6 +443,363 @@ public class Gamepad implements RobocolParsable {
 		callCallback();
 	}
 
+	/**
+	 * Select the encoding used when sending this gamepad
+	 * <p>
+	 * Version 2 is the default, and is understood by every robot controller.
+	 *
+	 * @param version 2 or COMPACT_ROBOCOL_VERSION
+	 */
+	public void setRobocolVersion(int version) {
+		if (version < ROBOCOL_VERSION || version > MAX_ROBOCOL_VERSION) {
+			throw new IllegalArgumentException("unsupported gamepad version " + version);
+		}
+
+		robocolVersion = (byte) version;
+		sinceKeyframe = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Get the encoding used when sending this gamepad
+	 *
+	 * @return gamepad version
+	 */
+	public byte getRobocolVersion() {
+		return robocolVersion;
+	}
+
+	/**
+	 * Set the options of the compact encoding
+	 *
+	 * @param highResolution send sticks and triggers as 16 bits instead of 8
+	 * @param changedFieldsOnly only send the fields that differ from the last keyframe
+	 */
+	public void setCompactEncoding(boolean highResolution, boolean changedFieldsOnly) {
+		this.highResolution = highResolution;
+		this.changedFieldsOnly = changedFieldsOnly;
+		sinceKeyframe = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Choose the gamepad version to use, on the robot controller
+	 *
+	 * @param offered extra data of a CMD_NEGOTIATE_VERSION command
+	 * @return highest version both devices support
+	 */
+	public static byte negotiateRobocolVersion(String offered) {
+		try {
+			int version = Integer.parseInt(offered.trim());
+			return (byte) Math.max(ROBOCOL_VERSION, Math.min(MAX_ROBOCOL_VERSION, version));
+		} catch (NumberFormatException e) {
+			return ROBOCOL_VERSION;
+		}
+	}
+
+	/**
+	 * Read the user of an encoded gamepad without decoding it
+	 *
+	 * @param byteArray encoded gamepad
+	 * @return user, or ID_UNASSOCIATED if the encoding does not have one
+	 */
+	public static byte peekUser(byte[] byteArray) {
+		if (byteArray.length <= HEADER_LENGTH + 1) return ID_UNASSOCIATED;
+
+		byte version = byteArray[HEADER_LENGTH];
+		if (version >= COMPACT_ROBOCOL_VERSION) return byteArray[HEADER_LENGTH + 1];
+		if (version >= 2 && byteArray.length >= BUFFER_SIZE) return byteArray[BUFFER_SIZE - 1];
+
+		return ID_UNASSOCIATED;
+	}
+
+	/**
+	 * Copy the sticks, triggers, buttons, user, id and timestamp of another gamepad
+	 *
+	 * @param gamepad gamepad to copy from
+	 */
+	public void copy(Gamepad gamepad) {
+		left_stick_x = gamepad.left_stick_x;
+		left_stick_y = gamepad.left_stick_y;
+		right_stick_x = gamepad.right_stick_x;
+		right_stick_y = gamepad.right_stick_y;
+		left_trigger = gamepad.left_trigger;
+		right_trigger = gamepad.right_trigger;
+		unpackButtons(gamepad.packButtons());
+		user = gamepad.user;
+		id = gamepad.id;
+		timestamp = gamepad.timestamp;
+	}
+
+	/*
+	 * Decide which fields the next compact packet carries
+	 */
+	private int compactFlags() {
+		boolean isKeyframe = sinceKeyframe >= COMPACT_KEYFRAME_INTERVAL;
+
+		// fields are compared against this; null means at rest
+		Gamepad reference = (changedFieldsOnly && !isKeyframe) ? keyframe : null;
+
+		int flags = highResolution ? FLAG_HIGH_RESOLUTION : 0;
+		if (isKeyframe) flags |= FLAG_KEYFRAME | FLAG_ID;
+		if (reference != null) flags |= FLAG_DELTA;
+		if (!isKeyframe && keyframe != null && id != keyframe.id) flags |= FLAG_ID;
+
+		if (analogDiffers(left_stick_x, reference == null ? 0 : reference.left_stick_x, true)
+				|| analogDiffers(left_stick_y, reference == null ? 0 : reference.left_stick_y, true)) {
+			flags |= FLAG_LEFT_STICK;
+		}
+		if (analogDiffers(right_stick_x, reference == null ? 0 : reference.right_stick_x, true)
+				|| analogDiffers(right_stick_y, reference == null ? 0 : reference.right_stick_y, true)) {
+			flags |= FLAG_RIGHT_STICK;
+		}
+		if (analogDiffers(left_trigger, reference == null ? 0 : reference.left_trigger, false)
+				|| analogDiffers(right_trigger, reference == null ? 0 : reference.right_trigger, false)) {
+			flags |= FLAG_TRIGGERS;
+		}
+		if (packButtons() != (reference == null ? 0 : reference.packButtons())) {
+			flags |= FLAG_BUTTONS;
+		}
+
+		return flags;
+	}
+
+	private int compactPayloadSize(int flags) {
+		int analogSize = (flags & FLAG_HIGH_RESOLUTION) != 0 ? 2 : 1;
+
+		int size = COMPACT_MIN_PAYLOAD_SIZE;
+		if ((flags & FLAG_ID) != 0) size += varintSize(zigzag(id));
+		size += (flags & FLAG_KEYFRAME) != 0 ? 8 : 2;
+		if ((flags & FLAG_LEFT_STICK) != 0) size += 2 * analogSize;
+		if ((flags & FLAG_RIGHT_STICK) != 0) size += 2 * analogSize;
+		if ((flags & FLAG_TRIGGERS) != 0) size += 2 * analogSize;
+		if ((flags & FLAG_BUTTONS) != 0) size += 2;
+
+		return size;
+	}
+
+	private void writeCompact(ByteBuffer buffer) throws RobotCoreException {
+		int flags = compactFlags();
+		int payloadSize = compactPayloadSize(flags);
+		if (buffer.remaining() < HEADER_LENGTH + payloadSize) {
+			throw new RobotCoreException("Expected buffer with at least " + (HEADER_LENGTH + payloadSize) + " bytes remaining, found " + buffer.remaining());
+		}
+
+		if ((flags & FLAG_KEYFRAME) != 0) {
+			if (keyframe == null) keyframe = new Gamepad();
+			keyframe.copy(this);
+			keyframeSequence = (keyframeSequence + 1) & 0xFF;
+			sinceKeyframe = 0;
+		}
+		sinceKeyframe += 1;
+
+		boolean high = (flags & FLAG_HIGH_RESOLUTION) != 0;
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort((short) payloadSize);
+		buffer.put(COMPACT_ROBOCOL_VERSION);
+		buffer.put(user);
+		buffer.put((byte) flags);
+		buffer.put((byte) keyframeSequence);
+		if ((flags & FLAG_ID) != 0) putVarint(buffer, zigzag(id));
+		if ((flags & FLAG_KEYFRAME) != 0) {
+			buffer.putLong(timestamp);
+		} else {
+			buffer.putShort((short) timestamp);
+		}
+		if ((flags & FLAG_LEFT_STICK) != 0) {
+			putAnalog(buffer, left_stick_x, high, true);
+			putAnalog(buffer, left_stick_y, high, true);
+		}
+		if ((flags & FLAG_RIGHT_STICK) != 0) {
+			putAnalog(buffer, right_stick_x, high, true);
+			putAnalog(buffer, right_stick_y, high, true);
+		}
+		if ((flags & FLAG_TRIGGERS) != 0) {
+			putAnalog(buffer, left_trigger, high, false);
+			putAnalog(buffer, right_trigger, high, false);
+		}
+		if ((flags & FLAG_BUTTONS) != 0) buffer.putShort((short) packButtons());
+	}
+
+	private void fromCompactByteArray(byte[] byteArray) throws RobotCoreException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(byteArray, HEADER_LENGTH, byteArray.length - HEADER_LENGTH);
+
+		try {
+			byteBuffer.get(); // version
+			byte packetUser = byteBuffer.get();
+			int flags = byteBuffer.get() & 0xFF;
+			int sequence = byteBuffer.get() & 0xFF;
+
+			boolean isKeyframe = (flags & FLAG_KEYFRAME) != 0;
+			boolean haveKeyframe = keyframe != null && sequence == keyframeSequence;
+			boolean high = (flags & FLAG_HIGH_RESOLUTION) != 0;
+
+			// a delta against a keyframe we missed can't be applied; wait for the next keyframe
+			if ((flags & FLAG_DELTA) != 0 && !haveKeyframe) return;
+
+			// absent fields come from this; null means at rest
+			Gamepad reference = (flags & FLAG_DELTA) != 0 ? keyframe : null;
+
+			if ((flags & FLAG_ID) != 0) {
+				id = unzigzag(getVarint(byteBuffer));
+			} else if (haveKeyframe) {
+				id = keyframe.id;
+			}
+
+			if (isKeyframe) {
+				timestamp = byteBuffer.getLong();
+			} else {
+				// the low 16 bits, applied as a delta to the last timestamp
+				short low = byteBuffer.getShort();
+				timestamp += (short) (low - (short) timestamp);
+			}
+
+			if ((flags & FLAG_LEFT_STICK) != 0) {
+				left_stick_x = getAnalog(byteBuffer, high, true);
+				left_stick_y = getAnalog(byteBuffer, high, true);
+			} else {
+				left_stick_x = reference == null ? 0 : reference.left_stick_x;
+				left_stick_y = reference == null ? 0 : reference.left_stick_y;
+			}
+
+			if ((flags & FLAG_RIGHT_STICK) != 0) {
+				right_stick_x = getAnalog(byteBuffer, high, true);
+				right_stick_y = getAnalog(byteBuffer, high, true);
+			} else {
+				right_stick_x = reference == null ? 0 : reference.right_stick_x;
+				right_stick_y = reference == null ? 0 : reference.right_stick_y;
+			}
+
+			if ((flags & FLAG_TRIGGERS) != 0) {
+				left_trigger = getAnalog(byteBuffer, high, false);
+				right_trigger = getAnalog(byteBuffer, high, false);
+			} else {
+				left_trigger = reference == null ? 0 : reference.left_trigger;
+				right_trigger = reference == null ? 0 : reference.right_trigger;
+			}
+
+			if ((flags & FLAG_BUTTONS) != 0) {
+				unpackButtons(byteBuffer.getShort());
+			} else {
+				unpackButtons(reference == null ? 0 : reference.packButtons());
+			}
+
+			user = packetUser;
+
+			if (isKeyframe) {
+				if (keyframe == null) keyframe = new Gamepad();
+				keyframe.copy(this);
+				keyframeSequence = sequence;
+			}
+		} catch (BufferUnderflowException e) {
+			throw new RobotCoreException("Gamepad packet is truncated, received " + byteArray.length + " bytes");
+		}
+
+		callCallback();
+	}
+
+	private int packButtons() {
+		int buttons = 0;
+		buttons = (buttons << 1) + (dpad_up ? 1 : 0);
+		buttons = (buttons << 1) + (dpad_down ? 1 : 0);
+		buttons = (buttons << 1) + (dpad_left ? 1 : 0);
+		buttons = (buttons << 1) + (dpad_right ? 1 : 0);
+		buttons = (buttons << 1) + (a ? 1 : 0);
+		buttons = (buttons << 1) + (b ? 1 : 0);
+		buttons = (buttons << 1) + (x ? 1 : 0);
+		buttons = (buttons << 1) + (y ? 1 : 0);
+		buttons = (buttons << 1) + (guide ? 1 : 0);
+		buttons = (buttons << 1) + (start ? 1 : 0);
+		buttons = (buttons << 1) + (back ? 1 : 0);
+		buttons = (buttons << 1) + (left_bumper ? 1 : 0);
+		buttons = (buttons << 1) + (right_bumper ? 1 : 0);
+		return buttons;
+	}
+
+	private void unpackButtons(int buttons) {
+		dpad_up      = (buttons & 0x1000) != 0;
+		dpad_down    = (buttons & 0x0800) != 0;
+		dpad_left    = (buttons & 0x0400) != 0;
+		dpad_right   = (buttons & 0x0200) != 0;
+		a            = (buttons & 0x0100) != 0;
+		b            = (buttons & 0x0080) != 0;
+		x            = (buttons & 0x0040) != 0;
+		y            = (buttons & 0x0020) != 0;
+		guide        = (buttons & 0x0010) != 0;
+		start        = (buttons & 0x0008) != 0;
+		back         = (buttons & 0x0004) != 0;
+		left_bumper  = (buttons & 0x0002) != 0;
+		right_bumper = (buttons & 0x0001) != 0;
+	}
+
+	// sticks are signed, triggers are not
+	private static int analogScale(boolean highResolution, boolean signed) {
+		if (highResolution) return signed ? Short.MAX_VALUE : 0xFFFF;
+		return signed ? Byte.MAX_VALUE : 0xFF;
+	}
+
+	private static int quantize(float value, boolean highResolution, boolean signed) {
+		float clipped = Range.clip(value, signed ? -MAX_MOTION_RANGE : 0, MAX_MOTION_RANGE);
+		return Math.round(clipped * analogScale(highResolution, signed));
+	}
+
+	private boolean analogDiffers(float value, float reference, boolean signed) {
+		return quantize(value, highResolution, signed) != quantize(reference, highResolution, signed);
+	}
+
+	private static void putAnalog(ByteBuffer buffer, float value, boolean highResolution, boolean signed) {
+		int quantized = quantize(value, highResolution, signed);
+		if (highResolution) {
+			buffer.putShort((short) quantized);
+		} else {
+			buffer.put((byte) quantized);
+		}
+	}
+
+	private static float getAnalog(ByteBuffer buffer, boolean highResolution, boolean signed) {
+		int quantized;
+		if (highResolution) {
+			quantized = signed ? buffer.getShort() : buffer.getShort() & 0xFFFF;
+		} else {
+			quantized = signed ? buffer.get() : buffer.get() & 0xFF;
+		}
+		return quantized / (float) analogScale(highResolution, signed);
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size += 1;
+		}
+		return size;
+	}
+
+	private static void putVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static int getVarint(ByteBuffer buffer) throws RobotCoreException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new RobotCoreException("Malformed gamepad id");
+	}
+
 	/**
 	 * Are all analog sticks and triggers in their rest position?
 	 * 
@@ -31,10 +31,8 @@
 package com.qualcomm.robotcore.robocol;
 
 import com.qualcomm.robotcore.exception.RobotCoreException;
-import com.qualcomm.robotcore.util.RobotLog;
 import com.qualcomm.robotcore.util.TypeConversion;
 
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 //import java.nio.charset.Charset;
 import java.util.Comparator;
@@ -52,6 +50,16 @@ public class Command implements RobocolParsable, Comparable<Command>, Comparator
 
 	private static final short BASE_PAYLOAD_SIZE = 11;
 
+	/**
+	 * Largest extra data; extra data longer than MAX_COMMAND_LENGTH is sent with a 16 bit length,
+	 * and the command is fragmented if it does not fit in one datagram
+	 */
+	public static final int MAX_EXTRA_LENGTH = RobocolConfig.MAX_MESSAGE_SIZE - RobocolParsable.HEADER_LENGTH
+			- BASE_PAYLOAD_SIZE - 1 - MAX_COMMAND_LENGTH;
+
+	private static final byte FLAG_ACKNOWLEDGED = 0x01;
+	private static final byte FLAG_LONG_EXTRA = 0x02;
+
 	// commented because unused
 	//	private static final Charset CHARSET = Charset.forName("UTF-8");
 
@@ -89,8 +97,8 @@ public class Command implements RobocolParsable, Comparable<Command>, Comparator
 			throw new IllegalArgumentException(String.format("command name length is too long (MAX: %d)", MAX_COMMAND_LENGTH));
 		}
 
-		if (mExtraBytes.length > MAX_COMMAND_LENGTH) {
-			throw new IllegalArgumentException(String.format("command extra data length is too long (MAX: %d)", MAX_COMMAND_LENGTH));
+		if (mExtraBytes.length > MAX_EXTRA_LENGTH) {
+			throw new IllegalArgumentException(String.format("command extra data length is too long (MAX: %d)", MAX_EXTRA_LENGTH));
 		}
 	}
 
@@ -161,32 +169,70 @@ public class Command implements RobocolParsable, Comparable<Command>, Comparator
 
 	/*
 	 * (non-Javadoc)
-	 * @see com.qualcomm.robotcore.robocol.RobocolParsable#toByteArray()
+	 * @see com.qualcomm.robotcore.robocol.RobocolParsable#encodedSize()
 	 */
 	@Override
-	public byte[] toByteArray() throws RobotCoreException {
+	public int encodedSize() {
+		return RobocolParsable.HEADER_LENGTH + payloadSize();
+	}
+
+	private int payloadSize() {
+		int size = BASE_PAYLOAD_SIZE + mNameBytes.length + mExtraBytes.length;
+		if (hasLongExtra()) size += 1;
+		return size;
+	}
+
+	private boolean hasLongExtra() {
+		return mExtraBytes.length > 0xFF;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qualcomm.robotcore.robocol.RobocolParsable#writeTo(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+
+		int payloadSize = payloadSize();
+
+		if (buffer.remaining() < RobocolParsable.HEADER_LENGTH + payloadSize) {
+			throw new RobotCoreException("Expected buffer with at least " + (RobocolParsable.HEADER_LENGTH + payloadSize)
+					+ " bytes remaining, found " + buffer.remaining());
+		}
 
 		if (mAttempts != Byte.MAX_VALUE)
 			mAttempts += 1;
 
-		short payloadSize = (short) (BASE_PAYLOAD_SIZE + mNameBytes.length + mExtraBytes.length);
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort((short) payloadSize);
 
-		ByteBuffer buffer = ByteBuffer.allocate(RobocolParsable.HEADER_LENGTH + payloadSize);
-		try {
-			buffer.put(getRobocolMsgType().asByte());
-			buffer.putShort(payloadSize);
+		buffer.putLong(mTimestamp);
 
-			buffer.putLong(mTimestamp);
+		// older peers read this byte as 1 for acknowledged; the long extra flag is only set for
+		// commands they could not have parsed anyway
+		byte flags = 0;
+		if (mAcknowledged) flags |= FLAG_ACKNOWLEDGED;
+		if (hasLongExtra()) flags |= FLAG_LONG_EXTRA;
+		buffer.put(flags);
 
-			buffer.put((byte) (mAcknowledged ? 1 : 0));
-
-			buffer.put((byte) mNameBytes.length);
-			buffer.put(mNameBytes);
+		buffer.put((byte) mNameBytes.length);
+		buffer.put(mNameBytes);
+		if (hasLongExtra()) {
+			buffer.putShort((short) mExtraBytes.length);
+		} else {
 			buffer.put((byte) mExtraBytes.length);
-			buffer.put(mExtraBytes);
-		} catch (BufferOverflowException e) {
-			RobotLog.logStacktrace(e);
 		}
+		buffer.put(mExtraBytes);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.qualcomm.robotcore.robocol.RobocolParsable#toByteArray()
+	 */
+	@Override
+	public byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
 		return buffer.array();
 	}
 
@@ -201,14 +247,19 @@ public class Command implements RobocolParsable, Comparable<Command>, Comparator
 
 		mTimestamp = buffer.getLong();
 
-		mAcknowledged = (buffer.get() == 1);
+		byte flags = buffer.get();
+		mAcknowledged = (flags & FLAG_ACKNOWLEDGED) != 0;
 
 		int length = TypeConversion.unsignedByteToInt(buffer.get());
 		mNameBytes = new byte[length];
 		buffer.get(mNameBytes);
 		mName = TypeConversion.utf8ToString(mNameBytes);
 
-		length = TypeConversion.unsignedByteToInt(buffer.get());
+		if ((flags & FLAG_LONG_EXTRA) != 0) {
+			length = buffer.getShort() & 0xFFFF;
+		} else {
+			length = TypeConversion.unsignedByteToInt(buffer.get());
+		}
 		mExtraBytes = new byte[length];
 		buffer.get(mExtraBytes);
 		mExtra = TypeConversion.utf8ToString(mExtraBytes);
@@ -231,7 +282,7 @@ public class Command implements RobocolParsable, Comparable<Command>, Comparator
 
 	@Override
 	public int hashCode() {
-		return (int) (mName.hashCode() & mTimestamp);
+		return 31 * mName.hashCode() + (int) (mTimestamp ^ (mTimestamp >>> 32));
 	}
 
 	@Override
@@ -0,0 +1,309 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reliable delivery of commands
+ * <p>
+ * A command is transmitted as soon as it is sent, then retransmitted from a hashed timer wheel
+ * until it is acknowledged or runs out of attempts. The retransmit timeout is derived from the
+ * measured round trip time of acknowledged commands (Jacobson/Karels, with Karn's rule of
+ * ignoring retransmitted commands), and doubles on every retransmit of the same command.
+ */
+public class CommandRetransmitter {
+
+	private static final boolean DEBUG = false;
+
+	public static final int MAX_ATTEMPTS = 10;
+
+	public static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(100);
+	public static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20);
+	public static final long MAX_RTO = TimeUnit.MILLISECONDS.toNanos(1000);
+
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int WHEEL_SIZE = 64; // must be a power of two
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	/**
+	 * Puts a command on the wire
+	 */
+	public interface Transmitter {
+		void transmit(Command command);
+	}
+
+	/**
+	 * Notified once when a command completes
+	 */
+	public interface CompletionCallback {
+		void onAcknowledged(Command command);
+		void onFailed(Command command);
+	}
+
+	/*
+	 * A command waiting for an ack; also a node in a wheel slot list
+	 */
+	private static class Pending {
+		final Command command;
+		final CompletionCallback callback;
+		final long firstSent;
+		long rto;
+		int attempts = 1;
+		long deadlineTick;
+		boolean cancelled = false;
+		boolean expired = false;
+		Pending next;
+
+		Pending(Command command, CompletionCallback callback, long firstSent, long rto) {
+			this.command = command;
+			this.callback = callback;
+			this.firstSent = firstSent;
+			this.rto = rto;
+		}
+	}
+
+	private class TimerRunnable implements Runnable {
+
+		@Override
+		public void run() {
+			long nextTick = System.nanoTime() + TICK;
+			try {
+				while (!Thread.interrupted()) {
+					long sleep = nextTick - System.nanoTime();
+					if (sleep > 0) Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+
+					// catch up on any ticks we slept through
+					while (nextTick - System.nanoTime() <= 0) {
+						advance();
+						nextTick += TICK;
+					}
+				}
+			} catch (InterruptedException e) {
+				// if we are interrupted, shut down this thread
+			}
+		}
+	}
+
+	private final Transmitter transmitter;
+
+	private final Map<Command, Pending> pending = new HashMap<Command, Pending>();
+	private final Pending[] wheel = new Pending[WHEEL_SIZE];
+	private long currentTick = 0;
+
+	// only touched by the timer thread
+	private final ArrayList<Pending> due = new ArrayList<Pending>();
+
+	private long smoothedRtt = 0;
+	private long rttVariance = 0;
+	private long rto = INITIAL_RTO;
+
+	private volatile LinkQualityEstimator linkQuality = null;
+
+	private Thread timerThread = new Thread();
+
+	/**
+	 * Constructor
+	 *
+	 * @param transmitter used to put commands on the wire
+	 */
+	public CommandRetransmitter(Transmitter transmitter) {
+		this.transmitter = transmitter;
+	}
+
+	/**
+	 * Start the retransmit timer
+	 */
+	public synchronized void start() {
+		timerThread.interrupt();
+		timerThread = new Thread(new TimerRunnable(), "Command retransmit");
+		timerThread.start();
+	}
+
+	/**
+	 * Stop the retransmit timer and drop all pending commands
+	 * <p>
+	 * The callback of every dropped command is told it failed. Once this returns, nothing more is
+	 * retransmitted.
+	 */
+	public void stop() {
+		Thread thread;
+		ArrayList<Pending> dropped;
+		synchronized (this) {
+			thread = timerThread;
+			thread.interrupt();
+			dropped = new ArrayList<Pending>(pending.values());
+			pending.clear();
+			for (int i = 0; i < WHEEL_SIZE; i++) wheel[i] = null;
+		}
+
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// notify outside the lock
+		for (Pending p : dropped) {
+			if (DEBUG) RobotLog.v("Dropping command: " + p.command.getName());
+			if (p.callback != null) p.callback.onFailed(p.command);
+		}
+	}
+
+	/**
+	 * Transmit a command now, and retransmit it until acknowledged
+	 *
+	 * @param command command to send
+	 * @param callback notified on completion; may be null
+	 */
+	public void send(Command command, CompletionCallback callback) {
+		synchronized (this) {
+			if (pending.containsKey(command)) return; // already in flight
+
+			Pending p = new Pending(command, callback, System.nanoTime(), rto);
+			pending.put(command, p);
+			schedule(p);
+		}
+
+		transmitter.transmit(command);
+	}
+
+	/**
+	 * Process a received ack
+	 *
+	 * @param ack acknowledged command, as received
+	 * @return true if the ack matched a pending command
+	 */
+	public boolean acknowledge(Command ack) {
+		Pending p;
+		synchronized (this) {
+			p = pending.remove(ack);
+			if (p == null) return false;
+
+			p.cancelled = true; // the wheel drops it when its slot comes around
+			if (p.attempts == 1) updateRtt(System.nanoTime() - p.firstSent);
+		}
+
+		p.command.acknowledge();
+		if (DEBUG) RobotLog.v("Command " + p.command.getName() + " has been acknowledged by remote device");
+		if (p.callback != null) p.callback.onAcknowledged(p.command);
+
+		return true;
+	}
+
+	/**
+	 * Also report round trip time samples to a link quality estimator
+	 *
+	 * @param linkQuality estimator; may be null
+	 */
+	public void setLinkQualityEstimator(LinkQualityEstimator linkQuality) {
+		this.linkQuality = linkQuality;
+	}
+
+	/**
+	 * Number of commands waiting for an ack
+	 *
+	 * @return pending command count
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Smoothed round trip time of acknowledged commands
+	 *
+	 * @return smoothed RTT in nanoseconds, or 0 if not yet measured
+	 */
+	public synchronized long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * Current retransmit timeout for newly sent commands
+	 *
+	 * @return RTO in nanoseconds
+	 */
+	public synchronized long getRetransmitTimeout() {
+		return rto;
+	}
+
+	private void updateRtt(long sample) {
+		LinkQualityEstimator linkQuality = this.linkQuality;
+		if (linkQuality != null) linkQuality.addRttSample(sample);
+
+		if (smoothedRtt == 0) {
+			smoothedRtt = sample;
+			rttVariance = sample / 2;
+		} else {
+			long err = sample - smoothedRtt;
+			smoothedRtt += err / 8;
+			rttVariance += (Math.abs(err) - rttVariance) / 4;
+		}
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRtt + 4 * rttVariance));
+	}
+
+	private void schedule(Pending p) {
+		long ticks = Math.max(1, (p.rto + TICK - 1) / TICK);
+		p.deadlineTick = currentTick + ticks;
+
+		int slot = (int) (p.deadlineTick & WHEEL_MASK);
+		p.next = wheel[slot];
+		wheel[slot] = p;
+	}
+
+	/*
+	 * Advance the wheel by one tick, retransmitting or expiring everything that is due
+	 */
+	private void advance() {
+		synchronized (this) {
+			currentTick += 1;
+			int slot = (int) (currentTick & WHEEL_MASK);
+
+			Pending prev = null;
+			Pending p = wheel[slot];
+			while (p != null) {
+				Pending next = p.next;
+				if (p.cancelled || p.deadlineTick <= currentTick) {
+					// unlink
+					if (prev == null) wheel[slot] = next; else prev.next = next;
+					p.next = null;
+					if (!p.cancelled) due.add(p);
+				} else {
+					prev = p;
+				}
+				p = next;
+			}
+
+			for (int i = 0; i < due.size(); i++) {
+				Pending d = due.get(i);
+				if (d.attempts >= MAX_ATTEMPTS) {
+					d.expired = true;
+					pending.remove(d.command);
+				} else {
+					d.attempts += 1;
+					d.rto = Math.min(MAX_RTO, d.rto * 2);
+					schedule(d);
+				}
+			}
+		}
+
+		// transmit and notify outside the lock
+		for (int i = 0; i < due.size(); i++) {
+			Pending d = due.get(i);
+			if (d.expired) {
+				RobotLog.w("Failed to send command, too many attempts: " + d.command.toString());
+				if (d.callback != null) d.callback.onFailed(d.command);
+			} else {
+				if (DEBUG) RobotLog.v("Sending command: " + d.command.getName() + ", attempt " + d.attempts);
+				transmitter.transmit(d.command);
+			}
+		}
+		due.clear();
+	}
+
+}
@@ -0,0 +1,187 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * One piece of a message too large for a single datagram
+ * <p>
+ * A sender splits the encoded message into fragments of at most RobocolConfig.MAX_FRAGMENT_SIZE
+ * bytes, all with the same message ID; FragmentReassembler puts them back together. Messages that
+ * fit in RobocolConfig.MAX_PACKET_SIZE are never fragmented.
+ *
+ * @see FragmentReassembler
+ */
+public class Fragment implements RobocolParsable {
+
+	/*
+	 * Fragment Format
+	 *
+	 *   Byte | Field
+	 * -------|-------------------------
+	 *    00  | Message type (FRAGMENT)
+	 * 01-02  | Payload length, in bytes
+	 * 03-04  | Message ID
+	 *    05  | Fragment index
+	 *    06  | Fragment count
+	 * 07-08  | Message length, in bytes
+	 * 09-10  | Offset of this fragment in the message
+	 *   11+  | Fragment data
+	 */
+
+	public static final int FRAGMENT_HEADER_LENGTH = 8;
+	public static final int MAX_DATA_SIZE = RobocolConfig.MAX_FRAGMENT_SIZE - HEADER_LENGTH - FRAGMENT_HEADER_LENGTH;
+	public static final int MAX_FRAGMENTS = 0xFF;
+
+	private int messageId;
+	private int index;
+	private int count;
+	private int messageLength;
+	private int offset;
+
+	private byte[] data;
+	private int dataOffset;
+	private int dataLength;
+
+	public Fragment() {
+		// default constructor
+	}
+
+	/**
+	 * Number of fragments a message is split into
+	 *
+	 * @param messageLength encoded message length, in bytes
+	 * @return fragment count
+	 */
+	public static int countFor(int messageLength) {
+		return (messageLength + MAX_DATA_SIZE - 1) / MAX_DATA_SIZE;
+	}
+
+	/**
+	 * Make this fragment a piece of an encoded message
+	 * <p>
+	 * The message is referenced, not copied, until this fragment is encoded.
+	 *
+	 * @param messageId ID shared by all fragments of the message
+	 * @param message encoded message
+	 * @param index which fragment, from 0 to countFor(message.length) - 1
+	 * @throws RobotCoreException if the message is too large to fragment
+	 */
+	public void set(int messageId, byte[] message, int index) throws RobotCoreException {
+		if (message.length > RobocolConfig.MAX_MESSAGE_SIZE || countFor(message.length) > MAX_FRAGMENTS) {
+			throw new RobotCoreException("Message of " + message.length + " bytes is too large to fragment");
+		}
+
+		this.messageId = messageId & 0xFFFF;
+		this.index = index;
+		this.count = countFor(message.length);
+		this.messageLength = message.length;
+		this.offset = index * MAX_DATA_SIZE;
+
+		this.data = message;
+		this.dataOffset = offset;
+		this.dataLength = Math.min(MAX_DATA_SIZE, message.length - offset);
+	}
+
+	public int getMessageId() {
+		return messageId;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getMessageLength() {
+		return messageLength;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getDataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * Copy the data of this fragment into place in a message buffer
+	 *
+	 * @param message buffer of at least getMessageLength() bytes
+	 */
+	public void copyDataTo(byte[] message) {
+		System.arraycopy(data, dataOffset, message, offset, dataLength);
+	}
+
+	@Override
+	public MsgType getRobocolMsgType() {
+		return MsgType.FRAGMENT;
+	}
+
+	@Override
+	public int encodedSize() {
+		return HEADER_LENGTH + FRAGMENT_HEADER_LENGTH + dataLength;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		if (buffer.remaining() < encodedSize()) {
+			throw new RobotCoreException("Expected buffer with at least " + encodedSize() + " bytes remaining, found " + buffer.remaining());
+		}
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort((short) (FRAGMENT_HEADER_LENGTH + dataLength));
+		buffer.putShort((short) messageId);
+		buffer.put((byte) index);
+		buffer.put((byte) count);
+		buffer.putShort((short) messageLength);
+		buffer.putShort((short) offset);
+		buffer.put(data, dataOffset, dataLength);
+	}
+
+	@Override
+	public byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * Decode a received fragment
+	 * <p>
+	 * The fragment data is referenced, not copied, until copyDataTo() is called.
+	 */
+	@Override
+	public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(byteArray);
+			buffer.get(); // type
+			int payloadLength = buffer.getShort() & 0xFFFF;
+
+			messageId = buffer.getShort() & 0xFFFF;
+			index = buffer.get() & 0xFF;
+			count = buffer.get() & 0xFF;
+			messageLength = buffer.getShort() & 0xFFFF;
+			offset = buffer.getShort() & 0xFFFF;
+
+			data = byteArray;
+			dataOffset = HEADER_LENGTH + FRAGMENT_HEADER_LENGTH;
+			dataLength = payloadLength - FRAGMENT_HEADER_LENGTH;
+		} catch (BufferUnderflowException e) {
+			throw new RobotCoreException("Fragment is truncated, received " + byteArray.length + " bytes");
+		}
+
+		if (dataLength < 0 || dataOffset + dataLength > byteArray.length) {
+			throw new RobotCoreException("Fragment payload length does not match its datagram");
+		}
+		if (messageLength < HEADER_LENGTH || count == 0 || index >= count || offset + dataLength > messageLength) {
+			throw new RobotCoreException("Malformed fragment " + index + "/" + count + " of message " + messageId);
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts fragmented messages back together
+ * <p>
+ * At most maxMessages messages are reassembled at once, each in a buffer of its own length, so
+ * memory use is bounded by maxMessages * RobocolConfig.MAX_MESSAGE_SIZE. A message that is still
+ * incomplete after the timeout is dropped, as is the oldest message when a new one arrives and
+ * every slot is in use. Expiry is checked as fragments arrive, so no timer thread is needed.
+ *
+ * @see Fragment
+ */
+public class FragmentReassembler {
+
+	public static final int DEFAULT_MAX_MESSAGES = 8;
+	public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+	/*
+	 * A message being reassembled
+	 */
+	private static class Partial {
+		int messageId = -1; // -1 if the slot is free
+		byte[] message;
+		boolean[] received;
+		int remaining;
+		long firstSeen;
+	}
+
+	private final Partial[] slots;
+	private final long timeout;
+	private final Fragment fragment = new Fragment();
+
+	private long completed = 0;
+	private long expired = 0;
+	private long dropped = 0;
+
+	/**
+	 * Constructor, with default limits
+	 */
+	public FragmentReassembler() {
+		this(DEFAULT_MAX_MESSAGES, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxMessages number of messages that can be reassembled at once
+	 * @param timeout time allowed for all fragments of a message to arrive, in nanoseconds
+	 */
+	public FragmentReassembler(int maxMessages, long timeout) {
+		this.slots = new Partial[maxMessages];
+		for (int i = 0; i < maxMessages; i++) slots[i] = new Partial();
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Add a received fragment
+	 *
+	 * @param msg received FRAGMENT datagram
+	 * @return the complete message if this was its last missing fragment; otherwise null
+	 * @throws RobotCoreException if the fragment is malformed
+	 */
+	public synchronized RobocolDatagram add(RobocolDatagram msg) throws RobotCoreException {
+		long now = System.nanoTime();
+		expire(now);
+
+		fragment.fromByteArray(msg.getData());
+
+		Partial partial = find(fragment.getMessageId());
+		if (partial == null) {
+			partial = allocate(now);
+		} else if (partial.message.length != fragment.getMessageLength() || partial.received.length != fragment.getCount()) {
+			// the ID has wrapped around to a new message; start over
+			dropped += 1;
+			partial.messageId = -1;
+			partial = allocate(now);
+		}
+
+		if (partial.received[fragment.getIndex()]) return null; // duplicate
+
+		fragment.copyDataTo(partial.message);
+		partial.received[fragment.getIndex()] = true;
+		partial.remaining -= 1;
+		if (partial.remaining > 0) return null;
+
+		RobocolDatagram complete = new RobocolDatagram(partial.message);
+		complete.setAddress(msg.getAddress());
+		partial.messageId = -1;
+		partial.message = null;
+		partial.received = null;
+		completed += 1;
+
+		return complete;
+	}
+
+	/**
+	 * Drop every partial message; call this when the sender changes
+	 */
+	public synchronized void reset() {
+		for (Partial partial : slots) {
+			partial.messageId = -1;
+			partial.message = null;
+			partial.received = null;
+		}
+	}
+
+	/**
+	 * Number of messages reassembled
+	 *
+	 * @return completed count
+	 */
+	public synchronized long getCompletedCount() {
+		return completed;
+	}
+
+	/**
+	 * Number of messages dropped because they were not complete in time
+	 *
+	 * @return expired count
+	 */
+	public synchronized long getExpiredCount() {
+		return expired;
+	}
+
+	/**
+	 * Number of partial messages dropped to make room, or replaced by a newer message
+	 *
+	 * @return dropped count
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	private Partial find(int messageId) {
+		for (Partial partial : slots) {
+			if (partial.messageId == messageId) return partial;
+		}
+		return null;
+	}
+
+	private Partial allocate(long now) {
+		Partial oldest = null;
+		for (Partial partial : slots) {
+			if (partial.messageId < 0) {
+				oldest = partial;
+				break;
+			}
+			if (oldest == null || partial.firstSeen - oldest.firstSeen < 0) oldest = partial;
+		}
+
+		if (oldest.messageId >= 0) {
+			RobotLog.w("Too many fragmented messages in flight, dropping message " + oldest.messageId);
+			dropped += 1;
+		}
+
+		oldest.messageId = fragment.getMessageId();
+		oldest.message = new byte[fragment.getMessageLength()];
+		oldest.received = new boolean[fragment.getCount()];
+		oldest.remaining = fragment.getCount();
+		oldest.firstSeen = now;
+		return oldest;
+	}
+
+	private void expire(long now) {
+		for (Partial partial : slots) {
+			if (partial.messageId >= 0 && now - partial.firstSeen > timeout) {
+				RobotLog.w("Fragmented message " + partial.messageId + " timed out, "
+						+ partial.remaining + " of " + partial.received.length + " fragments missing");
+				partial.messageId = -1;
+				partial.message = null;
+				partial.received = null;
+				expired += 1;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.TypeConversion;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Container that packs several RobocolParsable messages into one datagram
+ * <p>
+ * Messages are encoded into the frame as they are added, so later changes to a message do not
+ * affect the frame. A frame holding exactly one message is encoded as that message alone, so
+ * framing costs nothing when there is nothing to coalesce.
+ *
+ * @see FrameCoalescer
+ */
+public class Frame implements RobocolParsable {
+
+	/*
+	 * Frame Format
+	 *
+	 *   Byte | Field
+	 * -------|-------------------------
+	 *    00  | Message type (FRAME)
+	 * 01-02  | Payload length, in bytes
+	 *    03+ | Payload: complete Robocol packets, header included, back to back
+	 */
+
+	public static final int MAX_PAYLOAD_SIZE = RobocolConfig.MAX_PACKET_SIZE - RobocolParsable.HEADER_LENGTH;
+
+	private final ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+	private int messageCount = 0;
+
+	public Frame() {
+		// default constructor
+	}
+
+	/**
+	 * Encode a message into this frame
+	 *
+	 * @param message message to add
+	 * @return true if the message was added; false if it does not fit in the space remaining
+	 * @throws RobotCoreException if the message cannot be encoded
+	 */
+	public boolean add(RobocolParsable message) throws RobotCoreException {
+		if (message.encodedSize() > payload.remaining()) return false;
+
+		int start = payload.position();
+		try {
+			message.writeTo(payload);
+		} catch (RobotCoreException e) {
+			payload.position(start); // drop any partially written message
+			throw e;
+		}
+		messageCount += 1;
+		return true;
+	}
+
+	/**
+	 * Number of messages in this frame
+	 *
+	 * @return message count
+	 */
+	public int getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * Return true if no messages have been added since the last clear
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return messageCount == 0;
+	}
+
+	/**
+	 * Remove all messages from this frame
+	 */
+	public void clear() {
+		payload.clear();
+		messageCount = 0;
+	}
+
+	@Override
+	public MsgType getRobocolMsgType() {
+		return MsgType.FRAME;
+	}
+
+	@Override
+	public int encodedSize() {
+		if (messageCount == 1) return payload.position();
+
+		return RobocolParsable.HEADER_LENGTH + payload.position();
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		if (buffer.remaining() < encodedSize()) {
+			throw new RobotCoreException("Expected buffer with at least " + encodedSize() + " bytes remaining, found " + buffer.remaining());
+		}
+
+		// a lone message goes out as itself
+		if (messageCount != 1) {
+			buffer.put(getRobocolMsgType().asByte());
+			buffer.putShort((short) payload.position());
+		}
+		buffer.put(payload.array(), 0, payload.position());
+	}
+
+	@Override
+	public byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+		clear();
+
+		int count = countMessages(byteArray, byteArray.length);
+		if (byteArray.length - RobocolParsable.HEADER_LENGTH > payload.capacity()) {
+			throw new RobotCoreException("Frame of " + byteArray.length + " bytes exceeds max of " + RobocolConfig.MAX_PACKET_SIZE);
+		}
+
+		payload.put(byteArray, RobocolParsable.HEADER_LENGTH, byteArray.length - RobocolParsable.HEADER_LENGTH);
+		messageCount = count;
+	}
+
+	/**
+	 * Split a received FRAME datagram into one datagram per contained message
+	 * <p>
+	 * Each returned datagram owns a copy of its bytes and carries the address of the frame.
+	 *
+	 * @param frame datagram of type FRAME
+	 * @return contained messages, in the order they were added
+	 * @throws RobotCoreException if the frame is malformed
+	 */
+	public static RobocolDatagram[] unpack(RobocolDatagram frame) throws RobotCoreException {
+		byte[] data = frame.getData();
+		int length = frame.getLength();
+
+		RobocolDatagram[] messages = new RobocolDatagram[countMessages(data, length)];
+
+		int offset = RobocolParsable.HEADER_LENGTH;
+		for (int i = 0; i < messages.length; i++) {
+			int size = RobocolParsable.HEADER_LENGTH + payloadLength(data, offset);
+
+			byte[] message = new byte[size];
+			System.arraycopy(data, offset, message, 0, size);
+			messages[i] = new RobocolDatagram(message);
+			messages[i].setAddress(frame.getAddress());
+
+			offset += size;
+		}
+
+		return messages;
+	}
+
+	/*
+	 * Walk the contained headers, validating that every message lies within the frame
+	 */
+	private static int countMessages(byte[] data, int length) throws RobotCoreException {
+		if (length < RobocolParsable.HEADER_LENGTH) {
+			throw new RobotCoreException("Frame is shorter than a Robocol header");
+		}
+
+		int end = RobocolParsable.HEADER_LENGTH + payloadLength(data, 0);
+		if (end > length) {
+			throw new RobotCoreException("Frame payload of " + (end - RobocolParsable.HEADER_LENGTH)
+					+ " bytes exceeds datagram of " + length + " bytes");
+		}
+
+		int count = 0;
+		int offset = RobocolParsable.HEADER_LENGTH;
+		while (offset < end) {
+			if (offset + RobocolParsable.HEADER_LENGTH > end) {
+				throw new RobotCoreException("Truncated message header in frame at offset " + offset);
+			}
+			offset += RobocolParsable.HEADER_LENGTH + payloadLength(data, offset);
+			if (offset > end) {
+				throw new RobotCoreException("Truncated message in frame");
+			}
+			count += 1;
+		}
+
+		return count;
+	}
+
+	private static int payloadLength(byte[] data, int headerOffset) {
+		return (TypeConversion.unsignedByteToInt(data[headerOffset + 1]) << 8)
+				| TypeConversion.unsignedByteToInt(data[headerOffset + 2]);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Frame - messages: %d, size: %d", messageCount, encodedSize());
+	}
+
+}
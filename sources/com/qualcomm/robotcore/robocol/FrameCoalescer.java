@@ -0,0 +1,205 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces messages sent within a short window into a single Frame datagram
+ * <p>
+ * The first message queued into an empty frame starts the window. The frame is sent when the
+ * window expires, or sooner if the next message would not fit. Before start() and after stop(),
+ * messages are sent straight to the socket. Only enable this when the remote device understands
+ * MsgType.FRAME.
+ *
+ * @see Frame
+ */
+public class FrameCoalescer {
+
+	public static final long DEFAULT_WINDOW = TimeUnit.MILLISECONDS.toNanos(2);
+
+	private class FlushRunnable implements Runnable {
+
+		@Override
+		public void run() {
+			synchronized (FrameCoalescer.this) {
+				try {
+					while (running) {
+						if (frame.isEmpty()) {
+							FrameCoalescer.this.wait();
+							continue;
+						}
+
+						long remaining = deadline - System.nanoTime();
+						if (remaining > 0) {
+							FrameCoalescer.this.wait(remaining / 1000000, (int) (remaining % 1000000));
+						} else {
+							flushLocked();
+						}
+					}
+				} catch (InterruptedException e) {
+					// if we are interrupted, shut down this thread
+				}
+
+				flushLocked();
+			}
+		}
+	}
+
+	private final RobocolDatagramSocket socket;
+	private final long window;
+	private final Frame frame = new Frame();
+
+	private Thread flushThread = new Thread();
+	private boolean running = false;
+	private long deadline = 0;
+
+	private long messagesSent = 0;
+	private long datagramsSent = 0;
+
+	/**
+	 * Constructor, with default window
+	 *
+	 * @param socket socket to send frames through
+	 */
+	public FrameCoalescer(RobocolDatagramSocket socket) {
+		this(socket, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param socket socket to send frames through
+	 * @param window coalescing window, in nanoseconds
+	 */
+	public FrameCoalescer(RobocolDatagramSocket socket, long window) {
+		this.socket = socket;
+		this.window = window;
+	}
+
+	/**
+	 * Start the thread that flushes expired frames
+	 */
+	public synchronized void start() {
+		if (running) return;
+
+		running = true;
+		flushThread = new Thread(new FlushRunnable(), "Frame coalescer");
+		flushThread.start();
+	}
+
+	/**
+	 * Flush any pending messages and stop the flush thread
+	 * <p>
+	 * Pending messages have been handed to the socket by the time this method returns.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			if (!running) return;
+			running = false;
+			thread = flushThread;
+			notifyAll();
+		}
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+	}
+
+	/**
+	 * Queue a message for sending
+	 * <p>
+	 * The message is encoded immediately; it may be modified as soon as this method returns.
+	 *
+	 * @param message message to send
+	 */
+	public synchronized void send(RobocolParsable message) {
+		if (!running) {
+			flushLocked();
+			socket.send(message);
+			messagesSent += 1;
+			datagramsSent += 1;
+			return;
+		}
+
+		try {
+			if (frame.add(message)) {
+				onAdded();
+				return;
+			}
+
+			// no room left in this frame, send what we have and start a new one
+			flushLocked();
+			if (frame.add(message)) {
+				onAdded();
+				return;
+			}
+		} catch (RobotCoreException e) {
+			RobotLog.w("Unable to frame " + message.getRobocolMsgType() + " message: " + e.toString());
+			return;
+		}
+
+		// too large to share a frame with anything, send it on its own
+		socket.send(message);
+		messagesSent += 1;
+		datagramsSent += 1;
+	}
+
+	/**
+	 * Send any pending messages now
+	 */
+	public synchronized void flush() {
+		flushLocked();
+	}
+
+	/**
+	 * Total number of messages sent through this coalescer
+	 *
+	 * @return message count
+	 */
+	public synchronized long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * Total number of datagrams put on the wire by this coalescer
+	 *
+	 * @return datagram count
+	 */
+	public synchronized long getDatagramsSent() {
+		return datagramsSent;
+	}
+
+	/**
+	 * Number of datagrams saved by coalescing, compared to sending one datagram per message
+	 *
+	 * @return datagrams saved
+	 */
+	public synchronized long getDatagramsSaved() {
+		return messagesSent - datagramsSent;
+	}
+
+	private void onAdded() {
+		messagesSent += 1;
+		if (frame.getMessageCount() == 1) {
+			// first message starts the window
+			deadline = System.nanoTime() + window;
+			notifyAll();
+		}
+	}
+
+	private void flushLocked() {
+		if (frame.isEmpty()) return;
+
+		socket.send(frame);
+		datagramsSent += 1;
+		frame.clear();
+	}
+
+}
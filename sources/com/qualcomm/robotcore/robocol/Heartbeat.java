@@ -31,9 +31,7 @@
 package com.qualcomm.robotcore.robocol;
 
 import com.qualcomm.robotcore.exception.RobotCoreException;
-import com.qualcomm.robotcore.util.RobotLog;
 
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 /**
@@ -118,21 +116,37 @@ public class Heartbeat implements RobocolParsable {
 		return RobocolParsable.MsgType.HEARTBEAT;
 	}
 
+	/**
+	 * Size of this Heartbeat once encoded
+	 */
+	@Override
+	public int encodedSize() {
+		return BUFFER_SIZE;
+	}
+
+	/**
+	 * Write this Heartbeat into a buffer
+	 */
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		if (buffer.remaining() < BUFFER_SIZE) {
+			throw new RobotCoreException("Expected buffer with at least " + BUFFER_SIZE + " bytes remaining, found " + buffer.remaining());
+		}
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort(PAYLOAD_SIZE);
+
+		buffer.putShort(sequenceNumber);
+		buffer.putLong(timestamp);
+	}
+
 	/**
 	 * Convert this Heartbeat into a byte array
 	 */
 	@Override
 	public byte[] toByteArray() throws RobotCoreException {
 		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-		try {
-			buffer.put(getRobocolMsgType().asByte());
-			buffer.putShort(PAYLOAD_SIZE);
-
-			buffer.putShort(sequenceNumber);
-			buffer.putLong(timestamp);
-		} catch (BufferOverflowException e) {
-			RobotLog.logStacktrace(e);
-		}
+		writeTo(buffer);
 		return buffer.array();
 	}
 
@@ -0,0 +1,255 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.LogLinearHistogram;
+
+/**
+ * Estimates link quality from heartbeat traffic
+ * <p>
+ * The device receiving heartbeats feeds each one to onHeartbeatReceived(). Sequence numbers give
+ * the loss rate, reordering and duplicates; the variation in (arrival time - send timestamp)
+ * gives the interarrival jitter as defined by RFC 3550, which is valid even though the two
+ * timestamps come from different clocks.
+ * <p>
+ * Round trip time needs a timestamp from this device's own clock. The device that originates
+ * heartbeats feeds each echo to onHeartbeatEchoed(); other round trip measurements, such as
+ * command acks, can be fed to addRttSample().
+ */
+public class LinkQualityEstimator {
+
+	private static final int SEQUENCE_MODULUS = Heartbeat.MAX_SEQUENCE_NUMBER + 1;
+
+	// gaps larger than this are treated as a restart of the remote sequence, not as loss
+	private static final int MAX_SEQUENCE_GAP = SEQUENCE_MODULUS / 2;
+
+	// weight given to each new packet by the recent loss rate
+	private static final double LOSS_GAIN = 1.0 / 32;
+	private static final int MAX_LOSS_UPDATES = 64;
+
+	private final LogLinearHistogram rttHistogram = new LogLinearHistogram();
+	private long smoothedRtt = 0;
+	private long rttVariance = 0;
+	private long lastRtt = 0;
+
+	private boolean haveSequence = false;
+	private int highestSequence = 0;
+	private long expected = 0;
+	private long received = 0;
+	private long reordered = 0;
+	private long duplicates = 0;
+	private double recentLossRate = 0;
+
+	private boolean haveTransit = false;
+	private long lastTransit = 0;
+	private double jitter = 0;
+
+	/**
+	 * Forget everything; call this when the remote device changes
+	 */
+	public synchronized void reset() {
+		rttHistogram.reset();
+		smoothedRtt = 0;
+		rttVariance = 0;
+		lastRtt = 0;
+		haveSequence = false;
+		highestSequence = 0;
+		expected = 0;
+		received = 0;
+		reordered = 0;
+		duplicates = 0;
+		recentLossRate = 0;
+		haveTransit = false;
+		lastTransit = 0;
+		jitter = 0;
+	}
+
+	/**
+	 * Record a heartbeat sent by the remote device
+	 *
+	 * @param heartbeat received heartbeat
+	 * @param arrival System.nanoTime() at arrival
+	 */
+	public synchronized void onHeartbeatReceived(Heartbeat heartbeat, long arrival) {
+		int sequence = heartbeat.getSequenceNumber();
+
+		if (!haveSequence) {
+			haveSequence = true;
+			highestSequence = sequence;
+			expected = 1;
+			received = 1;
+		} else {
+			int distance = (sequence - highestSequence + SEQUENCE_MODULUS) % SEQUENCE_MODULUS;
+			if (distance == 0) {
+				duplicates += 1;
+				return;
+			} else if (distance < MAX_SEQUENCE_GAP) {
+				// in order, possibly after a gap
+				highestSequence = sequence;
+				expected += distance;
+				received += 1;
+				updateLossRate(distance);
+			} else {
+				// arrived after a later heartbeat; it was counted as lost, now it isn't
+				reordered += 1;
+				received += 1;
+				return; // transit of a late packet says nothing about current jitter
+			}
+		}
+
+		long transit = arrival - heartbeat.getTimestamp();
+		if (haveTransit) {
+			jitter += (Math.abs(transit - lastTransit) - jitter) / 16.0;
+		}
+		haveTransit = true;
+		lastTransit = transit;
+	}
+
+	/**
+	 * Record the echo of a heartbeat this device sent
+	 *
+	 * @param heartbeat echoed heartbeat
+	 * @param arrival System.nanoTime() at arrival
+	 */
+	public void onHeartbeatEchoed(Heartbeat heartbeat, long arrival) {
+		addRttSample(arrival - heartbeat.getTimestamp());
+	}
+
+	/**
+	 * Record a round trip time measurement
+	 *
+	 * @param rtt round trip time in nanoseconds
+	 */
+	public synchronized void addRttSample(long rtt) {
+		if (rtt < 0) return;
+
+		lastRtt = rtt;
+		rttHistogram.record(rtt);
+
+		if (smoothedRtt == 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			long err = rtt - smoothedRtt;
+			smoothedRtt += err / 8;
+			rttVariance += (Math.abs(err) - rttVariance) / 4;
+		}
+	}
+
+	/**
+	 * @return smoothed round trip time in nanoseconds, or 0 if not measured
+	 */
+	public synchronized long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return mean deviation of the round trip time in nanoseconds
+	 */
+	public synchronized long getRttVariance() {
+		return rttVariance;
+	}
+
+	/**
+	 * @return most recent round trip time in nanoseconds, or 0 if not measured
+	 */
+	public synchronized long getLastRtt() {
+		return lastRtt;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return round trip time at that percentile in nanoseconds, or 0 if not measured
+	 */
+	public synchronized long getRttPercentile(double percentile) {
+		return rttHistogram.getPercentile(percentile);
+	}
+
+	/**
+	 * @return number of round trip samples recorded
+	 */
+	public synchronized long getRttSampleCount() {
+		return rttHistogram.getCount();
+	}
+
+	/**
+	 * @return interarrival jitter in nanoseconds
+	 */
+	public synchronized long getJitter() {
+		return (long) jitter;
+	}
+
+	/**
+	 * @return fraction of heartbeats lost since the last reset, between 0 and 1
+	 */
+	public synchronized double getLossRate() {
+		if (expected == 0) return 0;
+
+		return Math.max(0, (double) (expected - received) / expected);
+	}
+
+	/**
+	 * @return exponentially weighted fraction of recent heartbeats lost, between 0 and 1
+	 */
+	public synchronized double getRecentLossRate() {
+		return recentLossRate;
+	}
+
+	/**
+	 * @return number of heartbeats received
+	 */
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return number of heartbeats presumed lost; reordered heartbeats are not counted
+	 */
+	public synchronized long getLost() {
+		return Math.max(0, expected - received);
+	}
+
+	/**
+	 * @return number of heartbeats that arrived after a later heartbeat
+	 */
+	public synchronized long getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * @return number of duplicate heartbeats
+	 */
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Add a summary of the current estimates to a telemetry record
+	 * <p>
+	 * Times are reported in milliseconds.
+	 *
+	 * @param telemetry telemetry to add to
+	 */
+	public synchronized void addTo(Telemetry telemetry) {
+		final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+		telemetry.addData("rtt", smoothedRtt / NANOSECONDS_PER_MILLISECOND);
+		telemetry.addData("rtt var", rttVariance / NANOSECONDS_PER_MILLISECOND);
+		telemetry.addData("rtt p50", rttHistogram.getPercentile(50) / NANOSECONDS_PER_MILLISECOND);
+		telemetry.addData("rtt p99", rttHistogram.getPercentile(99) / NANOSECONDS_PER_MILLISECOND);
+		telemetry.addData("rtt max", rttHistogram.getMax() / NANOSECONDS_PER_MILLISECOND);
+		telemetry.addData("jitter", jitter / NANOSECONDS_PER_MILLISECOND);
+		telemetry.addData("loss", (float) getLossRate());
+		telemetry.addData("loss recent", (float) recentLossRate);
+		telemetry.addData("reordered", (float) reordered);
+		telemetry.addData("duplicates", (float) duplicates);
+	}
+
+	private void updateLossRate(int distance) {
+		// distance - 1 heartbeats were skipped, then one arrived
+		int lost = Math.min(distance - 1, MAX_LOSS_UPDATES);
+		for (int i = 0; i < lost; i++) {
+			recentLossRate += (1 - recentLossRate) * LOSS_GAIN;
+		}
+		recentLossRate -= recentLossRate * LOSS_GAIN;
+	}
+
+}
@@ -0,0 +1,284 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.util.ArrayDeque;
+
+/**
+ * Routes received datagrams to handlers, by message type byte
+ * <p>
+ * Each type is handled either inline, on the thread calling dispatch(), or on a lane: a thread of
+ * its own, named after the type, which handles that type's messages in order. Use a lane for
+ * anything that may be slow, so it can't hold up the messages behind it. Types that are not in
+ * MsgType can be registered by their type byte.
+ */
+public class MsgDispatcher {
+
+	// messages waiting on a lane beyond this are dropped
+	public static final int MAX_LANE_BACKLOG = 256;
+
+	private static final int TABLE_SIZE = 256;
+
+	// how long stop() waits for a lane busy in its handler to exit, in milliseconds
+	private static final long LANE_STOP_TIMEOUT = 1000;
+
+	/**
+	 * Handles one message type
+	 */
+	public interface Handler {
+		void handle(RobocolDatagram msg) throws RobotCoreException;
+	}
+
+	private static class Registration {
+		final String name;
+		final Handler handler;
+		final boolean onLane;
+		volatile Lane lane = null;
+
+		Registration(String name, Handler handler, boolean onLane) {
+			this.name = name;
+			this.handler = handler;
+			this.onLane = onLane;
+		}
+	}
+
+	/*
+	 * A thread handling the messages of one type in order, with its own bounded queue
+	 */
+	private static class Lane implements Runnable {
+		private final Handler handler;
+		private final ArrayDeque<RobocolDatagram> queue = new ArrayDeque<RobocolDatagram>();
+		private final Thread thread;
+		private boolean running = true;
+
+		Lane(String name, Handler handler) {
+			this.handler = handler;
+			this.thread = new Thread(this, "Dispatch " + name);
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		/*
+		 * Stop taking messages; the thread exits once it has handled those already waiting
+		 */
+		synchronized void finish() {
+			running = false;
+			notifyAll();
+		}
+
+		/*
+		 * Drop the messages waiting, interrupt the handler and wait for the thread to exit
+		 */
+		void stop() {
+			synchronized (this) {
+				running = false;
+				queue.clear();
+				notifyAll();
+			}
+
+			thread.interrupt();
+			if (Thread.currentThread() == thread) return; // stopped by the handler
+
+			try {
+				thread.join(LANE_STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (thread.isAlive()) RobotLog.w(thread.getName() + " did not stop in time; abandoning it");
+		}
+
+		/*
+		 * Queue a message; false if the lane is stopped or too far behind
+		 */
+		synchronized boolean offer(RobocolDatagram msg) {
+			if (!running || queue.size() >= MAX_LANE_BACKLOG) return false;
+
+			queue.add(msg);
+			notifyAll();
+			return true;
+		}
+
+		synchronized int getBacklog() {
+			return queue.size();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					RobocolDatagram msg;
+					synchronized (this) {
+						while (running && queue.isEmpty()) wait();
+						msg = queue.poll();
+					}
+					if (msg == null) break;
+
+					handle(msg);
+				}
+			} catch (InterruptedException e) {
+				// if we are interrupted, shut down this thread
+			}
+		}
+
+		private void handle(RobocolDatagram msg) {
+			try {
+				handler.handle(msg);
+			} catch (RobotCoreException e) {
+				RobotLog.w("Cannot process " + msg.getMsgType() + " event: " + e);
+			} catch (RuntimeException e) {
+				// keep the lane alive for the next message
+				RobotLog.e("Handler threw an exception while processing " + msg.getMsgType() + " event");
+				RobotLog.logStacktrace(e);
+			}
+		}
+	}
+
+	// copied on write, so dispatch() never locks
+	private volatile Registration[] table = new Registration[TABLE_SIZE];
+	private boolean running = false;
+
+	/**
+	 * Handle a message type on the thread that calls dispatch()
+	 * <p>
+	 * Replaces any handler already registered for the type.
+	 *
+	 * @param type message type
+	 * @param handler handler
+	 */
+	public void registerInline(RobocolParsable.MsgType type, Handler handler) {
+		register(type.asByte(), new Registration(type.name(), handler, false));
+	}
+
+	/**
+	 * Handle a message type on a lane of its own
+	 * <p>
+	 * Replaces any handler already registered for the type.
+	 *
+	 * @param type message type
+	 * @param handler handler
+	 */
+	public void registerOnLane(RobocolParsable.MsgType type, Handler handler) {
+		register(type.asByte(), new Registration(type.name(), handler, true));
+	}
+
+	/**
+	 * Register a handler for a type byte that is not in MsgType
+	 *
+	 * @param type message type byte
+	 * @param handler handler
+	 * @param onLane true to handle on a lane of its own, false to handle inline
+	 */
+	public void register(byte type, Handler handler, boolean onLane) {
+		register(type, new Registration("type " + (type & 0xFF), handler, onLane));
+	}
+
+	/**
+	 * Remove the handler of a message type
+	 *
+	 * @param type message type byte
+	 */
+	public synchronized void unregister(byte type) {
+		Registration[] newTable = table.clone();
+		Registration old = newTable[type & 0xFF];
+		newTable[type & 0xFF] = null;
+		table = newTable;
+
+		if (old != null && old.lane != null) old.lane.finish();
+	}
+
+	/**
+	 * Start the lanes
+	 */
+	public synchronized void start() {
+		running = true;
+		for (Registration registration : table) {
+			if (registration != null && registration.onLane && registration.lane == null) {
+				startLane(registration);
+			}
+		}
+	}
+
+	/**
+	 * Stop the lanes, dropping any messages waiting on them; registrations are kept
+	 * <p>
+	 * Waits for each lane thread to exit, unless called from one of them.
+	 */
+	public synchronized void stop() {
+		running = false;
+		for (Registration registration : table) {
+			if (registration != null && registration.lane != null) {
+				registration.lane.stop();
+				registration.lane = null;
+			}
+		}
+	}
+
+	/**
+	 * Route a received message to its handler
+	 * <p>
+	 * A message handed to a lane is copied first, since the socket may reuse it.
+	 *
+	 * @param msg received message
+	 * @return false if no handler is registered for the message type
+	 * @throws RobotCoreException if an inline handler fails
+	 */
+	public boolean dispatch(RobocolDatagram msg) throws RobotCoreException {
+		Registration registration = table[msg.getData()[0] & 0xFF];
+		if (registration == null) return false;
+
+		if (!registration.onLane) {
+			registration.handler.handle(msg);
+			return true;
+		}
+
+		Lane lane = registration.lane;
+		if (lane == null) {
+			RobotLog.w("Dropping " + msg.getMsgType() + " event, dispatcher is not running");
+			return true;
+		}
+
+		if (lane.getBacklog() >= MAX_LANE_BACKLOG) {
+			RobotLog.w("Dropping " + msg.getMsgType() + " event, handler is too far behind");
+			return true;
+		}
+
+		// may still be refused if the lane stopped or filled up since the check
+		lane.offer(msg.copy());
+		return true;
+	}
+
+	/**
+	 * Number of messages waiting on the lane of a message type
+	 *
+	 * @param type message type byte
+	 * @return backlog; 0 if the type is handled inline
+	 */
+	public int getBacklog(byte type) {
+		Registration registration = table[type & 0xFF];
+		if (registration == null) return 0;
+
+		Lane lane = registration.lane;
+		return lane == null ? 0 : lane.getBacklog();
+	}
+
+	private synchronized void register(byte type, Registration registration) {
+		if (registration.onLane && running) startLane(registration);
+
+		Registration[] newTable = table.clone();
+		Registration old = newTable[type & 0xFF];
+		newTable[type & 0xFF] = registration;
+		table = newTable;
+
+		if (old != null && old.lane != null) old.lane.finish();
+	}
+
+	private void startLane(Registration registration) {
+		Lane lane = new Lane(registration.name, registration.handler);
+		lane.start();
+		registration.lane = lane;
+	}
+
+}
@@ -34,7 +34,6 @@ package com.qualcomm.robotcore.robocol;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.RobotLog;
 
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 public class PeerDiscovery implements RobocolParsable {
@@ -107,18 +106,35 @@ public class PeerDiscovery implements RobocolParsable {
 		return RobocolParsable.MsgType.PEER_DISCOVERY;
 	}
 
+	@Override
+	public int encodedSize() {
+		return BUFFER_SIZE;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		if (buffer.remaining() < BUFFER_SIZE) {
+			throw new RobotCoreException("Expected buffer with at least " + BUFFER_SIZE + " bytes remaining, found " + buffer.remaining());
+		}
+
+		int start = buffer.position();
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort(PAYLOAD_SIZE);
+
+		buffer.put(ROBOCOL_VERSION);
+		buffer.put(peerType.asByte());
+
+		// the remainder of the payload is reserved; zero fill it as allocate() used to
+		while (buffer.position() < start + BUFFER_SIZE) {
+			buffer.put((byte) 0);
+		}
+	}
+
 	@Override
 	public byte[] toByteArray() throws RobotCoreException {
 		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-		try {
-			buffer.put(getRobocolMsgType().asByte());
-			buffer.putShort(PAYLOAD_SIZE);
-
-			buffer.put(ROBOCOL_VERSION);
-			buffer.put(peerType.asByte());
-		} catch (BufferOverflowException e) {
-			RobotLog.logStacktrace(e);
-		}
+		writeTo(buffer);
 		return buffer.array();
 	}
 
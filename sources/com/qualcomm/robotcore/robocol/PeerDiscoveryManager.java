@@ -31,7 +31,6 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
 
 package com.qualcomm.robotcore.robocol;
 
-import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.RobotLog;
 
 import java.net.InetAddress;
@@ -49,13 +48,11 @@ public class PeerDiscoveryManager {
 
 		@Override
 		public void run() {
-			try {
-				RobotLog.v("Sending peer discovery packet");
-				RobocolDatagram packet = new RobocolDatagram(message);
-				if (socket.getInetAddress() == null) packet.setAddress(peerDiscoveryDevice);
-				socket.send(packet);
-			} catch (RobotCoreException e) {
-				RobotLog.d("Unable to send peer discovery packet: " + e.toString());
+			RobotLog.v("Sending peer discovery packet");
+			if (socket.getInetAddress() == null) {
+				socket.send(message, peerDiscoveryDevice);
+			} else {
+				socket.send(message);
 			}
 		}
 	}
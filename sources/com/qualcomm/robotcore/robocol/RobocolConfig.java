@@ -38,7 +38,6 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.SocketOptions;
 import java.util.ArrayList;
 import java.util.Enumeration;
 
@@ -47,7 +46,22 @@ import java.util.Enumeration;
  */
 public class RobocolConfig {
 
-	public static final int MAX_PACKET_SIZE = SocketOptions.SO_RCVBUF;
+	/**
+	 * Largest datagram sent or received. This was once SocketOptions.SO_RCVBUF, which is an
+	 * option ID rather than a size; the value is kept so deployed peers stay compatible.
+	 * Larger messages are sent as fragments.
+	 */
+	public static final int MAX_PACKET_SIZE = 4098;
+
+	/**
+	 * Largest fragment datagram; small enough to avoid IP fragmentation on a 1500 byte MTU
+	 */
+	public static final int MAX_FRAGMENT_SIZE = 1400;
+
+	/**
+	 * Largest message, header included, that can be sent; the header payload length is 16 bits
+	 */
+	public static final int MAX_MESSAGE_SIZE = 0xFFFF;
 
 	public static final int PORT_NUMBER = 20884;
 
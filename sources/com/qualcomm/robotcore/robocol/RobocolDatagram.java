@@ -4,6 +4,7 @@ import com.qualcomm.robotcore.exception.RobotCoreException;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 /**
  * RobocolDatagram
@@ -13,6 +14,7 @@ import java.net.InetAddress;
 public class RobocolDatagram {
 
 	private DatagramPacket packet;
+	private ByteBuffer buffer = null;
 
 	/**
 	 * Construct a RobocolDatagram from a RobocolParsable
@@ -33,6 +35,19 @@ public class RobocolDatagram {
 		setData(message);
 	}
 
+	/**
+	 * Construct a reusable RobocolDatagram with a backing buffer of the given capacity
+	 * <p>
+	 * Use {@link #pack(RobocolParsable)} to encode a message into this datagram. The backing
+	 * buffer and packet are reused for every message, so no allocation is done per message.
+	 *
+	 * @param capacity size of the backing buffer, in bytes
+	 */
+	public RobocolDatagram(int capacity) {
+		buffer = ByteBuffer.allocate(capacity);
+		packet = new DatagramPacket(buffer.array(), 0);
+	}
+
 	protected RobocolDatagram(DatagramPacket packet) {
 		this.packet = packet;
 	}
@@ -81,6 +96,40 @@ public class RobocolDatagram {
 		packet = new DatagramPacket(data, data.length);
 	}
 
+	/**
+	 * Encode a message into the backing buffer of a reusable RobocolDatagram
+	 * <p>
+	 * The previous contents and address of this datagram are discarded.
+	 *
+	 * @param message the RobocolParsable message
+	 * @throws RobotCoreException if the message cannot be encoded into the backing buffer
+	 * @see #RobocolDatagram(int)
+	 */
+	public void pack(RobocolParsable message) throws RobotCoreException {
+		if (buffer == null) {
+			throw new RobotCoreException("RobocolDatagram was not constructed with a backing buffer");
+		}
+
+		buffer.clear();
+		message.writeTo(buffer);
+		packet.setData(buffer.array(), 0, buffer.position());
+		packet.setAddress(null);
+	}
+
+	/**
+	 * Copy this datagram, so it can be kept after the socket reuses it
+	 *
+	 * @return copy of the data and address of this datagram
+	 */
+	public RobocolDatagram copy() {
+		byte[] data = new byte[packet.getLength()];
+		System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+
+		RobocolDatagram copy = new RobocolDatagram(data);
+		copy.setAddress(packet.getAddress());
+		return copy;
+	}
+
 	public InetAddress getAddress() {
 		return packet.getAddress();
 	}
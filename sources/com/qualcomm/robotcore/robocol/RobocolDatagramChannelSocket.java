@@ -0,0 +1,208 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * RobocolDatagramSocket backed by a non-blocking DatagramChannel and a Selector.
+ * <p>
+ * Each wakeup of the selector drains every datagram queued on the channel. recv() blocks in the
+ * selector while nothing is queued, instead of returning null, so the receive loop never spins.
+ * Every datagram returned by recv() owns a copy of its bytes; it is never overwritten by a
+ * later receive.
+ */
+public class RobocolDatagramChannelSocket extends RobocolDatagramSocket {
+
+	private static final boolean DEBUG = false;
+
+	// upper bound on datagrams pulled off the channel per selector wakeup
+	private static final int MAX_DRAIN = 64;
+
+	private final ByteBuffer recvBuffer = ByteBuffer.allocateDirect(RobocolConfig.MAX_PACKET_SIZE);
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(RobocolConfig.MAX_PACKET_SIZE);
+
+	// only touched by the thread calling recv()
+	private final Queue<RobocolDatagram> pending = new ArrayDeque<RobocolDatagram>(MAX_DRAIN);
+
+	private DatagramChannel channel;
+	private Selector selector;
+
+	public RobocolDatagramChannelSocket() {
+		super();
+	}
+
+	@Override
+	public void bind(InetSocketAddress bindAddress) throws SocketException {
+
+		if (state != State.CLOSED) {
+			close();
+		}
+		state = State.LISTENING;
+
+		// start up the channel
+		RobotLog.d("RobocolDatagramChannelSocket binding to " + bindAddress.toString());
+		try {
+			channel = DatagramChannel.open();
+			channel.socket().bind(bindAddress);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			throw asSocketException("unable to bind channel", e);
+		}
+	}
+
+	@Override
+	public void connect(InetAddress connectAddress) throws SocketException {
+		InetSocketAddress addr = new InetSocketAddress(connectAddress, RobocolConfig.PORT_NUMBER);
+		RobotLog.d("RobocolDatagramChannelSocket connected to " + addr.toString());
+		try {
+			channel.connect(addr);
+		} catch (IOException e) {
+			throw asSocketException("unable to connect channel", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		state = State.CLOSED;
+
+		try {
+			if (selector != null) {
+				selector.wakeup();
+				selector.close();
+			}
+			if (channel != null) channel.close();
+		} catch (IOException e) {
+			RobotLog.d("RobocolDatagramChannelSocket close error: " + e.toString());
+		}
+
+		super.close();
+	}
+
+	@Override
+	public void send(RobocolDatagram message) {
+
+		synchronized (sendBuffer) {
+			try {
+				record(TrafficRecorder.SENT, message);
+				sendBuffer.clear();
+				sendBuffer.put(message.getData(), 0, message.getLength());
+				sendBuffer.flip();
+
+				if (channel.isConnected()) {
+					channel.write(sendBuffer);
+				} else {
+					channel.send(sendBuffer, new InetSocketAddress(message.getAddress(), RobocolConfig.PORT_NUMBER));
+				}
+				if (DEBUG) RobotLog.v("sent network packet, " + message.getLength() + " bytes");
+			} catch (IllegalArgumentException e) {
+				RobotLog.w("Unable to send RobocolDatagram: " + e.toString());
+				RobotLog.w("               " + message.toString());
+			} catch (IOException e) {
+				// channel was unable to send
+				RobotLog.w("Unable to send RobocolDatagram: " + e.toString());
+				RobotLog.w("               " + message.toString());
+			} catch (NullPointerException e) {
+				RobotLog.w("Unable to send RobocolDatagram: " + e.toString());
+				RobotLog.w("               " + message.toString());
+			}
+		}
+	}
+
+	/**
+	 * Receive a RobocolDatagram packet
+	 * <p>
+	 * Blocks until a datagram is available.
+	 *
+	 * @return packet; or null if the socket has been closed
+	 */
+	@Override
+	public RobocolDatagram recv() {
+
+		while (pending.isEmpty()) {
+			if (state == State.CLOSED) return null;
+
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+				drain();
+			} catch (PortUnreachableException e) {
+				RobotLog.d("RobocolDatagramChannelSocket receive error: remote port unreachable");
+			} catch (ClosedChannelException e) {
+				return null;
+			} catch (ClosedSelectorException e) {
+				return null;
+			} catch (IOException e) {
+				RobotLog.d("RobocolDatagramChannelSocket receive error: " + e.toString());
+			} catch (NullPointerException e) {
+				// not yet bound
+				RobotLog.d("RobocolDatagramChannelSocket receive error: " + e.toString());
+				return null;
+			}
+		}
+
+		return pending.poll();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		if (channel == null) return null;
+
+		return channel.socket().getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		if (channel == null) return null;
+
+		return channel.socket().getLocalAddress();
+	}
+
+	/*
+	 * Pull every queued datagram off the channel, giving each its own copy of the bytes
+	 */
+	private void drain() throws IOException {
+		while (pending.size() < MAX_DRAIN) {
+			recvBuffer.clear();
+			SocketAddress from = channel.receive(recvBuffer);
+			if (from == null) return; // nothing left queued
+
+			recvBuffer.flip();
+			if (recvBuffer.remaining() == 0) continue; // nothing to dispatch
+
+			byte[] data = new byte[recvBuffer.remaining()];
+			recvBuffer.get(data);
+
+			RobocolDatagram msg = new RobocolDatagram(data);
+			msg.setAddress(((InetSocketAddress) from).getAddress());
+			record(TrafficRecorder.RECEIVED, msg);
+			pending.add(msg);
+
+			if (DEBUG) RobotLog.v("received network packet from " + msg.getAddress().toString());
+		}
+	}
+
+	private static SocketException asSocketException(String msg, IOException e) {
+		if (e instanceof SocketException) return (SocketException) e;
+
+		SocketException se = new SocketException(msg + ": " + e.toString());
+		se.initCause(e);
+		return se;
+	}
+
+}
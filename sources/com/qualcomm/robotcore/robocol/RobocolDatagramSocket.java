@@ -1,5 +1,6 @@
 package com.qualcomm.robotcore.robocol;
 
+import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.RobotLog;
 
 import java.io.IOException;
@@ -31,7 +32,14 @@ public class RobocolDatagramSocket {
 	private final DatagramPacket packetRecv = new DatagramPacket(buffer, buffer.length);
 	private final RobocolDatagram msgRecv = new RobocolDatagram();
 
-	volatile private State state;
+	// reused by send(RobocolParsable), along with the fragment state; guarded by itself
+	private final RobocolDatagram msgSend = new RobocolDatagram(RobocolConfig.MAX_PACKET_SIZE);
+	private final Fragment fragment = new Fragment();
+	private int nextFragmentedMessageId = 0;
+
+	volatile protected State state;
+
+	private volatile TrafficRecorder recorder = null;
 
 	public RobocolDatagramSocket() {
 		state = State.CLOSED;
@@ -70,6 +78,7 @@ public class RobocolDatagramSocket {
 	public void send(RobocolDatagram message) {
 
 		try {
+			record(TrafficRecorder.SENT, message);
 			socket.send(message.getPacket());
 			if (DEBUG) RobotLog.v("sent network packet to " + message.getPacket().getAddress().toString());
 		} catch (IllegalArgumentException e) {
@@ -85,6 +94,62 @@ public class RobocolDatagramSocket {
 		}
 	}
 
+	/**
+	 * Encode and send a RobocolParsable without allocating a new datagram
+	 * <p>
+	 * The socket must be connected.
+	 *
+	 * @param message message to send
+	 */
+	public void send(RobocolParsable message) {
+		send(message, null);
+	}
+
+	/**
+	 * Encode and send a RobocolParsable without allocating a new datagram
+	 *
+	 * @param message message to send
+	 * @param address destination address, or null if the socket is connected
+	 */
+	public void send(RobocolParsable message, InetAddress address) {
+		if (message.encodedSize() > RobocolConfig.MAX_PACKET_SIZE) {
+			sendFragmented(message, address);
+			return;
+		}
+
+		synchronized (msgSend) {
+			try {
+				msgSend.pack(message);
+			} catch (RobotCoreException e) {
+				RobotLog.w("Unable to encode " + message.getRobocolMsgType() + " message: " + e.toString());
+				return;
+			}
+
+			if (address != null) msgSend.setAddress(address);
+			send(msgSend);
+		}
+	}
+
+	/*
+	 * Split a message that is too large for one datagram into fragments
+	 */
+	private void sendFragmented(RobocolParsable message, InetAddress address) {
+		synchronized (msgSend) {
+			try {
+				byte[] encoded = message.toByteArray();
+				int messageId = nextFragmentedMessageId++;
+				for (int i = 0; i < Fragment.countFor(encoded.length); i++) {
+					fragment.set(messageId, encoded, i);
+					msgSend.pack(fragment);
+					if (address != null) msgSend.setAddress(address);
+					send(msgSend);
+				}
+			} catch (RobotCoreException e) {
+				RobotLog.w("Unable to fragment " + message.getRobocolMsgType() + " message: " + e.toString());
+			}
+		}
+	}
+
 	/**
 	 * Receive a RobocolDatagram packet
 	 * 
@@ -106,10 +171,37 @@ public class RobocolDatagramSocket {
 		}
 
 		msgRecv.setPacket(packetRecv);
+		record(TrafficRecorder.RECEIVED, msgRecv);
 
 		return msgRecv;
 	}
 
+	/**
+	 * Record every datagram sent and received from now on
+	 *
+	 * @param recorder traffic recorder; or null to stop recording
+	 */
+	public void setTrafficRecorder(TrafficRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Get the traffic recorder
+	 *
+	 * @return traffic recorder; or null if not recording
+	 */
+	public TrafficRecorder getTrafficRecorder() {
+		return recorder;
+	}
+
+	protected void record(byte direction, RobocolDatagram message) {
+		TrafficRecorder recorder = this.recorder;
+		if (recorder == null) return;
+
+		DatagramPacket packet = message.getPacket();
+		recorder.record(direction, packet.getData(), packet.getOffset(), packet.getLength(), packet.getAddress(), System.nanoTime());
+	}
+
 	public State getState() {
 		return state;
 	}
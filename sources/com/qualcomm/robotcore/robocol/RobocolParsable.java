@@ -33,6 +33,8 @@ package com.qualcomm.robotcore.robocol;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.RobotLog;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface implemented by objects that want to be sendable via a RobocolDatagram.
  *
@@ -66,7 +68,12 @@ public interface RobocolParsable {
 		GAMEPAD(2),
 		PEER_DISCOVERY(3),
 		COMMAND(4),
-		TELEMETRY(5);
+		TELEMETRY(5),
+		FRAME(6),
+		TELEMETRY_DELTA(7),
+		FRAGMENT(8),
+		TELEMETRY_AGGREGATE(9),
+		TELEMETRY_SERIES(10);
 
 		private static final MsgType[] VALUES_CACHE = MsgType.values();
 		private final int type;
@@ -112,8 +119,27 @@ public interface RobocolParsable {
 	public abstract MsgType getRobocolMsgType();
 
 	/**
-	 * Convert this object into a byte array. This method will be called when the
-	 * object is packaged into a RobocolDatagram.
+	 * Number of bytes, header included, that {@link #writeTo(ByteBuffer)} will write for the
+	 * current state of this object.
+	 *
+	 * @return encoded size in bytes
+	 */
+	public abstract int encodedSize();
+
+	/**
+	 * Write this object, header included, into the buffer starting at its current position. On
+	 * return the buffer position is just past the last byte written. This method will be called
+	 * when the object is packaged into a RobocolDatagram, and must not allocate a new buffer.
+	 *
+	 * @param buffer buffer to write into; must have at least encodedSize() bytes remaining
+	 * @throws RobotCoreException if the object cannot be encoded, or the buffer is too small
+	 */
+	public abstract void writeTo(ByteBuffer buffer) throws RobotCoreException;
+
+	/**
+	 * Convert this object into a byte array.
+	 * <p>
+	 * Compatibility shim for {@link #writeTo(ByteBuffer)}; this allocates a new array each call.
 	 *
 	 * @throws RobotCoreException if error
 	 * @return byte array representing the current object, or null if error
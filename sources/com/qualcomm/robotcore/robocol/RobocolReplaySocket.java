@@ -0,0 +1,193 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A socket that plays back the received datagrams of a TrafficRecorder capture
+ * <p>
+ * recv() returns each captured datagram once the same time has passed since the first one as
+ * passed in the capture, divided by the speed. A speed of AS_FAST_AS_POSSIBLE does not wait.
+ * Sent datagrams are counted, and recorded if a recorder is set, but go nowhere. The socket
+ * closes itself when the capture runs out.
+ */
+public class RobocolReplaySocket extends RobocolDatagramSocket {
+
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+
+	private final MappedByteBuffer capture;
+	private final double speed;
+
+	private boolean started = false;
+	private long captureStart = 0; // capture time of the first datagram
+	private long replayStart = 0;
+
+	private long replayed = 0;
+	private long sent = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param captureFile capture written by a TrafficRecorder
+	 * @param speed 1 for real time, 2 for twice as fast, or AS_FAST_AS_POSSIBLE
+	 * @throws IOException if the file cannot be read or is not a capture
+	 */
+	public RobocolReplaySocket(File captureFile, double speed) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(captureFile, "r");
+		try {
+			capture = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+
+		if (capture.remaining() < TrafficRecorder.FILE_HEADER_LENGTH || capture.getInt() != TrafficRecorder.MAGIC) {
+			throw new IOException("Not a traffic capture: " + captureFile);
+		}
+		short version = capture.getShort();
+		if (version != TrafficRecorder.VERSION) {
+			throw new IOException("Unsupported traffic capture version " + version);
+		}
+		capture.position(TrafficRecorder.FILE_HEADER_LENGTH);
+
+		this.speed = speed;
+		this.state = State.LISTENING;
+	}
+
+	@Override
+	public void bind(InetSocketAddress bindAddress) {
+		// nothing to bind
+	}
+
+	@Override
+	public void connect(InetAddress connectAddress) {
+		// nothing to connect to
+	}
+
+	@Override
+	public synchronized void close() {
+		state = State.CLOSED;
+		notifyAll();
+	}
+
+	@Override
+	public void send(RobocolDatagram message) {
+		record(TrafficRecorder.SENT, message);
+		synchronized (this) {
+			sent += 1;
+		}
+	}
+
+	/**
+	 * Get the next captured datagram, once it is due
+	 *
+	 * @return datagram; or null once the capture has run out
+	 */
+	@Override
+	public RobocolDatagram recv() {
+		try {
+			while (true) {
+				RobocolDatagram msg;
+				long time;
+				synchronized (this) {
+					if (state == State.CLOSED) return null;
+
+					if (capture.remaining() < TrafficRecorder.RECORD_HEADER_LENGTH) {
+						close();
+						return null;
+					}
+
+					int length = capture.getInt();
+					if (length <= 0) {
+						close();
+						return null;
+					}
+					time = capture.getLong();
+					byte direction = capture.get();
+					byte[] address = new byte[capture.get() & 0xFF];
+					capture.get(address);
+					byte[] data = new byte[length];
+					capture.get(data);
+
+					if (direction != TrafficRecorder.RECEIVED) continue;
+
+					msg = new RobocolDatagram(data);
+					if (address.length > 0) msg.setAddress(InetAddress.getByAddress(address));
+					replayed += 1;
+				}
+
+				waitUntilDue(time);
+				record(TrafficRecorder.RECEIVED, msg);
+				return msg;
+			}
+		} catch (UnknownHostException e) {
+			RobotLog.w("Traffic capture is corrupt: " + e.toString());
+		} catch (RuntimeException e) {
+			// a truncated record
+			RobotLog.w("Traffic capture is corrupt: " + e.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		close();
+		return null;
+	}
+
+	/**
+	 * Block until the whole capture has been replayed, or the socket is closed
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void waitForEnd() throws InterruptedException {
+		while (state != State.CLOSED) wait();
+	}
+
+	/**
+	 * Number of captured datagrams returned by recv()
+	 *
+	 * @return replayed count
+	 */
+	public synchronized long getReplayedCount() {
+		return replayed;
+	}
+
+	/**
+	 * Number of datagrams sent in reply
+	 *
+	 * @return sent count
+	 */
+	public synchronized long getSentCount() {
+		return sent;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return null;
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return null;
+	}
+
+	private void waitUntilDue(long time) throws InterruptedException {
+		if (!started) {
+			started = true;
+			captureStart = time;
+			replayStart = System.nanoTime();
+		}
+		if (speed <= AS_FAST_AS_POSSIBLE) return;
+
+		long due = replayStart + (long) ((time - captureStart) / speed);
+		long wait = due - System.nanoTime();
+		if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+	}
+
+}
@@ -0,0 +1,423 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands telemetry from the event loop thread to a dedicated sender thread, keeping only the
+ * latest telemetry of each tag
+ * <p>
+ * post() copies the telemetry into a triple buffer for its tag, and notes the tag on a single
+ * writer, single reader ring. The sender thread takes tags off the ring, and encodes and sends the
+ * latest telemetry of each. A tag posted again before the sender gets to it replaces the stale
+ * telemetry instead of queueing behind it, so a slow link drops frames rather than stalling the
+ * event loop. Posting never blocks on the sender; it costs a copy of the data, where sending
+ * directly costs encoding it and a trip through the send path.
+ * <p>
+ * A tag can instead aggregate: every post is added to a TelemetryAggregate, which is sent and
+ * cleared when the tag is sent, so no sample is lost to a newer one.
+ * <p>
+ * Series samples added with Telemetry.addSeries() are never replaced: every post adds them to
+ * the tag's series buffer, which is sent in datagram sized batches along with the tag.
+ * <p>
+ * With a TelemetryRateController set, a tag that is not yet due is held back; posts in the
+ * meantime replace it, and the latest is sent once the tag is due.
+ * <p>
+ * Before start() and after stop(), and for tags beyond MAX_TAGS, telemetry is sent on the calling
+ * thread, without rate control.
+ */
+public class SendQueue {
+
+	/**
+	 * Encodes and sends telemetry; called on the sender thread
+	 */
+	public interface Sender {
+		void send(Telemetry telemetry);
+		void send(TelemetryAggregate aggregate);
+		void send(TelemetrySeries series);
+	}
+
+	/** Most tags that can be queued; must be a power of two */
+	public static final int MAX_TAGS = 64;
+
+	private static final int INDEX_MASK = 0x3;
+	private static final int FRESH = 0x4; // middle holds telemetry the sender hasn't seen
+	private static final long PARK_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/*
+	 * Triple buffer of the telemetry of one tag; see GamepadTripleBuffer
+	 */
+	private static class Slot {
+		final int index;
+		final String tag;
+		final Telemetry[] buffers = { new Telemetry(), new Telemetry(), new Telemetry() };
+		final AtomicInteger middle = new AtomicInteger(1);
+		int back = 0;  // only touched by the writer
+		int front = 2; // only touched by the sender thread
+		long due = 0;  // only touched by the sender thread, while held back
+
+		// non null if the tag aggregates; guarded by writeLock
+		TelemetryAggregate aggregate = null;
+		TelemetryAggregate spare = null;
+
+		// created by the first post with series samples; guarded by writeLock
+		TelemetrySeries series = null;
+		TelemetrySeries seriesSpare = null;
+
+		Slot(int index, String tag) {
+			this.index = index;
+			this.tag = tag;
+		}
+	}
+
+	private class SenderRunnable implements Runnable {
+
+		// tags taken off the ring that are not due yet; they stay FRESH, so posts don't requeue them
+		private final Slot[] held = new Slot[MAX_TAGS];
+		private int heldCount = 0;
+
+		private final TelemetrySeries batch = new TelemetrySeries();
+
+		@Override
+		public void run() {
+			while (true) {
+				long now = System.nanoTime();
+				long wait = sendDue(now);
+
+				if (head != tail.get()) {
+					Slot slot = slots[ring[(int) (head & (MAX_TAGS - 1))]];
+					head += 1;
+
+					TelemetryRateController controller = rateController;
+					long delay = controller == null ? 0 : controller.getDelay(slot.tag, now);
+					if (delay > 0 && running) {
+						slot.due = now + delay;
+						held[heldCount++] = slot;
+					} else {
+						send(slot);
+					}
+					continue;
+				}
+
+				if (!running) {
+					if (heldCount == 0) break; // drained
+					continue; // send the held tags without waiting for them
+				}
+				LockSupport.parkNanos(SendQueue.this, Math.min(wait, PARK_TIMEOUT));
+			}
+		}
+
+		/*
+		 * Send the held tags that are due, or all of them once stopped
+		 *
+		 * @return time until the next held tag is due
+		 */
+		private long sendDue(long now) {
+			long wait = Long.MAX_VALUE;
+			for (int i = 0; i < heldCount; ) {
+				Slot slot = held[i];
+				long remaining = slot.due - now;
+				if (remaining > 0 && running) {
+					wait = Math.min(wait, remaining);
+					i++;
+					continue;
+				}
+
+				held[i] = held[--heldCount];
+				held[heldCount] = null;
+				send(slot);
+			}
+			return wait;
+		}
+
+		private void send(Slot slot) {
+			TelemetryAggregate aggregate = null;
+			TelemetrySeries series = null;
+			Telemetry telemetry = null;
+
+			synchronized (writeLock) {
+				if (slot.aggregate != null || slot.series != null) {
+					// take the window, and acquire with the lock held so no post falls in between
+					aggregate = slot.aggregate;
+					slot.aggregate = slot.spare;
+					slot.spare = aggregate;
+
+					series = slot.series;
+					slot.series = slot.seriesSpare;
+					slot.seriesSpare = series;
+
+					slot.front = slot.middle.getAndSet(slot.front) & INDEX_MASK;
+					if (aggregate == null) telemetry = slot.buffers[slot.front];
+				}
+			}
+			if (aggregate == null && telemetry == null) {
+				// acquiring clears FRESH, so a post from here on puts the tag back on the ring
+				slot.front = slot.middle.getAndSet(slot.front) & INDEX_MASK;
+				telemetry = slot.buffers[slot.front];
+			}
+
+			long start = System.nanoTime();
+			try {
+				if (aggregate != null) {
+					if (aggregate.hasData()) sender.send(aggregate);
+					aggregate.clear();
+				} else {
+					sender.send(telemetry);
+				}
+				if (series != null) sendSeries(series);
+			} catch (RuntimeException e) {
+				RobotLog.w("Unable to send telemetry " + slot.tag + ": " + e.toString());
+			}
+			long end = System.nanoTime();
+			sendTime += end - start;
+			sent += 1;
+
+			TelemetryRateController controller = rateController;
+			if (controller != null) controller.onSent(slot.tag, end);
+		}
+
+		private void sendSeries(TelemetrySeries series) {
+			while (series.moveBatchTo(batch, RobocolConfig.MAX_PACKET_SIZE)) {
+				sender.send(batch);
+			}
+			series.clear();
+		}
+	}
+
+	private final Sender sender;
+
+	// writer side, guarded by writeLock
+	private final Object writeLock = new Object();
+	private final Map<String, Slot> slotsByTag = new HashMap<String, Slot>();
+	private int slotCount = 0;
+
+	// published to the sender thread by the write to tail
+	private final Slot[] slots = new Slot[MAX_TAGS];
+	private final int[] ring = new int[MAX_TAGS];
+	private final AtomicLong tail = new AtomicLong(0);
+	private long head = 0; // only touched by the sender thread
+
+	private volatile boolean running = false;
+	private volatile Thread senderThread = null;
+	private volatile TelemetryRateController rateController = null;
+
+	// each written by one thread only
+	private volatile long posted = 0;
+	private volatile long superseded = 0;
+	private volatile long postTime = 0;
+	private volatile long sent = 0;
+	private volatile long sendTime = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param sender encodes and sends telemetry
+	 */
+	public SendQueue(Sender sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * Start the sender thread
+	 */
+	public synchronized void start() {
+		if (running) return;
+
+		running = true;
+		senderThread = new Thread(new SenderRunnable(), "Telemetry sender");
+		senderThread.start();
+	}
+
+	/**
+	 * Send any posted telemetry and stop the sender thread
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+
+		// posts that see this send on their own thread, so none are left on the ring
+		synchronized (writeLock) {
+			running = false;
+		}
+		LockSupport.unpark(senderThread);
+		try {
+			senderThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Set the controller that decides how often each tag is sent
+	 *
+	 * @param controller rate controller; or null to send every tag as soon as it is posted
+	 */
+	public void setRateController(TelemetryRateController controller) {
+		this.rateController = controller;
+	}
+
+	/**
+	 * Choose whether a tag aggregates its posts, or sends only the latest
+	 *
+	 * @param tag telemetry tag
+	 * @param aggregate true to send a TelemetryAggregate of every post since the last send
+	 */
+	public void setAggregating(String tag, boolean aggregate) {
+		synchronized (writeLock) {
+			Slot slot = slotFor(tag);
+			if (slot == null) {
+				RobotLog.w("Too many telemetry tags, cannot aggregate " + tag);
+			} else if (aggregate && slot.aggregate == null) {
+				slot.aggregate = new TelemetryAggregate();
+				slot.spare = new TelemetryAggregate();
+			} else if (!aggregate) {
+				slot.aggregate = null;
+				slot.spare = null;
+			}
+		}
+	}
+
+	/**
+	 * Post telemetry for sending
+	 * <p>
+	 * The telemetry is copied; it may be modified as soon as this method returns. Meant to be
+	 * called from a single thread, such as the event loop; other threads may post, but contend
+	 * for a lock.
+	 *
+	 * @param telemetry telemetry to send
+	 */
+	public void post(Telemetry telemetry) {
+		long start = System.nanoTime();
+
+		synchronized (writeLock) {
+			Slot slot = running ? slotFor(telemetry.getTag()) : null;
+			if (slot == null) {
+				sendNow(telemetry);
+				return;
+			}
+
+			if (slot.aggregate != null) {
+				slot.aggregate.add(telemetry);
+			} else {
+				slot.buffers[slot.back].copyFrom(telemetry);
+			}
+			if (telemetry.hasSeries()) {
+				if (slot.series == null) {
+					slot.series = new TelemetrySeries();
+					slot.series.setTag(slot.tag);
+					slot.seriesSpare = new TelemetrySeries();
+					slot.seriesSpare.setTag(slot.tag);
+				}
+				telemetry.drainSeriesTo(slot.series);
+			}
+			int previous = slot.middle.getAndSet(slot.back | FRESH);
+			slot.back = previous & INDEX_MASK;
+
+			if ((previous & FRESH) != 0) {
+				// the sender hasn't taken the last one yet, and still has this tag on the ring
+				if (slot.aggregate == null) superseded += 1;
+			} else {
+				long t = tail.get();
+				ring[(int) (t & (MAX_TAGS - 1))] = slot.index;
+				tail.lazySet(t + 1);
+				LockSupport.unpark(senderThread);
+			}
+
+			posted += 1;
+			postTime += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Number of telemetry messages posted
+	 *
+	 * @return posted count
+	 */
+	public long getPostedCount() {
+		return posted;
+	}
+
+	/**
+	 * Number of posted telemetry messages replaced by a newer one before they were sent
+	 *
+	 * @return superseded count
+	 */
+	public long getSupersededCount() {
+		return superseded;
+	}
+
+	/**
+	 * Number of telemetry messages sent by the sender thread
+	 *
+	 * @return sent count
+	 */
+	public long getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * Total time spent in post() by the posting thread
+	 *
+	 * @return time in nanoseconds
+	 */
+	public long getPostTime() {
+		return postTime;
+	}
+
+	/**
+	 * Total time the sender thread spent encoding and sending
+	 *
+	 * @return time in nanoseconds
+	 */
+	public long getSendTime() {
+		return sendTime;
+	}
+
+	/**
+	 * Posting thread time saved by sending on the sender thread
+	 * <p>
+	 * This is the time the sender thread spent encoding and sending, less the time spent posting.
+	 * It does not count the encoding skipped for superseded telemetry.
+	 *
+	 * @return time in nanoseconds
+	 */
+	public long getTimeSaved() {
+		return sendTime - postTime;
+	}
+
+	/*
+	 * Send on the calling thread
+	 */
+	private void sendNow(Telemetry telemetry) {
+		sender.send(telemetry);
+		if (!telemetry.hasSeries()) return;
+
+		TelemetrySeries series = new TelemetrySeries();
+		series.setTag(telemetry.getTag());
+		telemetry.drainSeriesTo(series);
+
+		TelemetrySeries batch = new TelemetrySeries();
+		while (series.moveBatchTo(batch, RobocolConfig.MAX_PACKET_SIZE)) {
+			sender.send(batch);
+		}
+	}
+
+	/*
+	 * Find or make the slot of a tag; null if there are no slots left. Call with writeLock held.
+	 */
+	private Slot slotFor(String tag) {
+		Slot slot = slotsByTag.get(tag);
+		if (slot != null || slotCount == MAX_TAGS) return slot;
+
+		slot = new Slot(slotCount, tag);
+		slots[slotCount++] = slot;
+		slotsByTag.put(tag, slot);
+		return slot;
+	}
+
+}
@@ -0,0 +1,432 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.LogLinearHistogram;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.TokenBucket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Sends outgoing messages from a single thread, in strict priority order by lane
+ * <p>
+ * Messages are encoded when submitted, so callers may reuse them immediately, and queued on their
+ * lane. Each lane encodes into a pool of MAX_PACKET_SIZE buffers, returned to the pool once the
+ * message is transmitted, so steady state sending does not allocate. The sender thread always
+ * sends from the highest priority lane that has a message waiting and is within its rate limit.
+ * Each lane has a bounded queue; when it is full, the oldest message on that lane is dropped.
+ * Before start() and after stop(), messages are sent on the calling thread.
+ */
+public class SendScheduler {
+
+	/**
+	 * Lanes, from highest to lowest priority
+	 */
+	public enum Lane {
+		CONTROL,   // heartbeat echoes and command acks
+		COMMAND,   // commands and their retries
+		SYSTEM,    // system telemetry, such as errors
+		TELEMETRY  // op mode telemetry and reports
+	}
+
+	/**
+	 * Where the scheduler sends messages
+	 */
+	public interface Transmitter {
+		void transmit(RobocolParsable message);
+	}
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	/** Default rate limit of the SYSTEM lane, in bytes per second */
+	public static final double DEFAULT_SYSTEM_RATE = 16 * 1024;
+
+	/** Default rate limit of the TELEMETRY lane, in bytes per second */
+	public static final double DEFAULT_TELEMETRY_RATE = 128 * 1024;
+
+	/** Default burst of the rate limited lanes, in bytes */
+	public static final double DEFAULT_BURST = 8 * 1024;
+
+	private static final Lane[] LANES = Lane.values();
+
+	/*
+	 * An encoded message, ready to send
+	 */
+	private static class Encoded implements RobocolParsable {
+		final byte[] data;
+		final ByteBuffer buffer;
+		final LaneState pool; // null if not pooled
+		int length = 0;
+		long queued = 0;
+
+		Encoded(int capacity, LaneState pool) {
+			this.data = new byte[capacity];
+			this.buffer = ByteBuffer.wrap(data);
+			this.pool = pool;
+		}
+
+		void encode(RobocolParsable message) throws RobotCoreException {
+			buffer.clear();
+			message.writeTo(buffer);
+			length = buffer.position();
+		}
+
+		@Override
+		public MsgType getRobocolMsgType() {
+			return MsgType.fromByte(data[0]);
+		}
+
+		@Override
+		public int encodedSize() {
+			return length;
+		}
+
+		@Override
+		public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+			if (buffer.remaining() < length) {
+				throw new RobotCoreException("Expected buffer with at least " + length + " bytes remaining, found " + buffer.remaining());
+			}
+			buffer.put(data, 0, length);
+		}
+
+		@Override
+		public byte[] toByteArray() {
+			return length == data.length ? data : Arrays.copyOf(data, length);
+		}
+
+		@Override
+		public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+			throw new RobotCoreException("Encoded messages are send only");
+		}
+	}
+
+	private static class LaneState {
+		final ArrayDeque<Encoded> queue = new ArrayDeque<Encoded>();
+		final ArrayDeque<Encoded> free = new ArrayDeque<Encoded>();
+		final LogLinearHistogram queueDelay = new LogLinearHistogram();
+		TokenBucket bucket = null; // null if unlimited
+		int capacity = DEFAULT_QUEUE_CAPACITY;
+		int maxDepth = 0;
+		long sent = 0;
+		long sentBytes = 0;
+		long dropped = 0;
+	}
+
+	private class SenderRunnable implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Encoded next = take();
+					if (next == null) break;
+					transmitter.transmit(next);
+					recycle(next);
+				}
+			} catch (InterruptedException e) {
+				// if we are interrupted, shut down this thread
+			}
+
+			// send whatever is left, in priority order, ignoring the rate limits
+			while (true) {
+				Encoded next;
+				synchronized (SendScheduler.this) {
+					next = poll(System.nanoTime(), false);
+				}
+				if (next == null) break;
+				transmitter.transmit(next);
+				recycle(next);
+			}
+		}
+	}
+
+	private final Transmitter transmitter;
+	private final LaneState[] lanes = new LaneState[LANES.length];
+
+	private Thread senderThread = new Thread();
+	private boolean running = false;
+
+	/**
+	 * Constructor, with the default rate limits
+	 *
+	 * @param transmitter where to send messages
+	 */
+	public SendScheduler(Transmitter transmitter) {
+		this.transmitter = transmitter;
+		for (int i = 0; i < lanes.length; i++) lanes[i] = new LaneState();
+
+		setRateLimit(Lane.SYSTEM, DEFAULT_SYSTEM_RATE, DEFAULT_BURST);
+		setRateLimit(Lane.TELEMETRY, DEFAULT_TELEMETRY_RATE, DEFAULT_BURST);
+	}
+
+	/**
+	 * Start the sender thread
+	 */
+	public synchronized void start() {
+		if (running) return;
+
+		running = true;
+		senderThread = new Thread(new SenderRunnable(), "Robocol sender");
+		senderThread.start();
+	}
+
+	/**
+	 * Send any queued messages and stop the sender thread
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			if (!running) return;
+			running = false;
+			thread = senderThread;
+			notifyAll();
+		}
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queue a message for sending
+	 * <p>
+	 * The message is encoded immediately; it may be modified as soon as this method returns.
+	 *
+	 * @param lane lane to send on
+	 * @param message message to send
+	 */
+	public void send(Lane lane, RobocolParsable message) {
+		LaneState state = lanes[lane.ordinal()];
+		int size = message.encodedSize();
+
+		Encoded encoded = null;
+		if (size <= RobocolConfig.MAX_PACKET_SIZE) {
+			synchronized (this) {
+				encoded = state.free.poll();
+			}
+			if (encoded == null) encoded = new Encoded(RobocolConfig.MAX_PACKET_SIZE, state);
+		} else {
+			// will be fragmented; too large to pool
+			encoded = new Encoded(size, null);
+		}
+
+		try {
+			encoded.encode(message);
+		} catch (RobotCoreException e) {
+			RobotLog.w("Unable to encode " + message.getRobocolMsgType() + " message: " + e.toString());
+			recycle(encoded);
+			return;
+		}
+
+		synchronized (this) {
+			encoded.queued = System.nanoTime();
+
+			if (running) {
+				if (state.queue.size() >= state.capacity) {
+					recycleLocked(state.queue.poll());
+					state.dropped += 1;
+				}
+				state.queue.add(encoded);
+				state.maxDepth = Math.max(state.maxDepth, state.queue.size());
+				notifyAll();
+				return;
+			}
+
+			// not running, send it now
+			state.queueDelay.record(0);
+			state.sent += 1;
+			state.sentBytes += encoded.length;
+		}
+		transmitter.transmit(encoded);
+		recycle(encoded);
+	}
+
+	/**
+	 * Limit the rate of a lane
+	 *
+	 * @param lane lane to limit
+	 * @param bytesPerSecond sustained rate
+	 * @param burstBytes largest burst; a single message larger than this is still sent
+	 */
+	public synchronized void setRateLimit(Lane lane, double bytesPerSecond, double burstBytes) {
+		LaneState state = lanes[lane.ordinal()];
+		if (state.bucket == null) {
+			state.bucket = new TokenBucket(bytesPerSecond, burstBytes);
+		} else {
+			state.bucket.setRate(bytesPerSecond, burstBytes);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Remove the rate limit of a lane
+	 *
+	 * @param lane lane to stop limiting
+	 */
+	public synchronized void clearRateLimit(Lane lane) {
+		lanes[lane.ordinal()].bucket = null;
+		notifyAll();
+	}
+
+	/**
+	 * Get the rate limit of a lane
+	 *
+	 * @param lane lane
+	 * @return rate in bytes per second; or TokenBucket.UNLIMITED
+	 */
+	public synchronized double getRateLimit(Lane lane) {
+		TokenBucket bucket = lanes[lane.ordinal()].bucket;
+		return bucket == null ? TokenBucket.UNLIMITED : bucket.getRate();
+	}
+
+	/**
+	 * Set how many messages a lane may queue before it drops the oldest
+	 *
+	 * @param lane lane
+	 * @param capacity queue capacity
+	 */
+	public synchronized void setQueueCapacity(Lane lane, int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Queue capacity must be at least 1, was " + capacity);
+		lanes[lane.ordinal()].capacity = capacity;
+	}
+
+	/**
+	 * Number of messages waiting on a lane
+	 *
+	 * @param lane lane
+	 * @return queue depth
+	 */
+	public synchronized int getQueueDepth(Lane lane) {
+		return lanes[lane.ordinal()].queue.size();
+	}
+
+	/**
+	 * Largest number of messages that have been waiting on a lane at once
+	 *
+	 * @param lane lane
+	 * @return high water mark of the queue depth
+	 */
+	public synchronized int getMaxQueueDepth(Lane lane) {
+		return lanes[lane.ordinal()].maxDepth;
+	}
+
+	/**
+	 * Number of messages sent from a lane
+	 *
+	 * @param lane lane
+	 * @return sent count
+	 */
+	public synchronized long getSentCount(Lane lane) {
+		return lanes[lane.ordinal()].sent;
+	}
+
+	/**
+	 * Number of bytes sent from a lane
+	 *
+	 * @param lane lane
+	 * @return sent bytes
+	 */
+	public synchronized long getSentBytes(Lane lane) {
+		return lanes[lane.ordinal()].sentBytes;
+	}
+
+	/**
+	 * Number of messages dropped from a lane because its queue was full
+	 *
+	 * @param lane lane
+	 * @return dropped count
+	 */
+	public synchronized long getDroppedCount(Lane lane) {
+		return lanes[lane.ordinal()].dropped;
+	}
+
+	/**
+	 * Time messages on a lane waited to be sent
+	 *
+	 * @param lane lane
+	 * @param percentile between 0 and 100
+	 * @return queueing delay in nanoseconds
+	 */
+	public synchronized long getQueueDelayPercentile(Lane lane, double percentile) {
+		return lanes[lane.ordinal()].queueDelay.getPercentile(percentile);
+	}
+
+	/**
+	 * Clear the high water marks, counters and queueing delays of every lane
+	 */
+	public synchronized void resetStatistics() {
+		for (LaneState state : lanes) {
+			state.queueDelay.reset();
+			state.maxDepth = state.queue.size();
+			state.sent = 0;
+			state.sentBytes = 0;
+			state.dropped = 0;
+		}
+	}
+
+	/*
+	 * Wait for the next message that may be sent
+	 *
+	 * @return next message; or null once stopped
+	 */
+	private synchronized Encoded take() throws InterruptedException {
+		while (running) {
+			long now = System.nanoTime();
+			Encoded next = poll(now, true);
+			if (next != null) return next;
+
+			long wait = Long.MAX_VALUE;
+			for (LaneState state : lanes) {
+				if (!state.queue.isEmpty() && state.bucket != null) {
+					wait = Math.min(wait, state.bucket.getDelay(now));
+				}
+			}
+
+			if (wait == Long.MAX_VALUE) {
+				wait();
+			} else {
+				wait(wait / 1000000, (int) (wait % 1000000));
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Return a message buffer to its lane's pool once it has been transmitted or dropped
+	 */
+	private synchronized void recycle(Encoded encoded) {
+		recycleLocked(encoded);
+	}
+
+	private void recycleLocked(Encoded encoded) {
+		LaneState pool = encoded.pool;
+		if (pool != null && pool.free.size() < pool.capacity) pool.free.add(encoded);
+	}
+
+	/*
+	 * Take the next message from the highest priority lane that may send; call with the lock held
+	 */
+	private Encoded poll(long now, boolean rateLimited) {
+		for (LaneState state : lanes) {
+			Encoded next = state.queue.peek();
+			if (next == null) continue;
+
+			if (rateLimited && state.bucket != null && !state.bucket.tryConsume(next.length, now)) {
+				// a lower priority lane may still be within its limit
+				continue;
+			}
+
+			state.queue.poll();
+			state.queueDelay.record(now - next.queued);
+			state.sent += 1;
+			state.sentBytes += next.length;
+			return next;
+		}
+		return null;
+	}
+
+}
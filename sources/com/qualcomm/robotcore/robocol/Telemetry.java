@@ -33,14 +33,17 @@ package com.qualcomm.robotcore.robocol;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.TypeConversion;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Hold telemtry data
+ * <p>
+ * Data points are kept in a TelemetryMap, with UTF-8 keys cached from the first time each key is
+ * added, so adding the same keys every loop and encoding them does not allocate.
  */
 public class Telemetry implements RobocolParsable {
 
@@ -49,10 +52,13 @@ public class Telemetry implements RobocolParsable {
 	private static final Charset CHARSET = Charset.forName("UTF-8");
 	private static final int BASE_PAYLOAD_SIZE = 8;
 
-	private final Map<String, String> dataStrings = new HashMap<String, String>();
-	private final Map<String, Float> dataNumbers = new HashMap<String, Float>();
+	private final TelemetryMap dataStrings = new TelemetryMap(true);
+	private final TelemetryMap dataNumbers = new TelemetryMap(false);
+
+	private TelemetrySeries series = null; // created by the first addSeries()
 
 	private String tag = ""; // an empty tag is treated as the default tag
+	private byte[] tagBytes = new byte[0];
 	private long timestamp = 0;
 
 	public Telemetry() {
@@ -71,6 +77,13 @@ public class Telemetry implements RobocolParsable {
 		return timestamp;
 	}
 
+	/*
+	 * Used by TelemetryDeltaDecoder when rebuilding telemetry from a delta
+	 */
+	synchronized void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
 	/**
 	 * Set the optional tag value.
 	 * <p>
@@ -80,7 +93,9 @@ public class Telemetry implements RobocolParsable {
 	 * @param tag tag this telemetry data
 	 */
 	public synchronized void setTag(String tag) {
+		if (tag.equals(this.tag)) return;
 		this.tag = tag;
+		this.tagBytes = tag.getBytes(CHARSET);
 	}
 
 	/**
@@ -115,7 +130,7 @@ public class Telemetry implements RobocolParsable {
 	 * @param msg message
 	 */
 	public synchronized void addData(String key, float msg) {
-		dataNumbers.put(key, msg);
+		dataNumbers.put(key, (double) msg);
 	}
 
 	/**
@@ -131,25 +146,107 @@ public class Telemetry implements RobocolParsable {
 	}
 
 	/**
-	 * Get a reference to the map of messages
-	 * 
-	 * @return reference to the messages
+	 * Add a timestamped sample to a numeric series
+	 * <p>
+	 * Unlike addData(), every sample is kept, at full double precision, until the telemetry is
+	 * sent; samples are sent separately from the other data, in columns, many per datagram. Use
+	 * this to plot signals that change faster than telemetry is sent.
+	 *
+	 * @param key series key
+	 * @param time sample time, in nanoseconds; normally System.nanoTime()
+	 * @param value sample value
+	 */
+	public synchronized void addSeries(String key, long time, double value) {
+		if (series == null) series = new TelemetrySeries();
+		series.add(key, time, value);
+	}
+
+	/**
+	 * Return true if series samples have been added since they were last taken
+	 *
+	 * @return true if there are series samples
+	 */
+	public synchronized boolean hasSeries() {
+		return series != null && series.hasData();
+	}
+
+	/**
+	 * Move the series samples into another buffer, and clear them here
+	 *
+	 * @param into buffer to add the samples to
+	 */
+	public synchronized void drainSeriesTo(TelemetrySeries into) {
+		if (series == null) return;
+		into.addAll(series);
+		series.clear();
+	}
+
+	/**
+	 * Get a reference to the series samples added since they were last taken
+	 *
+	 * @return reference to the series samples; or null if none were ever added
+	 */
+	public synchronized TelemetrySeries getSeries() {
+		return series;
+	}
+
+	/**
+	 * Get a copy of the string messages
+	 * <p>
+	 * This allocates; use getStringCount() and the getters after it to read the messages without
+	 * allocating.
+	 *
+	 * @return copy of the messages
 	 */
 	public synchronized Map<String, String> getDataStrings() {
-		return dataStrings;
+		Map<String, String> copy = new HashMap<String, String>();
+		for (int i = 0; i < dataStrings.size(); i++) {
+			copy.put(dataStrings.key(i), dataStrings.string(i));
+		}
+		return copy;
 	}
 
+	/**
+	 * Get a copy of the number messages
+	 * <p>
+	 * This allocates; use getNumberCount() and the getters after it to read the messages without
+	 * allocating.
+	 *
+	 * @return copy of the messages
+	 */
 	public synchronized Map<String, Float> getDataNumbers() {
-		return dataNumbers;
+		Map<String, Float> copy = new HashMap<String, Float>();
+		for (int i = 0; i < dataNumbers.size(); i++) {
+			copy.put(dataNumbers.key(i), (float) dataNumbers.number(i));
+		}
+		return copy;
 	}
 
+	/*
+	 * Messages by position, in the order they were first added since the last clearData(). Hold
+	 * the lock on this object while iterating.
+	 */
+	public synchronized int getStringCount() { return dataStrings.size(); }
+	public synchronized String getStringKey(int i) { return dataStrings.key(i); }
+	public synchronized String getStringValue(int i) { return dataStrings.string(i); }
+	public synchronized int getNumberCount() { return dataNumbers.size(); }
+	public synchronized String getNumberKey(int i) { return dataNumbers.key(i); }
+	public synchronized float getNumberValue(int i) { return (float) dataNumbers.number(i); }
+
+	/*
+	 * Data points with their encoded bytes, for encoders in this package. Hold the lock on this
+	 * object while using them.
+	 */
+	TelemetryMap getStringMap() { return dataStrings; }
+	TelemetryMap getNumberMap() { return dataNumbers; }
+
 	/**
 	 * Return true if this telemetry object has data added to it
 	 * 
 	 * @return true if this object has data, otherwise false
 	 */
 	public synchronized boolean hasData() {
-		return (dataStrings.isEmpty() == false || dataNumbers.isEmpty() == false);
+		return (dataStrings.size() > 0 || dataNumbers.size() > 0);
 	}
 
 	/**
@@ -161,6 +258,28 @@ public class Telemetry implements RobocolParsable {
 		timestamp = 0;
 		dataStrings.clear();
 		dataNumbers.clear();
+		if (series != null) series.clear();
+	}
+
+	/**
+	 * Replace the tag, timestamp and messages of this object with those of another
+	 *
+	 * @param other telemetry to copy
+	 */
+	public synchronized void copyFrom(Telemetry other) {
+		synchronized (other) {
+			tag = other.tag;
+			tagBytes = other.tagBytes;
+			timestamp = other.timestamp;
+			dataStrings.clear();
+			for (int i = 0; i < other.dataStrings.size(); i++) {
+				dataStrings.putFrom(other.dataStrings, i);
+			}
+			dataNumbers.clear();
+			for (int i = 0; i < other.dataNumbers.size(); i++) {
+				dataNumbers.putFrom(other.dataNumbers, i);
+			}
+		}
 	}
 
 	@Override
@@ -169,10 +288,46 @@ public class Telemetry implements RobocolParsable {
 	}
 
 	@Override
-	public synchronized byte[] toByteArray() throws RobotCoreException {
+	public synchronized int encodedSize() {
+		return RobocolParsable.HEADER_LENGTH + BASE_PAYLOAD_SIZE + 1 + tagBytes.length
+				+ dataStrings.encodedSize() + dataNumbers.encodedSize();
+	}
+
+	@Override
+	public synchronized void writeTo(ByteBuffer buffer) throws RobotCoreException {
 
 		/*
-		 * See countMessageBytes(...) for information about data format
+		 * Data format
+		 *
+		 * bytes    | format | value
+		 * ---------|--------|---------------------------------
+		 *  8       | int64  | timestamp
+		 *  1       | uint8  | length of tag (or 0 for default tag)
+		 *  varies  | UTF-8  | value of tag
+		 *  1       | uint8  | count of string data points
+		 *  varies  | varies | string data points
+		 *  1       | uint8  | count of number data points
+		 *  varies  | varies | number data points
+		 *
+		 *
+		 * String Data Points (repeating)
+		 *
+		 * bytes    | format | value
+		 * ---------|--------|---------------------------------
+		 *  1       | uint8  | length of key
+		 *  varies  | UTF-8  | key
+		 *  1       | uint8  | length of value
+		 *  varies  | UTF-8  | value
+		 *
+		 * Number Data Points (repeating)
+		 *
+		 * bytes    | format | value
+		 * ---------|--------|---------------------------------
+		 *  1       | uint8  | length of key
+		 *  varies  | UTF-8  | key
+		 *  4       | float  | value
+		 *
+		 * The message is written in a single pass; the payload size is filled in at the end.
 		 */
 
 		timestamp = System.currentTimeMillis();
@@ -185,71 +340,48 @@ public class Telemetry implements RobocolParsable {
 			throw new RobotCoreException("Cannot have more than 256 number data points");
 		}
 
-		int payloadSize = countMessageBytes() + BASE_PAYLOAD_SIZE;
-		int totalSize = RobocolParsable.HEADER_LENGTH + payloadSize;
-
-		if (totalSize > RobocolConfig.MAX_PACKET_SIZE) {
-			throw new RobotCoreException(String.format("Cannot send telemetry data of %d bytes; max is %d",
-					totalSize, RobocolConfig.MAX_PACKET_SIZE));
+		if (tagBytes.length > 256) {
+			throw new RobotCoreException(String.format("Telemetry tag cannot exceed 256 bytes [%s]", tag));
 		}
 
-		ByteBuffer buffer = ByteBuffer.allocate(totalSize);
-
-		// populate the header
-		buffer.put(getRobocolMsgType().asByte());
-		buffer.putShort((short)payloadSize);
+		int start = buffer.position();
+		try {
+			// populate the header; the payload size is not known yet
+			buffer.put(getRobocolMsgType().asByte());
+			buffer.putShort((short) 0);
 
-		// timestamp
-		buffer.putLong(timestamp);
-
-		// tag
-		if (tag.length() == 0) {
-			buffer.put((byte) 0);
-		} else {
-			byte tagBytes[] = tag.getBytes(CHARSET);
-
-			if (tagBytes.length > 256) {
-				throw new RobotCoreException(String.format("Telemetry tag cannot exceed 256 bytes [%s]", tag));
-			}
+			// timestamp
+			buffer.putLong(timestamp);
 
+			// tag
 			buffer.put((byte) tagBytes.length);
 			buffer.put(tagBytes);
-		}
 
-		// data strings
-		buffer.put((byte) dataStrings.size());
-		for (Entry<String, String> entry : dataStrings.entrySet()) {
-			byte[] key = entry.getKey().getBytes(CHARSET);
-			byte[] value = entry.getValue().getBytes(CHARSET);
-
-			if (key.length > 256 || value.length > 256) {
-				throw new RobotCoreException(String.format("Telemetry elements cannot exceed 256 bytes [%s:%s]",
-						entry.getKey(), entry.getValue()));
-			}
-
-			buffer.put((byte) key.length);
-			buffer.put(key);
-			buffer.put((byte) value.length);
-			buffer.put(value);
+			dataStrings.writeTo(buffer);
+			dataNumbers.writeTo(buffer);
+		} catch (BufferOverflowException e) {
+			buffer.position(start);
+			throw new RobotCoreException(String.format("Cannot write telemetry data of %d bytes; buffer has %d remaining",
+					encodedSize(), buffer.remaining()));
+		} catch (RobotCoreException e) {
+			buffer.position(start);
+			throw e;
 		}
 
-		// data numbers
-		buffer.put((byte) dataNumbers.size());
-		for (Entry<String, Float> entry : dataNumbers.entrySet()) {
-			byte[] key = entry.getKey().getBytes(CHARSET);
-			float val = entry.getValue();
-
-			if (key.length > 256) {
-				throw new RobotCoreException(String.format("Telemetry elements cannot exceed 256 bytes [%s:%f]",
-						entry.getKey(), val));
-			}
-
-			buffer.put((byte) key.length);
-			buffer.put(key);
-			buffer.putFloat(val);
+		int totalSize = buffer.position() - start;
+		if (totalSize > RobocolConfig.MAX_MESSAGE_SIZE) {
+			buffer.position(start);
+			throw new RobotCoreException(String.format("Cannot send telemetry data of %d bytes; max is %d",
+					totalSize, RobocolConfig.MAX_MESSAGE_SIZE));
 		}
 
-		// done
+		buffer.putShort(start + 1, (short) (totalSize - RobocolParsable.HEADER_LENGTH));
+	}
+
+	@Override
+	public synchronized byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
 		return buffer.array();
 	}
 
@@ -265,13 +397,9 @@ public class Telemetry implements RobocolParsable {
 
 		// tag
 		int tagLength = TypeConversion.unsignedByteToInt(buffer.get());
-		if (tagLength == 0) {
-			tag = "";
-		} else {
-			byte[] tagBytes = new byte[tagLength];
-			buffer.get(tagBytes);
-			tag = new String(tagBytes , CHARSET);
-		}
+		tagBytes = new byte[tagLength];
+		buffer.get(tagBytes);
+		tag = new String(tagBytes , CHARSET);
 
 		// data strings
 		int stringDataPoints = buffer.get();
@@ -303,60 +431,4 @@ public class Telemetry implements RobocolParsable {
 		}
 	}
 
-	private int countMessageBytes() {
-
-		/*
-		 * Data format
-		 *
-		 * bytes    | format | value
-		 * ---------|--------|---------------------------------
-		 *  8       | int64  | timestamp
-		 *  1       | uint8  | length of tag (or 0 for default tag)
-		 *  varies  | UTF-8  | value of tag
-		 *  1       | uint8  | count of string data points
-		 *  varies  | varies | string data points
-		 *  1       | uint8  | count of number data points
-		 *  varies  | varies | number data points
-		 *
-		 *
-		 * String Data Points (repeating)
-		 *
-		 * bytes    | format | value
-		 * ---------|--------|---------------------------------
-		 *  1       | uint8  | length of key
-		 *  varies  | UTF-8  | key
-		 *  1       | uint8  | length of value
-		 *  varies  | UTF-8  | value
-		 *
-		 * Number Data Points (repeating)
-		 *
-		 * bytes    | format | value
-		 * ---------|--------|---------------------------------
-		 *  1       | uint8  | length of key
-		 *  varies  | UTF-8  | key
-		 *  4       | float  | value
-		 */
-
-		int count = 0;
-
-		// count the length of the tag
-		count += 1 + tag.getBytes(CHARSET).length;
-
-		// count the string data
-		count += 1;
-		for(Entry<String, String> entry : dataStrings.entrySet()) {
-			count += 1 + entry.getKey().getBytes(CHARSET).length;
-			count += 1 + entry.getValue().getBytes(CHARSET).length;
-		}
-
-		// count the number data
-		count += 1;
-		for (Entry<String, Float> entry: dataNumbers.entrySet()) {
-			count += 1 + entry.getKey().getBytes(CHARSET).length;
-			count += 4;
-		}
-
-		return count;
-	}
-
 }
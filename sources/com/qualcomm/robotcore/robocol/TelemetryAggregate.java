@@ -0,0 +1,348 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.TypeConversion;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Telemetry summarized over every sample posted since the last message with the same tag
+ * <p>
+ * Each numeric key keeps the count, min, max, mean and last value of its samples, so a spike
+ * between two sends is not lost. String keys keep their last value. Keys are kept in TelemetryMaps,
+ * as in Telemetry, with the statistics of each numeric key in primitive arrays by position; once a
+ * key has been seen, adding a sample of it does not allocate.
+ */
+public class TelemetryAggregate implements RobocolParsable {
+
+	/*
+	 * Data format
+	 *
+	 * bytes    | format | value
+	 * ---------|--------|---------------------------------
+	 *  8       | int64  | timestamp
+	 *  1       | uint8  | length of tag (or 0 for default tag)
+	 *  varies  | UTF-8  | value of tag
+	 *  1       | uint8  | count of string data points
+	 *  varies  | varies | same as Telemetry string data points
+	 *  1       | uint8  | count of number aggregates
+	 *  varies  | varies | number aggregates
+	 *
+	 * Number Aggregates (repeating)
+	 *
+	 * bytes    | format | value
+	 * ---------|--------|---------------------------------
+	 *  1       | uint8  | length of key
+	 *  varies  | UTF-8  | value of key
+	 *  4       | int32  | count of samples
+	 *  4       | float  | min
+	 *  4       | float  | max
+	 *  4       | float  | mean
+	 *  4       | float  | last
+	 */
+
+	public static final int MAX_ENTRIES = 255;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int BASE_PAYLOAD_SIZE = 8 + 1 + 1 + 1;
+	private static final int NUMBER_SIZE = 4 + 4 * 4;
+
+	private long timestamp = 0;
+	private String tag = "";
+	private byte[] tagBytes = new byte[0];
+
+	private final TelemetryMap dataStrings = new TelemetryMap(true);
+
+	// last sample of each numeric key; the statistics below are by position in this map
+	private final TelemetryMap lasts = new TelemetryMap(false);
+	private int[] counts = new int[16];
+	private float[] mins = new float[16];
+	private float[] maxs = new float[16];
+	private double[] sums = new double[16];
+
+	public TelemetryAggregate() {
+		// default constructor
+	}
+
+	public TelemetryAggregate(byte[] byteArray) throws RobotCoreException {
+		fromByteArray(byteArray);
+	}
+
+	public void setTag(String tag) {
+		if (tag.equals(this.tag)) return;
+		this.tag = tag;
+		this.tagBytes = tag.getBytes(CHARSET);
+	}
+
+	public String getTag() {
+		if (tag.length() == 0) return Telemetry.DEFAULT_TAG;
+		return tag;
+	}
+
+	/**
+	 * Timestamp this message was sent, in wall time
+	 *
+	 * @return timestamp, or 0 if never sent
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Add a sample of a numeric key
+	 *
+	 * @param key key
+	 * @param value sample
+	 */
+	public void addSample(String key, float value) {
+		int size = lasts.size();
+		int i = lasts.put(key, value);
+
+		if (i == size) {
+			// first sample of this key in the window
+			if (i == counts.length) grow();
+			counts[i] = 0;
+			mins[i] = value;
+			maxs[i] = value;
+			sums[i] = 0;
+		} else {
+			if (value < mins[i]) mins[i] = value;
+			if (value > maxs[i]) maxs[i] = value;
+		}
+		if (counts[i] != Integer.MAX_VALUE) counts[i] += 1;
+		sums[i] += value;
+	}
+
+	/**
+	 * Set the value of a string key; only the last value is kept
+	 *
+	 * @param key key
+	 * @param value value
+	 */
+	public void addString(String key, String value) {
+		dataStrings.put(key, value);
+	}
+
+	/**
+	 * Add every data point of a telemetry message: its numbers as samples, its strings as values
+	 *
+	 * @param telemetry telemetry to add
+	 */
+	public void add(Telemetry telemetry) {
+		synchronized (telemetry) {
+			setTag(telemetry.getTag());
+			TelemetryMap strings = telemetry.getStringMap();
+			for (int i = 0; i < strings.size(); i++) {
+				dataStrings.putFrom(strings, i);
+			}
+			TelemetryMap numbers = telemetry.getNumberMap();
+			for (int i = 0; i < numbers.size(); i++) {
+				addSample(numbers.key(i), (float) numbers.number(i));
+			}
+		}
+	}
+
+	/**
+	 * Start a new window; keys are remembered, so samples of them do not allocate
+	 */
+	public void clear() {
+		timestamp = 0;
+		dataStrings.clear();
+		lasts.clear();
+	}
+
+	/**
+	 * Check if anything was added since the last clear()
+	 *
+	 * @return true if there are samples or strings
+	 */
+	public boolean hasData() {
+		return dataStrings.size() > 0 || lasts.size() > 0;
+	}
+
+	/**
+	 * Get a copy of the string values
+	 * <p>
+	 * This allocates.
+	 *
+	 * @return copy of the string values
+	 */
+	public Map<String, String> getDataStrings() {
+		Map<String, String> copy = new HashMap<String, String>();
+		for (int i = 0; i < dataStrings.size(); i++) {
+			copy.put(dataStrings.key(i), dataStrings.string(i));
+		}
+		return copy;
+	}
+
+	/**
+	 * Index of a numeric key, for the getters below
+	 *
+	 * @param key key
+	 * @return index; or -1 if the key has no samples
+	 */
+	public int indexOf(String key) {
+		return lasts.indexOf(key);
+	}
+
+	/*
+	 * Numeric keys with samples in this window, by index, in the order they were first sampled
+	 */
+	public int getKeyCount() { return lasts.size(); }
+	public String getKey(int i) { return lasts.key(i); }
+	public int getCount(int i) { return counts[i]; }
+	public float getMin(int i) { return mins[i]; }
+	public float getMax(int i) { return maxs[i]; }
+	public float getMean(int i) { return counts[i] == 0 ? 0 : (float) (sums[i] / counts[i]); }
+	public float getLast(int i) { return (float) lasts.number(i); }
+
+	/**
+	 * Add the aggregates to a telemetry record for display
+	 * <p>
+	 * Each numeric key shows its last value, with its min, max and mean under the key followed
+	 * by " min", " max" and " mean".
+	 *
+	 * @param telemetry telemetry to add to
+	 */
+	public void addTo(Telemetry telemetry) {
+		telemetry.setTag(tag);
+		for (int i = 0; i < dataStrings.size(); i++) {
+			telemetry.addData(dataStrings.key(i), dataStrings.string(i));
+		}
+		for (int i = 0; i < lasts.size(); i++) {
+			String key = lasts.key(i);
+			telemetry.addData(key, getLast(i));
+			telemetry.addData(key + " min", mins[i]);
+			telemetry.addData(key + " max", maxs[i]);
+			telemetry.addData(key + " mean", getMean(i));
+		}
+	}
+
+	@Override
+	public MsgType getRobocolMsgType() {
+		return MsgType.TELEMETRY_AGGREGATE;
+	}
+
+	@Override
+	public int encodedSize() {
+		// the string count is part of the base payload
+		int size = RobocolParsable.HEADER_LENGTH + BASE_PAYLOAD_SIZE + tagBytes.length + dataStrings.encodedSize() - 1;
+		for (int i = 0; i < lasts.size(); i++) {
+			size += 1 + lasts.keyBytes(i).length + NUMBER_SIZE;
+		}
+		return size;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		int numberCount = lasts.size();
+		if (dataStrings.size() > MAX_ENTRIES || numberCount > MAX_ENTRIES) {
+			throw new RobotCoreException("Cannot have more than " + MAX_ENTRIES + " string or number data points");
+		}
+
+		if (tagBytes.length > 255) {
+			throw new RobotCoreException(String.format("Telemetry tag cannot exceed 255 bytes [%s]", tag));
+		}
+
+		int totalSize = encodedSize();
+		if (totalSize > RobocolConfig.MAX_MESSAGE_SIZE) {
+			throw new RobotCoreException(String.format("Cannot send telemetry data of %d bytes; max is %d",
+					totalSize, RobocolConfig.MAX_MESSAGE_SIZE));
+		}
+		if (buffer.remaining() < totalSize) {
+			throw new RobotCoreException(String.format("Cannot write telemetry data of %d bytes; buffer has %d remaining",
+					totalSize, buffer.remaining()));
+		}
+
+		timestamp = System.currentTimeMillis();
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort((short) (totalSize - RobocolParsable.HEADER_LENGTH));
+		buffer.putLong(timestamp);
+
+		buffer.put((byte) tagBytes.length);
+		buffer.put(tagBytes);
+
+		dataStrings.writeTo(buffer);
+
+		buffer.put((byte) numberCount);
+		for (int i = 0; i < numberCount; i++) {
+			byte[] key = lasts.keyBytes(i);
+			if (key.length > 255) {
+				throw new RobotCoreException(String.format("Telemetry elements cannot exceed 255 bytes [%s]", lasts.key(i)));
+			}
+
+			buffer.put((byte) key.length);
+			buffer.put(key);
+			buffer.putInt(counts[i]);
+			buffer.putFloat(mins[i]);
+			buffer.putFloat(maxs[i]);
+			buffer.putFloat(getMean(i));
+			buffer.putFloat(getLast(i));
+		}
+	}
+
+	@Override
+	public byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+		clear();
+		setTag("");
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(byteArray, RobocolParsable.HEADER_LENGTH, byteArray.length - RobocolParsable.HEADER_LENGTH);
+
+			timestamp = buffer.getLong();
+			setTag(readString(buffer));
+
+			int stringCount = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int i = 0; i < stringCount; i++) {
+				String key = readString(buffer);
+				dataStrings.put(key, readString(buffer));
+			}
+
+			int numberCount = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int n = 0; n < numberCount; n++) {
+				String key = readString(buffer);
+				int count = buffer.getInt();
+				float min = buffer.getFloat();
+				float max = buffer.getFloat();
+				float mean = buffer.getFloat();
+
+				int i = lasts.put(key, buffer.getFloat());
+				if (i == counts.length) grow();
+				counts[i] = count;
+				mins[i] = min;
+				maxs[i] = max;
+				sums[i] = (double) mean * count;
+			}
+		} catch (BufferUnderflowException e) {
+			throw new RobotCoreException("Telemetry aggregate is truncated, received " + byteArray.length + " bytes");
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[TypeConversion.unsignedByteToInt(buffer.get())];
+		buffer.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	private void grow() {
+		int capacity = counts.length * 2;
+		counts = Arrays.copyOf(counts, capacity);
+		mins = Arrays.copyOf(mins, capacity);
+		maxs = Arrays.copyOf(maxs, capacity);
+		sums = Arrays.copyOf(sums, capacity);
+	}
+
+}
@@ -0,0 +1,406 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.TypeConversion;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Telemetry changes since the last message with the same tag
+ * <p>
+ * Keys are referred to by small integer IDs, assigned once per session by the sender and
+ * announced to the receiver with a CMD_DEFINE_KEY command. Until that command has been
+ * acknowledged, a key is sent in full as a literal entry. Recurring string values are likewise
+ * sent as a two byte ID, slot and generation, from a TelemetryStringTable once their
+ * CMD_DEFINE_STRING command has been acknowledged. A keyframe carries every entry and
+ * replaces the receiver's state for the tag, so a lost delta is repaired by the next keyframe.
+ *
+ * @see TelemetryDeltaEncoder
+ * @see TelemetryDeltaDecoder
+ * @see TelemetryStringTable
+ */
+public class TelemetryDelta implements RobocolParsable {
+
+	/*
+	 * Data format
+	 *
+	 * bytes    | format | value
+	 * ---------|--------|---------------------------------
+	 *  8       | int64  | timestamp
+	 *  1       | uint8  | flags (bit 0: keyframe)
+	 *  2       | uint16 | sequence number, per tag
+	 *  1       | uint8  | length of tag (or 0 for default tag)
+	 *  varies  | UTF-8  | value of tag
+	 *  2       | uint16 | count of removed key IDs, followed by a uint16 ID each
+	 *  1       | uint8  | count of string entries by ID
+	 *  varies  | varies | uint16 ID, uint8 length of value, UTF-8 value
+	 *  1       | uint8  | count of number entries by ID
+	 *  varies  | varies | uint16 ID, float value
+	 *  1       | uint8  | count of literal string entries
+	 *  varies  | varies | same as Telemetry string data points
+	 *  1       | uint8  | count of literal number entries
+	 *  varies  | varies | same as Telemetry number data points
+	 *  1       | uint8  | count of string entries by ID with a value from the string table
+	 *  varies  | varies | uint16 ID, uint16 string table ID (slot in the low byte, generation high)
+	 */
+
+	/**
+	 * Command name used to announce a key ID; extra data is "id:key"
+	 */
+	public static final String CMD_DEFINE_KEY = "CMD_TELEMETRY_DEFINE_KEY";
+
+	/**
+	 * Command name used to announce a string table slot; extra data is "id:value", where id is the
+	 * string table ID: the slot plus 256 times its generation
+	 */
+	public static final String CMD_DEFINE_STRING = "CMD_TELEMETRY_DEFINE_STRING";
+
+	public static final int MAX_KEY_ID = 0xFFFF;
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final int BASE_PAYLOAD_SIZE = 8 + 1 + 2 + 1 + 2 + 1 + 1 + 1 + 1 + 1;
+	private static final int MAX_ENTRIES = 256;
+	private static final byte FLAG_KEYFRAME = 0x01;
+
+	private long timestamp = 0;
+	private boolean keyframe = false;
+	private int sequenceNumber = 0;
+	private String tag = "";
+	private byte[] tagBytes = new byte[0];
+
+	private int[] removedIds = new int[16];
+	private int removedCount = 0;
+
+	private int[] stringIds = new int[16];
+	private byte[][] stringValues = new byte[16][];
+	private int stringCount = 0;
+
+	private int[] numberIds = new int[16];
+	private float[] numberValues = new float[16];
+	private int numberCount = 0;
+
+	private byte[][] literalStringKeys = new byte[16][];
+	private byte[][] literalStringValues = new byte[16][];
+	private int literalStringCount = 0;
+
+	private byte[][] literalNumberKeys = new byte[16][];
+	private float[] literalNumberValues = new float[16];
+	private int literalNumberCount = 0;
+
+	private int[] tableStringIds = new int[16];
+	private int[] tableStringValueIds = new int[16];
+	private int tableStringCount = 0;
+
+	public TelemetryDelta() {
+		// default constructor
+	}
+
+	public TelemetryDelta(byte[] byteArray) throws RobotCoreException {
+		fromByteArray(byteArray);
+	}
+
+	/**
+	 * Clear all entries and start a new message
+	 *
+	 * @param tag telemetry tag; an empty tag is the default tag
+	 * @param keyframe true if this message replaces all state for the tag
+	 * @param sequenceNumber per tag sequence number
+	 */
+	public void reset(String tag, boolean keyframe, int sequenceNumber) {
+		if (!tag.equals(this.tag)) {
+			this.tag = tag;
+			this.tagBytes = tag.getBytes(CHARSET);
+		}
+		this.keyframe = keyframe;
+		this.sequenceNumber = sequenceNumber & 0xFFFF;
+		timestamp = 0;
+		removedCount = 0;
+		stringCount = 0;
+		numberCount = 0;
+		literalStringCount = 0;
+		literalNumberCount = 0;
+		tableStringCount = 0;
+	}
+
+	public void addRemoved(int id) {
+		if (removedCount == removedIds.length) removedIds = Arrays.copyOf(removedIds, removedCount * 2);
+		removedIds[removedCount++] = id;
+	}
+
+	public void addString(int id, byte[] value) {
+		if (stringCount == stringIds.length) {
+			stringIds = Arrays.copyOf(stringIds, stringCount * 2);
+			stringValues = Arrays.copyOf(stringValues, stringCount * 2);
+		}
+		stringIds[stringCount] = id;
+		stringValues[stringCount] = value;
+		stringCount += 1;
+	}
+
+	public void addNumber(int id, float value) {
+		if (numberCount == numberIds.length) {
+			numberIds = Arrays.copyOf(numberIds, numberCount * 2);
+			numberValues = Arrays.copyOf(numberValues, numberCount * 2);
+		}
+		numberIds[numberCount] = id;
+		numberValues[numberCount] = value;
+		numberCount += 1;
+	}
+
+	public void addLiteralString(byte[] key, byte[] value) {
+		if (literalStringCount == literalStringKeys.length) {
+			literalStringKeys = Arrays.copyOf(literalStringKeys, literalStringCount * 2);
+			literalStringValues = Arrays.copyOf(literalStringValues, literalStringCount * 2);
+		}
+		literalStringKeys[literalStringCount] = key;
+		literalStringValues[literalStringCount] = value;
+		literalStringCount += 1;
+	}
+
+	public void addLiteralNumber(byte[] key, float value) {
+		if (literalNumberCount == literalNumberKeys.length) {
+			literalNumberKeys = Arrays.copyOf(literalNumberKeys, literalNumberCount * 2);
+			literalNumberValues = Arrays.copyOf(literalNumberValues, literalNumberCount * 2);
+		}
+		literalNumberKeys[literalNumberCount] = key;
+		literalNumberValues[literalNumberCount] = value;
+		literalNumberCount += 1;
+	}
+
+	public void addTableString(int id, int valueId) {
+		if (tableStringCount == tableStringIds.length) {
+			tableStringIds = Arrays.copyOf(tableStringIds, tableStringCount * 2);
+			tableStringValueIds = Arrays.copyOf(tableStringValueIds, tableStringCount * 2);
+		}
+		tableStringIds[tableStringCount] = id;
+		tableStringValueIds[tableStringCount] = valueId;
+		tableStringCount += 1;
+	}
+
+	public long getTimestamp() { return timestamp; }
+	public boolean isKeyframe() { return keyframe; }
+	public int getSequenceNumber() { return sequenceNumber; }
+
+	/**
+	 * Get the tag value
+	 *
+	 * @return tag
+	 */
+	public String getTag() {
+		if (tag.length() == 0) return Telemetry.DEFAULT_TAG;
+
+		return tag;
+	}
+
+	public int getRemovedCount() { return removedCount; }
+	public int getRemovedId(int i) { return removedIds[i]; }
+
+	public int getStringCount() { return stringCount; }
+	public int getStringId(int i) { return stringIds[i]; }
+	public byte[] getStringValue(int i) { return stringValues[i]; }
+
+	public int getNumberCount() { return numberCount; }
+	public int getNumberId(int i) { return numberIds[i]; }
+	public float getNumberValue(int i) { return numberValues[i]; }
+
+	public int getLiteralStringCount() { return literalStringCount; }
+	public byte[] getLiteralStringKey(int i) { return literalStringKeys[i]; }
+	public byte[] getLiteralStringValue(int i) { return literalStringValues[i]; }
+
+	public int getLiteralNumberCount() { return literalNumberCount; }
+	public byte[] getLiteralNumberKey(int i) { return literalNumberKeys[i]; }
+	public float getLiteralNumberValue(int i) { return literalNumberValues[i]; }
+
+	public int getTableStringCount() { return tableStringCount; }
+	public int getTableStringId(int i) { return tableStringIds[i]; }
+	public int getTableStringValueId(int i) { return tableStringValueIds[i]; }
+
+	/**
+	 * Return true if this message carries any changes
+	 *
+	 * @return true if a receiver would need this message
+	 */
+	public boolean hasChanges() {
+		return keyframe || removedCount > 0 || stringCount > 0 || numberCount > 0
+				|| literalStringCount > 0 || literalNumberCount > 0 || tableStringCount > 0;
+	}
+
+	@Override
+	public MsgType getRobocolMsgType() {
+		return MsgType.TELEMETRY_DELTA;
+	}
+
+	@Override
+	public int encodedSize() {
+		return RobocolParsable.HEADER_LENGTH + BASE_PAYLOAD_SIZE + countMessageBytes();
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+
+		if (stringCount + literalStringCount + tableStringCount > MAX_ENTRIES || numberCount + literalNumberCount > MAX_ENTRIES) {
+			throw new RobotCoreException("Cannot have more than 256 string or number data points");
+		}
+		if (tagBytes.length > 255) {
+			throw new RobotCoreException(String.format("Telemetry tag cannot exceed 255 bytes [%s]", tag));
+		}
+
+		int payloadSize = BASE_PAYLOAD_SIZE + countMessageBytes();
+		int totalSize = RobocolParsable.HEADER_LENGTH + payloadSize;
+
+		if (totalSize > RobocolConfig.MAX_MESSAGE_SIZE) {
+			throw new RobotCoreException(String.format("Cannot send telemetry data of %d bytes; max is %d",
+					totalSize, RobocolConfig.MAX_MESSAGE_SIZE));
+		}
+		if (buffer.remaining() < totalSize) {
+			throw new RobotCoreException(String.format("Cannot write telemetry data of %d bytes; buffer has %d remaining",
+					totalSize, buffer.remaining()));
+		}
+
+		timestamp = System.currentTimeMillis();
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort((short) payloadSize);
+
+		buffer.putLong(timestamp);
+		buffer.put(keyframe ? FLAG_KEYFRAME : 0);
+		buffer.putShort((short) sequenceNumber);
+		buffer.put((byte) tagBytes.length);
+		buffer.put(tagBytes);
+
+		buffer.putShort((short) removedCount);
+		for (int i = 0; i < removedCount; i++) {
+			buffer.putShort((short) removedIds[i]);
+		}
+
+		buffer.put((byte) stringCount);
+		for (int i = 0; i < stringCount; i++) {
+			buffer.putShort((short) stringIds[i]);
+			putShortString(buffer, stringValues[i]);
+		}
+
+		buffer.put((byte) numberCount);
+		for (int i = 0; i < numberCount; i++) {
+			buffer.putShort((short) numberIds[i]);
+			buffer.putFloat(numberValues[i]);
+		}
+
+		buffer.put((byte) literalStringCount);
+		for (int i = 0; i < literalStringCount; i++) {
+			putShortString(buffer, literalStringKeys[i]);
+			putShortString(buffer, literalStringValues[i]);
+		}
+
+		buffer.put((byte) literalNumberCount);
+		for (int i = 0; i < literalNumberCount; i++) {
+			putShortString(buffer, literalNumberKeys[i]);
+			buffer.putFloat(literalNumberValues[i]);
+		}
+
+		buffer.put((byte) tableStringCount);
+		for (int i = 0; i < tableStringCount; i++) {
+			buffer.putShort((short) tableStringIds[i]);
+			buffer.putShort((short) tableStringValueIds[i]);
+		}
+	}
+
+	@Override
+	public byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(byteArray, RobocolParsable.HEADER_LENGTH,
+					byteArray.length - RobocolParsable.HEADER_LENGTH);
+
+			long timestamp = buffer.getLong();
+			boolean keyframe = (buffer.get() & FLAG_KEYFRAME) != 0;
+			int sequenceNumber = buffer.getShort() & 0xFFFF;
+			String tag = new String(getShortString(buffer), CHARSET);
+			reset(tag, keyframe, sequenceNumber);
+			this.timestamp = timestamp;
+
+			int count = buffer.getShort() & 0xFFFF;
+			for (int i = 0; i < count; i++) {
+				addRemoved(buffer.getShort() & 0xFFFF);
+			}
+
+			count = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int i = 0; i < count; i++) {
+				int id = buffer.getShort() & 0xFFFF;
+				addString(id, getShortString(buffer));
+			}
+
+			count = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int i = 0; i < count; i++) {
+				int id = buffer.getShort() & 0xFFFF;
+				addNumber(id, buffer.getFloat());
+			}
+
+			count = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int i = 0; i < count; i++) {
+				byte[] key = getShortString(buffer);
+				addLiteralString(key, getShortString(buffer));
+			}
+
+			count = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int i = 0; i < count; i++) {
+				byte[] key = getShortString(buffer);
+				addLiteralNumber(key, buffer.getFloat());
+			}
+
+			count = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int i = 0; i < count; i++) {
+				int id = buffer.getShort() & 0xFFFF;
+				addTableString(id, buffer.getShort() & 0xFFFF);
+			}
+		} catch (RuntimeException e) {
+			throw new RobotCoreException("Malformed telemetry delta: " + e.toString());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TelemetryDelta - tag: %s, seq: %d, keyframe: %b, size: %d",
+				getTag(), sequenceNumber, keyframe, encodedSize());
+	}
+
+	private int countMessageBytes() {
+		int count = tagBytes.length;
+		count += removedCount * 2;
+		for (int i = 0; i < stringCount; i++) {
+			count += 2 + 1 + stringValues[i].length;
+		}
+		count += numberCount * (2 + 4);
+		for (int i = 0; i < literalStringCount; i++) {
+			count += 1 + literalStringKeys[i].length + 1 + literalStringValues[i].length;
+		}
+		for (int i = 0; i < literalNumberCount; i++) {
+			count += 1 + literalNumberKeys[i].length + 4;
+		}
+		count += tableStringCount * (2 + 2);
+		return count;
+	}
+
+	private static void putShortString(ByteBuffer buffer, byte[] utf8) throws RobotCoreException {
+		if (utf8.length > 255) {
+			throw new RobotCoreException("Telemetry elements cannot exceed 255 bytes");
+		}
+		buffer.put((byte) utf8.length);
+		buffer.put(utf8);
+	}
+
+	private static byte[] getShortString(ByteBuffer buffer) {
+		byte[] utf8 = new byte[TypeConversion.unsignedByteToInt(buffer.get())];
+		buffer.get(utf8);
+		return utf8;
+	}
+
+}
@@ -0,0 +1,220 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Receiver side of delta telemetry
+ * <p>
+ * Learns key IDs from CMD_DEFINE_KEY commands and string table slots from CMD_DEFINE_STRING
+ * commands, and rebuilds the full telemetry state of each tag
+ * from the TelemetryDelta messages it is given.
+ */
+public class TelemetryDeltaDecoder {
+
+	/*
+	 * Current state of a single tag
+	 */
+	private static class TagState {
+		final Map<String, String> strings = new HashMap<String, String>();
+		final Map<String, Float> numbers = new HashMap<String, Float>();
+		int nextSequenceNumber = -1;
+	}
+
+	private final Map<Integer, String> keys = new HashMap<Integer, String>();
+	// current and previous value of each string table slot, with their generations
+	private final String[] strings = new String[TelemetryStringTable.CAPACITY];
+	private final int[] generations = new int[TelemetryStringTable.CAPACITY];
+	private final String[] previousStrings = new String[TelemetryStringTable.CAPACITY];
+	private final int[] previousGenerations = new int[TelemetryStringTable.CAPACITY];
+	private final Map<String, TagState> tags = new HashMap<String, TagState>();
+	private final TelemetryDelta delta = new TelemetryDelta();
+
+	private long missedMessages = 0;
+	private long unknownKeys = 0;
+	private long unknownStrings = 0;
+
+	/**
+	 * Forget all key IDs and state; call this when the sender changes
+	 */
+	public synchronized void reset() {
+		keys.clear();
+		Arrays.fill(strings, null);
+		Arrays.fill(previousStrings, null);
+		tags.clear();
+	}
+
+	/**
+	 * Offer a received command to the decoder
+	 *
+	 * @param command received command
+	 * @return true if this was a key or string definition, and has been consumed
+	 */
+	public synchronized boolean processCommand(Command command) {
+		boolean isKey = TelemetryDelta.CMD_DEFINE_KEY.equals(command.getName());
+		if (!isKey && !TelemetryDelta.CMD_DEFINE_STRING.equals(command.getName())) return false;
+
+		String extra = command.getExtra();
+		int split = extra.indexOf(':');
+		try {
+			int id = Integer.parseInt(extra.substring(0, split));
+			if (isKey) {
+				keys.put(id, extra.substring(split + 1));
+			} else {
+				defineString(id, extra.substring(split + 1));
+			}
+		} catch (RuntimeException e) {
+			RobotLog.w("Malformed telemetry " + (isKey ? "key" : "string") + " definition: " + extra);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Apply a received TELEMETRY_DELTA message
+	 *
+	 * @param byteArray received message
+	 * @return the full telemetry state of the message's tag
+	 * @throws RobotCoreException if the message is malformed
+	 */
+	public synchronized Telemetry decode(byte[] byteArray) throws RobotCoreException {
+		delta.fromByteArray(byteArray);
+
+		String tag = delta.getTag();
+		TagState state = tags.get(tag);
+		if (state == null) {
+			state = new TagState();
+			tags.put(tag, state);
+		}
+
+		if (delta.isKeyframe()) {
+			state.strings.clear();
+			state.numbers.clear();
+		} else if (state.nextSequenceNumber >= 0 && delta.getSequenceNumber() != state.nextSequenceNumber) {
+			// state may be stale until the next keyframe
+			missedMessages += (delta.getSequenceNumber() - state.nextSequenceNumber) & 0xFFFF;
+		}
+		state.nextSequenceNumber = (delta.getSequenceNumber() + 1) & 0xFFFF;
+
+		for (int i = 0; i < delta.getRemovedCount(); i++) {
+			String key = keys.get(delta.getRemovedId(i));
+			if (key == null) continue;
+			state.strings.remove(key);
+			state.numbers.remove(key);
+		}
+
+		for (int i = 0; i < delta.getStringCount(); i++) {
+			String key = keys.get(delta.getStringId(i));
+			if (key == null) {
+				unknownKeys += 1;
+				continue;
+			}
+			state.strings.put(key, new String(delta.getStringValue(i), TelemetryDelta.CHARSET));
+		}
+
+		for (int i = 0; i < delta.getNumberCount(); i++) {
+			String key = keys.get(delta.getNumberId(i));
+			if (key == null) {
+				unknownKeys += 1;
+				continue;
+			}
+			state.numbers.put(key, delta.getNumberValue(i));
+		}
+
+		for (int i = 0; i < delta.getLiteralStringCount(); i++) {
+			String key = new String(delta.getLiteralStringKey(i), TelemetryDelta.CHARSET);
+			state.strings.put(key, new String(delta.getLiteralStringValue(i), TelemetryDelta.CHARSET));
+		}
+
+		for (int i = 0; i < delta.getLiteralNumberCount(); i++) {
+			String key = new String(delta.getLiteralNumberKey(i), TelemetryDelta.CHARSET);
+			state.numbers.put(key, delta.getLiteralNumberValue(i));
+		}
+
+		for (int i = 0; i < delta.getTableStringCount(); i++) {
+			String key = keys.get(delta.getTableStringId(i));
+			if (key == null) {
+				unknownKeys += 1;
+				continue;
+			}
+			String value = lookupString(delta.getTableStringValueId(i));
+			if (value == null) {
+				unknownStrings += 1;
+				continue;
+			}
+			state.strings.put(key, value);
+		}
+
+		Telemetry telemetry = new Telemetry();
+		telemetry.setTag(tag.equals(Telemetry.DEFAULT_TAG) ? "" : tag);
+		for (Map.Entry<String, String> entry : state.strings.entrySet()) {
+			telemetry.addData(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Float> entry : state.numbers.entrySet()) {
+			telemetry.addData(entry.getKey(), (float) entry.getValue());
+		}
+		telemetry.setTimestamp(delta.getTimestamp());
+
+		return telemetry;
+	}
+
+	/*
+	 * Define a string table slot; the value it replaces is kept for deltas sent before the
+	 * redefinition that arrive after it
+	 */
+	private void defineString(int id, String value) {
+		int slot = id % TelemetryStringTable.CAPACITY;
+		int generation = id / TelemetryStringTable.CAPACITY;
+
+		if (strings[slot] != null && generations[slot] != generation) {
+			previousStrings[slot] = strings[slot];
+			previousGenerations[slot] = generations[slot];
+		}
+		strings[slot] = value;
+		generations[slot] = generation;
+	}
+
+	/*
+	 * Get the value of a string table ID, or null if it is not known
+	 */
+	private String lookupString(int id) {
+		int slot = id % TelemetryStringTable.CAPACITY;
+		int generation = id / TelemetryStringTable.CAPACITY;
+
+		if (generations[slot] == generation) return strings[slot];
+		if (previousGenerations[slot] == generation) return previousStrings[slot];
+		return null;
+	}
+
+	/**
+	 * Number of delta messages detected as lost from sequence gaps
+	 *
+	 * @return missed message count
+	 */
+	public synchronized long getMissedMessages() {
+		return missedMessages;
+	}
+
+	/**
+	 * Number of entries dropped because their key ID had not been defined
+	 *
+	 * @return unknown key count
+	 */
+	public synchronized long getUnknownKeys() {
+		return unknownKeys;
+	}
+
+	/**
+	 * Number of entries dropped because their string table slot had not been defined
+	 *
+	 * @return unknown string count
+	 */
+	public synchronized long getUnknownStrings() {
+		return unknownStrings;
+	}
+
+}
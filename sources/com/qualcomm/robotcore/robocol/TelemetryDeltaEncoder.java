@@ -0,0 +1,234 @@
+package com.qualcomm.robotcore.robocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sender side of delta telemetry
+ * <p>
+ * Tracks, per tag, the values last sent, and turns each Telemetry into a TelemetryDelta holding
+ * only the entries that changed. Every key is assigned an ID the first time it is seen; the ID is
+ * announced with a command, and used on the wire once that command has been acknowledged.
+ * Every keyframeInterval messages per tag a keyframe is sent so a lost delta is recovered.
+ * Recurring string values go through a TelemetryStringTable and are sent as IDs too.
+ */
+public class TelemetryDeltaEncoder {
+
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 25;
+
+	// longest key that still fits in a CMD_DEFINE_KEY command along with its "id:" prefix
+	private static final int MAX_DEFINABLE_KEY_LENGTH = Command.MAX_COMMAND_LENGTH - 6;
+
+	/**
+	 * Used by the encoder to send key definitions
+	 */
+	public interface CommandSender {
+		void sendCommand(Command command);
+	}
+
+	/*
+	 * Values last sent for a single tag
+	 */
+	private static class TagState {
+		final TelemetryMap strings = new TelemetryMap(true);
+		final TelemetryMap numbers = new TelemetryMap(false);
+		int sequenceNumber = 0;
+		int sinceKeyframe = Integer.MAX_VALUE; // first message is always a keyframe
+	}
+
+	private final CommandSender commandSender;
+	private final int keyframeInterval;
+
+	private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+	private final ArrayList<Command> definitions = new ArrayList<Command>();
+
+	private final Map<String, TagState> tags = new HashMap<String, TagState>();
+	private final TelemetryDelta delta = new TelemetryDelta();
+	private final TelemetryStringTable strings;
+
+	/**
+	 * Constructor, with default keyframe interval
+	 *
+	 * @param commandSender used to announce key IDs
+	 */
+	public TelemetryDeltaEncoder(CommandSender commandSender) {
+		this(commandSender, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param commandSender used to announce key IDs
+	 * @param keyframeInterval number of messages per tag between keyframes
+	 */
+	public TelemetryDeltaEncoder(CommandSender commandSender, int keyframeInterval) {
+		this.commandSender = commandSender;
+		this.keyframeInterval = keyframeInterval;
+		this.strings = new TelemetryStringTable(commandSender);
+	}
+
+	/**
+	 * Forget all key IDs and sent values
+	 * <p>
+	 * Call this when the receiver changes, since a new receiver has no key dictionary.
+	 */
+	public synchronized void reset() {
+		keyIds.clear();
+		definitions.clear();
+		tags.clear();
+		strings.reset();
+	}
+
+	/**
+	 * Get the string table, for its hit and eviction counters
+	 *
+	 * @return string table
+	 */
+	public TelemetryStringTable getStringTable() {
+		return strings;
+	}
+
+	/**
+	 * Make the next message of every tag a keyframe
+	 */
+	public synchronized void requestKeyframe() {
+		for (TagState state : tags.values()) {
+			state.sinceKeyframe = Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Compute the changes since the last message with the same tag
+	 * <p>
+	 * The returned object is reused by the next call to encode.
+	 *
+	 * @param telemetry current telemetry
+	 * @return delta to send; check hasChanges() before sending
+	 */
+	public synchronized TelemetryDelta encode(Telemetry telemetry) {
+		String tag = telemetry.getTag();
+		if (tag.equals(Telemetry.DEFAULT_TAG)) tag = "";
+
+		TagState state = tags.get(tag);
+		if (state == null) {
+			state = new TagState();
+			tags.put(tag, state);
+		}
+
+		boolean keyframe = state.sinceKeyframe >= keyframeInterval;
+		state.sinceKeyframe = keyframe ? 1 : state.sinceKeyframe + 1;
+		delta.reset(tag, keyframe, state.sequenceNumber);
+		this.strings.beginMessage();
+
+		synchronized (telemetry) {
+			TelemetryMap strings = telemetry.getStringMap();
+			for (int i = 0; i < strings.size(); i++) {
+				String key = strings.key(i);
+				String value = strings.string(i);
+				if (!keyframe) {
+					int last = state.strings.indexOf(key);
+					if (last >= 0 && value.equals(state.strings.string(last))) continue;
+				}
+
+				int id = idFor(key, strings.keyBytes(i));
+				byte[] utf8 = strings.stringBytes(i);
+				if (isAcknowledged(id)) {
+					int valueId = this.strings.lookup(value, utf8);
+					if (valueId >= 0) {
+						delta.addTableString(id, valueId);
+					} else {
+						delta.addString(id, utf8);
+					}
+				} else {
+					delta.addLiteralString(strings.keyBytes(i), utf8);
+				}
+			}
+
+			TelemetryMap numbers = telemetry.getNumberMap();
+			for (int i = 0; i < numbers.size(); i++) {
+				String key = numbers.key(i);
+				float value = (float) numbers.number(i);
+				if (!keyframe) {
+					int last = state.numbers.indexOf(key);
+					if (last >= 0 && Float.floatToIntBits((float) state.numbers.number(last)) == Float.floatToIntBits(value)) continue;
+				}
+
+				int id = idFor(key, numbers.keyBytes(i));
+				if (isAcknowledged(id)) {
+					delta.addNumber(id, value);
+				} else {
+					delta.addLiteralNumber(numbers.keyBytes(i), value);
+				}
+			}
+
+			if (!keyframe) {
+				removeMissing(state.strings, strings, state);
+				removeMissing(state.numbers, numbers, state);
+			}
+
+			state.strings.clear();
+			for (int i = 0; i < strings.size(); i++) {
+				state.strings.putFrom(strings, i);
+			}
+			state.numbers.clear();
+			for (int i = 0; i < numbers.size(); i++) {
+				state.numbers.putFrom(numbers, i);
+			}
+		}
+
+		// an empty delta is not sent, so it must not use up a sequence number
+		if (delta.hasChanges()) state.sequenceNumber += 1;
+
+		return delta;
+	}
+
+	/*
+	 * Report keys that were sent last time but are absent now
+	 */
+	private void removeMissing(TelemetryMap last, TelemetryMap current, TagState state) {
+		for (int i = 0; i < last.size(); i++) {
+			String key = last.key(i);
+			if (current.indexOf(key) >= 0) continue;
+
+			Integer id = keyIds.get(key);
+			if (id != null && isAcknowledged(id)) {
+				delta.addRemoved(id);
+			} else {
+				// the receiver only knows this key by name; a keyframe will clear it
+				state.sinceKeyframe = Integer.MAX_VALUE;
+			}
+		}
+	}
+
+	/*
+	 * Get the ID of a key, or -1 if it cannot have one. Assigns and announces an ID the first time
+	 * a key is seen.
+	 */
+	private int idFor(String key, byte[] utf8) {
+		Integer id = keyIds.get(key);
+		if (id == null) return define(key, utf8);
+
+		return id;
+	}
+
+	private boolean isAcknowledged(int id) {
+		return id >= 0 && definitions.get(id).isAcknowledged();
+	}
+
+	private int define(String key, byte[] utf8) {
+		if (utf8.length > MAX_DEFINABLE_KEY_LENGTH || definitions.size() > TelemetryDelta.MAX_KEY_ID) {
+			keyIds.put(key, -1); // always sent as a literal
+			return -1;
+		}
+
+		int id = definitions.size();
+		Command command = new Command(TelemetryDelta.CMD_DEFINE_KEY, id + ":" + key);
+		keyIds.put(key, id);
+		definitions.add(command);
+		commandSender.sendCommand(command);
+
+		return id;
+	}
+
+}
@@ -0,0 +1,249 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Telemetry data points of one kind, string or number, kept for encoding without allocation
+ * <p>
+ * Every key ever added gets a slot holding the key and its UTF-8 bytes, found through an open
+ * addressing index; numbers are kept in a double[], strings alongside their UTF-8 bytes. clear()
+ * only forgets which slots hold a data point, so the same keys added every loop are encoded once.
+ * A string value equal to the last value of its slot reuses its bytes too. Data points present
+ * are listed in the order they were first added since the last clear.
+ */
+final class TelemetryMap {
+
+	/** Most remembered keys before clear() forgets them all */
+	static final int MAX_KEYS = 4 * 256;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int INITIAL_SLOTS = 16;
+
+	private final boolean holdsStrings;
+
+	private String[] keys = new String[INITIAL_SLOTS];
+	private byte[][] keyBytes = new byte[INITIAL_SLOTS][];
+	private double[] numbers;
+	private String[] strings;
+	private byte[][] stringBytes;
+	private int[] position = new int[INITIAL_SLOTS]; // in order[]; -1 if not present
+	private int slotCount = 0;
+
+	private int[] index = new int[2 * INITIAL_SLOTS]; // slot + 1; 0 if empty
+	private int[] order = new int[INITIAL_SLOTS];     // present slots
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param holdsStrings true for string data points, false for number data points
+	 */
+	TelemetryMap(boolean holdsStrings) {
+		this.holdsStrings = holdsStrings;
+		if (holdsStrings) {
+			strings = new String[INITIAL_SLOTS];
+			stringBytes = new byte[INITIAL_SLOTS][];
+		} else {
+			numbers = new double[INITIAL_SLOTS];
+		}
+	}
+
+	int size() { return size; }
+	String key(int i) { return keys[order[i]]; }
+	byte[] keyBytes(int i) { return keyBytes[order[i]]; }
+	double number(int i) { return numbers[order[i]]; }
+	String string(int i) { return strings[order[i]]; }
+	byte[] stringBytes(int i) { return stringBytes[order[i]]; }
+
+	/**
+	 * Get the position of a key without adding it
+	 *
+	 * @return position; or -1 if the key is not present
+	 */
+	int indexOf(String key) {
+		int mask = index.length - 1;
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			int entry = index[i];
+			if (entry == 0) return -1;
+			if (keys[entry - 1].equals(key)) return position[entry - 1];
+		}
+	}
+
+	/**
+	 * @return position of the data point
+	 */
+	int put(String key, double value) {
+		int slot = slotFor(key, null); // may grow numbers[]
+		numbers[slot] = value;
+		return position[slot];
+	}
+
+	/**
+	 * @return position of the data point
+	 */
+	int put(String key, String value) {
+		int slot = slotFor(key, null);
+		setString(slot, value, null);
+		return position[slot];
+	}
+
+	/**
+	 * Add the data point at a position of another map, reusing its encoded bytes
+	 */
+	void putFrom(TelemetryMap other, int i) {
+		int otherSlot = other.order[i];
+		int slot = slotFor(other.keys[otherSlot], other.keyBytes[otherSlot]);
+		if (holdsStrings) {
+			setString(slot, other.strings[otherSlot], other.stringBytes[otherSlot]);
+		} else {
+			numbers[slot] = other.numbers[otherSlot];
+		}
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			position[order[i]] = -1;
+		}
+		size = 0;
+
+		if (slotCount > MAX_KEYS) {
+			// telemetry that keeps making new keys; forget the old ones
+			slotCount = 0;
+			Arrays.fill(index, 0);
+			Arrays.fill(keys, null);
+			Arrays.fill(keyBytes, null);
+			if (holdsStrings) {
+				Arrays.fill(strings, null);
+				Arrays.fill(stringBytes, null);
+			}
+		}
+	}
+
+	/**
+	 * Size of the encoded data points, including the count
+	 *
+	 * @return size in bytes
+	 */
+	int encodedSize() {
+		int count = 1;
+		for (int i = 0; i < size; i++) {
+			int slot = order[i];
+			count += 1 + keyBytes[slot].length;
+			count += holdsStrings ? 1 + stringBytes[slot].length : 4;
+		}
+		return count;
+	}
+
+	/**
+	 * Write the count of data points, then each as the length and bytes of its key, followed by
+	 * the length and bytes of its string or its float value
+	 */
+	void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		buffer.put((byte) size);
+		for (int i = 0; i < size; i++) {
+			int slot = order[i];
+			byte[] key = keyBytes[slot];
+
+			if (holdsStrings) {
+				byte[] value = stringBytes[slot];
+				if (key.length > 256 || value.length > 256) {
+					throw new RobotCoreException(String.format("Telemetry elements cannot exceed 256 bytes [%s:%s]",
+							keys[slot], strings[slot]));
+				}
+				buffer.put((byte) key.length);
+				buffer.put(key);
+				buffer.put((byte) value.length);
+				buffer.put(value);
+			} else {
+				float value = (float) numbers[slot];
+				if (key.length > 256) {
+					throw new RobotCoreException(String.format("Telemetry elements cannot exceed 256 bytes [%s:%f]",
+							keys[slot], value));
+				}
+				buffer.put((byte) key.length);
+				buffer.put(key);
+				buffer.putFloat(value);
+			}
+		}
+	}
+
+	private void setString(int slot, String value, byte[] utf8) {
+		if (value.equals(strings[slot]) && stringBytes[slot] != null) return;
+
+		strings[slot] = value;
+		stringBytes[slot] = utf8 != null ? utf8 : value.getBytes(CHARSET);
+	}
+
+	/*
+	 * Get the slot of a key, adding the key if it is new, and mark it present
+	 */
+	private int slotFor(String key, byte[] utf8) {
+		int mask = index.length - 1;
+		int i = hash(key) & mask;
+		int slot = -1;
+		for (; ; i = (i + 1) & mask) {
+			int entry = index[i];
+			if (entry == 0) break;
+			if (keys[entry - 1].equals(key)) {
+				slot = entry - 1;
+				break;
+			}
+		}
+
+		if (slot < 0) {
+			if (slotCount == keys.length) grow();
+			slot = slotCount++;
+			keys[slot] = key;
+			keyBytes[slot] = utf8 != null ? utf8 : key.getBytes(CHARSET);
+			position[slot] = -1;
+
+			if (2 * slotCount > index.length) {
+				rehash();
+			} else {
+				index[i] = slot + 1;
+			}
+		}
+
+		if (position[slot] < 0) {
+			if (size == order.length) order = Arrays.copyOf(order, size * 2);
+			order[size] = slot;
+			position[slot] = size;
+			size += 1;
+		}
+
+		return slot;
+	}
+
+	private void grow() {
+		int capacity = keys.length * 2;
+		keys = Arrays.copyOf(keys, capacity);
+		keyBytes = Arrays.copyOf(keyBytes, capacity);
+		position = Arrays.copyOf(position, capacity);
+		if (holdsStrings) {
+			strings = Arrays.copyOf(strings, capacity);
+			stringBytes = Arrays.copyOf(stringBytes, capacity);
+		} else {
+			numbers = Arrays.copyOf(numbers, capacity);
+		}
+	}
+
+	private void rehash() {
+		index = new int[index.length * 2];
+		int mask = index.length - 1;
+		for (int slot = 0; slot < slotCount; slot++) {
+			int i = hash(keys[slot]) & mask;
+			while (index[i] != 0) i = (i + 1) & mask;
+			index[i] = slot + 1;
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+}
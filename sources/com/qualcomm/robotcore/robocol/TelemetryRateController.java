@@ -0,0 +1,245 @@
+package com.qualcomm.robotcore.robocol;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts how often telemetry of each tag is sent to the state of the link
+ * <p>
+ * Every update interval the controller checks the link for congestion: heartbeats lost since the
+ * last check with the recent loss rate above a threshold, or a smoothed round trip time grown to
+ * well above the lowest seen. The round trip time only changes when a heartbeat echo arrives, so
+ * it is only judged when there are new samples, and a verdict expires if none arrive for
+ * RTT_SIGNAL_EXPIRY; a link gone quiet is then judged on loss alone. On congestion the send rate
+ * of every tag is halved, at most once per hold time; otherwise it grows by a fixed step per
+ * second, up to the maximum of the tag (AIMD). Telemetry posted faster than its rate is not
+ * queued; only the latest is sent when due.
+ */
+public class TelemetryRateController {
+
+	public static final double DEFAULT_MIN_RATE = 2;   // Hz
+	public static final double DEFAULT_MAX_RATE = 100; // Hz
+
+	/** Rate added per second without congestion, in Hz */
+	public static final double ADDITIVE_INCREASE = 10;
+
+	/** Rate multiplier on congestion */
+	public static final double MULTIPLICATIVE_DECREASE = 0.5;
+
+	/** Recent loss rate above which lost heartbeats count as congestion */
+	public static final double LOSS_THRESHOLD = 0.02;
+
+	/** Round trip time, as a multiple of the lowest seen, above which the link counts as congested */
+	public static final double RTT_GROWTH = 2.0;
+
+	private static final long RTT_GROWTH_MARGIN = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long UPDATE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long DECREASE_HOLD = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final long RTT_SIGNAL_EXPIRY = TimeUnit.SECONDS.toNanos(1);
+
+	private static class TagState {
+		double minRate = DEFAULT_MIN_RATE;
+		double maxRate = DEFAULT_MAX_RATE;
+		double rate = DEFAULT_MAX_RATE;
+		boolean haveSent = false;
+		long lastSent = 0;
+		long sent = 0;
+		long reportedSent = 0;
+	}
+
+	private final LinkQualityEstimator link;
+	private final Map<String, TagState> tags = new HashMap<String, TagState>();
+
+	private boolean started = false;
+	private long lastUpdate = 0;
+	private long lastDecrease = 0;
+	private long lastLost = 0;
+	private long baselineRtt = Long.MAX_VALUE;
+	private long lastRttSamples = 0;
+	private long lastRttSampleTime = 0;
+	private boolean rttGrown = false;
+	private boolean congested = false;
+	private long congestionEvents = 0;
+
+	private long lastReport = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param link link quality estimates to react to
+	 */
+	public TelemetryRateController(LinkQualityEstimator link) {
+		this.link = link;
+	}
+
+	/**
+	 * Set the range the send rate of a tag may vary in
+	 *
+	 * @param tag telemetry tag
+	 * @param minRate lowest rate, in Hz, used on a congested link
+	 * @param maxRate highest rate, in Hz, used on a clear link
+	 */
+	public synchronized void setRateRange(String tag, double minRate, double maxRate) {
+		if (minRate <= 0 || maxRate < minRate) {
+			throw new IllegalArgumentException(String.format("Invalid rate range %f to %f", minRate, maxRate));
+		}
+
+		TagState state = stateOf(tag);
+		state.minRate = minRate;
+		state.maxRate = maxRate;
+		state.rate = Math.max(minRate, Math.min(maxRate, state.rate));
+	}
+
+	/**
+	 * Get the rate a tag is currently allowed to send at
+	 *
+	 * @param tag telemetry tag
+	 * @return rate in Hz
+	 */
+	public synchronized double getRate(String tag) {
+		return stateOf(tag).rate;
+	}
+
+	/**
+	 * Check if the link was congested at the last update
+	 *
+	 * @return true if congested
+	 */
+	public synchronized boolean isCongested() {
+		return congested;
+	}
+
+	/**
+	 * Number of times the rates were cut because of congestion
+	 *
+	 * @return congestion event count
+	 */
+	public synchronized long getCongestionEvents() {
+		return congestionEvents;
+	}
+
+	/**
+	 * Time until telemetry of a tag may be sent
+	 *
+	 * @param tag telemetry tag
+	 * @param now System.nanoTime()
+	 * @return delay in nanoseconds; 0 if it may be sent now
+	 */
+	public synchronized long getDelay(String tag, long now) {
+		update(now);
+
+		TagState state = stateOf(tag);
+		if (!state.haveSent) return 0;
+
+		long due = state.lastSent + (long) (1e9 / state.rate);
+		return Math.max(0, due - now);
+	}
+
+	/**
+	 * Record that telemetry of a tag was sent
+	 *
+	 * @param tag telemetry tag
+	 * @param now System.nanoTime()
+	 */
+	public synchronized void onSent(String tag, long now) {
+		TagState state = stateOf(tag);
+		state.haveSent = true;
+		state.lastSent = now;
+		state.sent += 1;
+	}
+
+	/**
+	 * Forget the link history; call this when the remote device changes
+	 */
+	public synchronized void reset() {
+		started = false;
+		baselineRtt = Long.MAX_VALUE;
+		rttGrown = false;
+		congested = false;
+		for (TagState state : tags.values()) {
+			state.rate = state.maxRate;
+		}
+	}
+
+	/**
+	 * Add the allowed and actual send rate of each tag to a telemetry record
+	 * <p>
+	 * The actual rate is measured since the previous call.
+	 *
+	 * @param telemetry telemetry to add to
+	 */
+	public synchronized void addTo(Telemetry telemetry) {
+		long now = System.nanoTime();
+		double elapsed = (now - lastReport) / 1e9;
+		boolean haveElapsed = lastReport != 0 && elapsed > 0;
+		lastReport = now;
+
+		telemetry.addData("congested", congested ? 1 : 0);
+		for (Map.Entry<String, TagState> entry : tags.entrySet()) {
+			TagState state = entry.getValue();
+			telemetry.addData("rate limit " + entry.getKey(), state.rate);
+			if (haveElapsed) {
+				telemetry.addData("rate " + entry.getKey(), (state.sent - state.reportedSent) / elapsed);
+			}
+			state.reportedSent = state.sent;
+		}
+	}
+
+	private TagState stateOf(String tag) {
+		TagState state = tags.get(tag);
+		if (state == null) {
+			state = new TagState();
+			tags.put(tag, state);
+		}
+		return state;
+	}
+
+	private void update(long now) {
+		if (!started) {
+			started = true;
+			lastUpdate = now;
+			lastDecrease = now - DECREASE_HOLD;
+			lastLost = link.getLost();
+			lastRttSamples = link.getRttSampleCount();
+			lastRttSampleTime = now;
+			return;
+		}
+
+		long elapsed = now - lastUpdate;
+		if (elapsed < UPDATE_INTERVAL) return;
+		lastUpdate = now;
+
+		long lost = link.getLost();
+		long newlyLost = lost - lastLost;
+		lastLost = lost;
+
+		long rttSamples = link.getRttSampleCount();
+		long rtt = link.getSmoothedRtt();
+		if (rttSamples != lastRttSamples && rtt > 0) {
+			lastRttSamples = rttSamples;
+			lastRttSampleTime = now;
+			baselineRtt = Math.min(baselineRtt, rtt);
+			rttGrown = rtt > baselineRtt * RTT_GROWTH + RTT_GROWTH_MARGIN;
+		} else if (now - lastRttSampleTime > RTT_SIGNAL_EXPIRY) {
+			rttGrown = false;
+		}
+
+		congested = (newlyLost > 0 && link.getRecentLossRate() > LOSS_THRESHOLD) || rttGrown;
+
+		if (congested) {
+			if (now - lastDecrease < DECREASE_HOLD) return;
+			lastDecrease = now;
+			congestionEvents += 1;
+			for (TagState state : tags.values()) {
+				state.rate = Math.max(state.minRate, state.rate * MULTIPLICATIVE_DECREASE);
+			}
+		} else {
+			double increase = ADDITIVE_INCREASE * elapsed / 1e9;
+			for (TagState state : tags.values()) {
+				state.rate = Math.min(state.maxRate, state.rate + increase);
+			}
+		}
+	}
+
+}
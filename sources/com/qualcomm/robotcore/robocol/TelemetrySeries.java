@@ -0,0 +1,465 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.TypeConversion;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Timestamped samples of numeric series, sent in columns for plotting
+ * <p>
+ * Each key buffers its samples in a pair of primitive ring buffers, one of timestamps and one of
+ * values; when a key's buffer is full, its oldest sample is dropped. On the wire each key is a
+ * column of timestamps, delta encoded as variable length integers, followed by a column of
+ * values at full double precision, so a datagram carries a couple of hundred samples.
+ * moveBatchTo() splits a large buffer into messages that each fit in one datagram.
+ */
+public class TelemetrySeries implements RobocolParsable {
+
+	/*
+	 * Data format
+	 *
+	 * bytes    | format | value
+	 * ---------|--------|---------------------------------
+	 *  8       | int64  | timestamp, wall time
+	 *  8       | int64  | System.nanoTime() at the same moment, to place the samples in wall time
+	 *  1       | uint8  | length of tag (or 0 for default tag)
+	 *  varies  | UTF-8  | value of tag
+	 *  1       | uint8  | count of series
+	 *  varies  | varies | series
+	 *
+	 * Series (repeating)
+	 *
+	 * bytes    | format | value
+	 * ---------|--------|---------------------------------
+	 *  1       | uint8  | length of key
+	 *  varies  | UTF-8  | value of key
+	 *  2       | uint16 | count of samples, at least 1
+	 *  8       | int64  | time of the first sample, in nanoseconds
+	 *  varies  | varint | zigzag encoded difference from the previous time, for each later sample
+	 *  varies  | double | value of each sample
+	 */
+
+	public static final int DEFAULT_CAPACITY = 1024; // samples per key
+	public static final int MAX_SERIES = 255;
+	public static final int MAX_SAMPLES = 0xFFFF; // per series per message
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int BASE_PAYLOAD_SIZE = 8 + 8 + 1 + 1;
+	private static final int SERIES_HEADER_SIZE = 1 + 2 + 8; // plus the key
+	private static final int MAX_VARINT_SIZE = 10;
+
+	private final int capacity;
+
+	private long timestamp = 0;
+	private long nanoTime = 0;
+	private String tag = "";
+
+	// keys stay between clear()s; there are few per tag, so lookup is a linear search
+	private String[] keys = new String[4];
+	private byte[][] keyBytes = new byte[4][];
+	private long[][] times = new long[4][];
+	private double[][] values = new double[4][];
+	private int[] starts = new int[4];
+	private int[] counts = new int[4];
+	private int keyCount = 0;
+
+	private long dropped = 0;
+
+	/**
+	 * Constructor, with the default capacity
+	 */
+	public TelemetrySeries() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity samples buffered per key; rounded up to a power of two
+	 */
+	public TelemetrySeries(int capacity) {
+		int rounded = 1;
+		while (rounded < capacity) rounded <<= 1;
+		this.capacity = rounded;
+	}
+
+	public TelemetrySeries(byte[] byteArray) throws RobotCoreException {
+		this(MAX_SAMPLES);
+		fromByteArray(byteArray);
+	}
+
+	public void setTag(String tag) {
+		this.tag = tag;
+	}
+
+	public String getTag() {
+		if (tag.length() == 0) return Telemetry.DEFAULT_TAG;
+		return tag;
+	}
+
+	/**
+	 * Timestamp this message was sent, in wall time
+	 *
+	 * @return timestamp, or 0 if never sent
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * System.nanoTime() of the sender when this message was sent; sample times minus this, plus
+	 * getTimestamp() in nanoseconds, give the wall time of a sample
+	 *
+	 * @return sender nanoTime
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * Add a sample
+	 *
+	 * @param key series key
+	 * @param time sample time, in nanoseconds; normally System.nanoTime()
+	 * @param value sample value
+	 */
+	public void add(String key, long time, double value) {
+		int k = indexOf(key);
+		if (k < 0) k = insert(key);
+
+		if (counts[k] == capacity) {
+			// full, drop the oldest
+			starts[k] = (starts[k] + 1) & (capacity - 1);
+			counts[k] -= 1;
+			dropped += 1;
+		} else if (counts[k] == times[k].length) {
+			grow(k);
+		}
+
+		int i = (starts[k] + counts[k]) & (times[k].length - 1);
+		times[k][i] = time;
+		values[k][i] = value;
+		counts[k] += 1;
+	}
+
+	/**
+	 * Add every sample of another series buffer, oldest first
+	 *
+	 * @param other samples to add
+	 */
+	public void addAll(TelemetrySeries other) {
+		for (int k = 0; k < other.keyCount; k++) {
+			int mask = other.times[k].length - 1;
+			for (int j = 0; j < other.counts[k]; j++) {
+				int i = (other.starts[k] + j) & mask;
+				add(other.keys[k], other.times[k][i], other.values[k][i]);
+			}
+		}
+	}
+
+	/**
+	 * Move the oldest samples into a batch that encodes to at most maxSize bytes
+	 * <p>
+	 * The batch is cleared first, and gets the tag of this buffer.
+	 *
+	 * @param batch batch to fill
+	 * @param maxSize largest encoded size of the batch
+	 * @return true if any samples were moved; false if this buffer is empty
+	 */
+	public boolean moveBatchTo(TelemetrySeries batch, int maxSize) {
+		batch.clear();
+		batch.tag = tag;
+
+		int size = RobocolParsable.HEADER_LENGTH + BASE_PAYLOAD_SIZE + tag.getBytes(CHARSET).length;
+		boolean moved = false;
+
+		for (int k = 0; k < keyCount && batch.keyCount < MAX_SERIES; k++) {
+			if (counts[k] == 0) continue;
+
+			int header = SERIES_HEADER_SIZE + keyBytes[k].length;
+			if (size + header + 8 > maxSize) break;
+			size += header;
+
+			int mask = times[k].length - 1;
+			long previous = 0;
+			int taken = 0;
+			int limit = Math.min(MAX_SAMPLES, batch.capacity);
+			while (counts[k] > 0 && taken < limit) {
+				int i = starts[k];
+				int sampleSize = 8 + (taken == 0 ? 0 : varintSize(zigzag(times[k][i] - previous)));
+				if (size + sampleSize > maxSize) break;
+
+				size += sampleSize;
+				previous = times[k][i];
+				batch.add(keys[k], times[k][i], values[k][i]);
+				starts[k] = (i + 1) & mask;
+				counts[k] -= 1;
+				taken += 1;
+			}
+
+			moved |= taken > 0;
+			if (counts[k] > 0) break; // batch is full
+		}
+
+		return moved;
+	}
+
+	/**
+	 * Remove every sample; keys are remembered, so adding samples of them does not allocate
+	 */
+	public void clear() {
+		timestamp = 0;
+		nanoTime = 0;
+		for (int k = 0; k < keyCount; k++) {
+			starts[k] = 0;
+			counts[k] = 0;
+		}
+	}
+
+	/**
+	 * Check if there are any samples
+	 *
+	 * @return true if there are samples
+	 */
+	public boolean hasData() {
+		for (int k = 0; k < keyCount; k++) {
+			if (counts[k] > 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Number of samples dropped because a key's buffer was full
+	 *
+	 * @return dropped count
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Index of a key, for the getters below
+	 *
+	 * @param key key
+	 * @return index; or -1 if the key is unknown
+	 */
+	public int indexOf(String key) {
+		for (int k = 0; k < keyCount; k++) {
+			if (keys[k].equals(key)) return k;
+		}
+		return -1;
+	}
+
+	public int getKeyCount() { return keyCount; }
+	public String getKey(int k) { return keys[k]; }
+	public int getSampleCount(int k) { return counts[k]; }
+	public long getTime(int k, int j) { return times[k][(starts[k] + j) & (times[k].length - 1)]; }
+	public double getValue(int k, int j) { return values[k][(starts[k] + j) & (values[k].length - 1)]; }
+
+	@Override
+	public MsgType getRobocolMsgType() {
+		return MsgType.TELEMETRY_SERIES;
+	}
+
+	@Override
+	public int encodedSize() {
+		int size = RobocolParsable.HEADER_LENGTH + BASE_PAYLOAD_SIZE + tag.getBytes(CHARSET).length;
+		for (int k = 0; k < keyCount; k++) {
+			if (counts[k] == 0) continue;
+
+			size += SERIES_HEADER_SIZE + keyBytes[k].length + 8 * counts[k];
+			long previous = getTime(k, 0);
+			for (int j = 1; j < counts[k]; j++) {
+				long time = getTime(k, j);
+				size += varintSize(zigzag(time - previous));
+				previous = time;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) throws RobotCoreException {
+		int seriesCount = 0;
+		for (int k = 0; k < keyCount; k++) {
+			if (counts[k] == 0) continue;
+			seriesCount += 1;
+			if (counts[k] > MAX_SAMPLES) {
+				throw new RobotCoreException("Cannot send more than " + MAX_SAMPLES + " samples of a series in one message");
+			}
+		}
+		if (seriesCount > MAX_SERIES) {
+			throw new RobotCoreException("Cannot send more than " + MAX_SERIES + " series in one message");
+		}
+
+		byte[] tagBytes = tag.getBytes(CHARSET);
+		if (tagBytes.length > 255) {
+			throw new RobotCoreException(String.format("Telemetry tag cannot exceed 255 bytes [%s]", tag));
+		}
+
+		int totalSize = encodedSize();
+		if (totalSize > RobocolConfig.MAX_MESSAGE_SIZE) {
+			throw new RobotCoreException(String.format("Cannot send telemetry series of %d bytes; max is %d",
+					totalSize, RobocolConfig.MAX_MESSAGE_SIZE));
+		}
+		if (buffer.remaining() < totalSize) {
+			throw new RobotCoreException(String.format("Cannot write telemetry series of %d bytes; buffer has %d remaining",
+					totalSize, buffer.remaining()));
+		}
+
+		timestamp = System.currentTimeMillis();
+		nanoTime = System.nanoTime();
+
+		buffer.put(getRobocolMsgType().asByte());
+		buffer.putShort((short) (totalSize - RobocolParsable.HEADER_LENGTH));
+		buffer.putLong(timestamp);
+		buffer.putLong(nanoTime);
+
+		buffer.put((byte) tagBytes.length);
+		buffer.put(tagBytes);
+
+		buffer.put((byte) seriesCount);
+		for (int k = 0; k < keyCount; k++) {
+			if (counts[k] == 0) continue;
+
+			buffer.put((byte) keyBytes[k].length);
+			buffer.put(keyBytes[k]);
+			buffer.putShort((short) counts[k]);
+
+			long previous = getTime(k, 0);
+			buffer.putLong(previous);
+			for (int j = 1; j < counts[k]; j++) {
+				long time = getTime(k, j);
+				putVarint(buffer, zigzag(time - previous));
+				previous = time;
+			}
+
+			for (int j = 0; j < counts[k]; j++) {
+				buffer.putDouble(getValue(k, j));
+			}
+		}
+	}
+
+	@Override
+	public byte[] toByteArray() throws RobotCoreException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		writeTo(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+		clear();
+		keyCount = 0;
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(byteArray, RobocolParsable.HEADER_LENGTH, byteArray.length - RobocolParsable.HEADER_LENGTH);
+
+			timestamp = buffer.getLong();
+			nanoTime = buffer.getLong();
+			tag = readString(buffer);
+
+			int seriesCount = TypeConversion.unsignedByteToInt(buffer.get());
+			for (int n = 0; n < seriesCount; n++) {
+				String key = readString(buffer);
+				int count = buffer.getShort() & 0xFFFF;
+				if (count == 0) throw new RobotCoreException("Telemetry series " + key + " has no samples");
+
+				int k = insert(key);
+				long[] keyTimes = new long[count];
+				keyTimes[0] = buffer.getLong();
+				for (int j = 1; j < count; j++) {
+					keyTimes[j] = keyTimes[j - 1] + unzigzag(getVarint(buffer));
+				}
+				for (int j = 0; j < count; j++) {
+					add(key, keyTimes[j], buffer.getDouble());
+				}
+				if (counts[k] != count) throw new RobotCoreException("Telemetry series " + key + " is repeated or too long");
+			}
+		} catch (BufferUnderflowException e) {
+			throw new RobotCoreException("Telemetry series is truncated, received " + byteArray.length + " bytes");
+		}
+	}
+
+	private int insert(String key) {
+		if (keyCount == keys.length) {
+			int size = keyCount * 2;
+			keys = Arrays.copyOf(keys, size);
+			keyBytes = Arrays.copyOf(keyBytes, size);
+			times = Arrays.copyOf(times, size);
+			values = Arrays.copyOf(values, size);
+			starts = Arrays.copyOf(starts, size);
+			counts = Arrays.copyOf(counts, size);
+		}
+
+		int k = keyCount++;
+		keys[k] = key;
+		keyBytes[k] = key.getBytes(CHARSET);
+		int initial = Math.min(16, capacity);
+		times[k] = new long[initial];
+		values[k] = new double[initial];
+		starts[k] = 0;
+		counts[k] = 0;
+		return k;
+	}
+
+	private void grow(int k) {
+		int length = times[k].length;
+		long[] newTimes = new long[length * 2];
+		double[] newValues = new double[length * 2];
+		for (int j = 0; j < counts[k]; j++) {
+			int i = (starts[k] + j) & (length - 1);
+			newTimes[j] = times[k][i];
+			newValues[j] = values[k][i];
+		}
+		times[k] = newTimes;
+		values[k] = newValues;
+		starts[k] = 0;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[TypeConversion.unsignedByteToInt(buffer.get())];
+		buffer.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int varintSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size += 1;
+		}
+		return size;
+	}
+
+	private static void putVarint(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static long getVarint(ByteBuffer buffer) throws RobotCoreException {
+		long value = 0;
+		for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new RobotCoreException("Malformed time in telemetry series");
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.qualcomm.robotcore.robocol;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sender side table of recurring telemetry string values
+ * <p>
+ * Status text, state names and error messages tend to be sent over and over. Once a value has
+ * been seen RECURRENCE times among the recently seen values it is given one of CAPACITY slot IDs,
+ * announced to the receiver with a CMD_DEFINE_STRING command, and sent as its ID once that command
+ * has been acknowledged. When all slots are taken the table evicts its least recently used value
+ * and redefines that slot, so the receiver cache is LRU evicted in step with this table. Values
+ * that never repeat, such as formatted numbers, are never given a slot.
+ * <p>
+ * Definitions are commands, which may overtake deltas still queued behind other telemetry, so an
+ * ID is the slot plus its generation, bumped each time the slot is redefined. The receiver keeps
+ * the current and the previous value of each slot, so a delta sent before the slot was
+ * redefined still resolves to the value it referred to.
+ *
+ * @see TelemetryDeltaEncoder
+ * @see TelemetryDeltaDecoder
+ */
+public class TelemetryStringTable {
+
+	/** Number of slots, and so the most values the receiver caches */
+	public static final int CAPACITY = 256;
+
+	/** Number of times a value must be seen before it is given a slot */
+	public static final int RECURRENCE = 3;
+
+	/** Shortest value worth a slot, in UTF-8 bytes; shorter values cost less sent in full */
+	public static final int MIN_LENGTH = 3;
+
+	// longest value that still fits in a CMD_DEFINE_STRING command along with its "id:" prefix; an
+	// ID, slot plus generation, has up to 5 digits
+	private static final int MAX_DEFINABLE_LENGTH = Command.MAX_COMMAND_LENGTH - 6;
+
+	private static final int MAX_CANDIDATES = 2 * CAPACITY;
+	private static final int GENERATIONS = 256;
+
+	private static class Entry {
+		final int slot;
+		final int id;
+		final Command definition;
+		long lastUsed;
+
+		Entry(int slot, int id, Command definition) {
+			this.slot = slot;
+			this.id = id;
+			this.definition = definition;
+		}
+	}
+
+	private final TelemetryDeltaEncoder.CommandSender commandSender;
+
+	// both in access order, least recently used first
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(CAPACITY, 0.75f, true);
+	private final LinkedHashMap<String, int[]> candidates = new LinkedHashMap<String, int[]>(MAX_CANDIDATES, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+			return size() > MAX_CANDIDATES;
+		}
+	};
+	private final int[] generations = new int[CAPACITY];
+
+	private long message = 0;
+	private long hits = 0;
+	private long definitions = 0;
+	private long evictions = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param commandSender used to announce slot definitions
+	 */
+	public TelemetryStringTable(TelemetryDeltaEncoder.CommandSender commandSender) {
+		this.commandSender = commandSender;
+	}
+
+	/**
+	 * Forget every slot; call this when the receiver changes
+	 */
+	public synchronized void reset() {
+		entries.clear();
+		candidates.clear();
+		Arrays.fill(generations, 0);
+	}
+
+	/**
+	 * Start a new message; values looked up since the previous call are never evicted for a value
+	 * looked up after it, so a message cannot redefine a slot it refers to
+	 */
+	public synchronized void beginMessage() {
+		message += 1;
+	}
+
+	/**
+	 * Get the slot ID to send in place of a value
+	 *
+	 * @param value string value about to be sent
+	 * @param utf8 value encoded as UTF-8
+	 * @return string table ID; or -1 if the value must be sent in full
+	 */
+	public synchronized int lookup(String value, byte[] utf8) {
+		Entry entry = entries.get(value);
+		if (entry != null) {
+			entry.lastUsed = message;
+			if (!entry.definition.isAcknowledged()) return -1;
+			hits += 1;
+			return entry.id;
+		}
+
+		if (utf8.length < MIN_LENGTH || utf8.length > MAX_DEFINABLE_LENGTH) return -1;
+
+		int[] seen = candidates.get(value);
+		if (seen == null) {
+			candidates.put(value, new int[] { 1 });
+			return -1;
+		}
+		seen[0] += 1;
+		if (seen[0] < RECURRENCE) return -1;
+
+		define(value);
+		return -1;
+	}
+
+	/**
+	 * Number of values sent as a slot ID
+	 *
+	 * @return hit count
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Number of slot definitions sent
+	 *
+	 * @return definition count
+	 */
+	public synchronized long getDefinitionCount() {
+		return definitions;
+	}
+
+	/**
+	 * Number of values evicted to make room for another
+	 *
+	 * @return eviction count
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	private void define(String value) {
+		int slot;
+		if (entries.size() < CAPACITY) {
+			slot = entries.size();
+		} else {
+			Iterator<Entry> it = entries.values().iterator();
+			Entry eldest = it.next();
+			if (eldest.lastUsed == message) return; // every slot is in use by this message
+			it.remove();
+			slot = eldest.slot;
+			generations[slot] = (generations[slot] + 1) % GENERATIONS;
+			evictions += 1;
+		}
+
+		candidates.remove(value);
+
+		int id = slot + CAPACITY * generations[slot];
+		Command command = new Command(TelemetryDelta.CMD_DEFINE_STRING, id + ":" + value);
+		Entry entry = new Entry(slot, id, command);
+		entry.lastUsed = message;
+		entries.put(value, entry);
+		definitions += 1;
+		commandSender.sendCommand(command);
+	}
+
+}
@@ -0,0 +1,142 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records every datagram a RobocolDatagramSocket sends and receives to an append only capture file
+ * <p>
+ * The file is written through memory mapped regions, so recording a datagram is a copy into
+ * memory with no system call. A file starts with a header of magic, version, and the wall clock
+ * time and System.nanoTime() at the start of the capture. Each record is the datagram length, its
+ * System.nanoTime() timestamp, its direction, the remote address length and bytes, and the
+ * datagram bytes; a length of 0 marks the end. See RobocolReplaySocket to play a capture back.
+ */
+public class TrafficRecorder {
+
+	public static final int MAGIC = 0x52424354; // "RBCT"
+	public static final short VERSION = 1;
+	public static final int FILE_HEADER_LENGTH = 24;
+	public static final int RECORD_HEADER_LENGTH = 14; // before the address and datagram bytes
+
+	public static final byte RECEIVED = 0;
+	public static final byte SENT = 1;
+
+	private static final int REGION_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer region;
+	private long regionStart = 0;
+
+	private boolean open = true;
+	private long records = 0;
+	private long dropped = 0;
+
+	/**
+	 * Constructor; creates or truncates the capture file
+	 *
+	 * @param capture capture file
+	 * @throws IOException if the file cannot be created
+	 */
+	public TrafficRecorder(File capture) throws IOException {
+		file = new RandomAccessFile(capture, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+
+		region.putInt(MAGIC);
+		region.putShort(VERSION);
+		region.putShort((short) 0); // reserved
+		region.putLong(System.currentTimeMillis());
+		region.putLong(System.nanoTime());
+	}
+
+	/**
+	 * Append a datagram to the capture
+	 *
+	 * @param direction RECEIVED or SENT
+	 * @param data buffer holding the datagram
+	 * @param offset offset of the datagram in the buffer
+	 * @param length length of the datagram
+	 * @param address remote address; may be null
+	 * @param time System.nanoTime() when the datagram was sent or received
+	 */
+	public synchronized void record(byte direction, byte[] data, int offset, int length, InetAddress address, long time) {
+		if (!open || length <= 0) return;
+
+		byte[] addressBytes = address == null ? null : address.getAddress();
+		int addressLength = addressBytes == null ? 0 : addressBytes.length;
+		int size = RECORD_HEADER_LENGTH + addressLength + length;
+
+		if (region.remaining() < size + 4) { // always leave room for the end marker
+			try {
+				regionStart += region.position();
+				region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, size + 4));
+			} catch (IOException e) {
+				RobotLog.w("Unable to extend traffic capture, recording stopped: " + e.toString());
+				dropped += 1;
+				close();
+				return;
+			}
+		}
+
+		region.putInt(length);
+		region.putLong(time);
+		region.put(direction);
+		region.put((byte) addressLength);
+		if (addressLength > 0) region.put(addressBytes);
+		region.put(data, offset, length);
+		records += 1;
+	}
+
+	/**
+	 * Number of datagrams recorded
+	 *
+	 * @return record count
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Number of datagrams that could not be recorded
+	 *
+	 * @return dropped count
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Number of bytes in the capture file so far
+	 *
+	 * @return capture size
+	 */
+	public synchronized long getCaptureSize() {
+		return regionStart + region.position();
+	}
+
+	/**
+	 * Flush the capture and trim the file to the recorded length
+	 */
+	public synchronized void close() {
+		if (!open) return;
+		open = false;
+
+		try {
+			region.force();
+			channel.truncate(regionStart + region.position() + 4); // end marker is the zeroed tail
+			file.close();
+		} catch (IOException e) {
+			RobotLog.w("Unable to close traffic capture: " + e.toString());
+		}
+	}
+
+}
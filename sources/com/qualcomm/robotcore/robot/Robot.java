@@ -35,6 +35,7 @@ import com.qualcomm.robotcore.eventloop.EventLoopManager;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.robocol.RobocolDatagram;
 import com.qualcomm.robotcore.robocol.RobocolDatagramSocket;
+import com.qualcomm.robotcore.robocol.SendQueue;
 import com.qualcomm.robotcore.util.RobotLog;
 
 import java.net.InetAddress;
@@ -50,7 +51,7 @@ public class Robot {
 
 	public EventLoopManager eventLoopManager = null;
 	public RobocolDatagramSocket socket = null;
-	public ArrayBlockingQueue<RobocolDatagram> sendQueue = null;
+	public SendQueue sendQueue = null;
 	public ArrayBlockingQueue<RobocolDatagram> eventQueue = null;
 
 	public void start(InetAddress driverStationAddr, EventLoop eventLoop) throws RobotCoreException {
@@ -0,0 +1,301 @@
+package com.qualcomm.robotcore.util;
+
+/**
+ * Reduce a long series of samples to a few points that still plot like the original
+ * <p>
+ * Both methods read the samples in order, one at a time, through cursors, and write straight
+ * into the output arrays; nothing is allocated in proportion to the samples, so they can be run
+ * over millions of samples on the robot, or over samples that are never all in memory at once.
+ * Times may be in any unit; they are taken relative to the first sample, so wall clock
+ * nanoseconds keep their precision.
+ */
+public class Downsampler {
+
+	/**
+	 * Samples read in order, one at a time
+	 */
+	public interface Cursor {
+		/**
+		 * Move to the next sample; a new cursor is before the first
+		 *
+		 * @return false if there are no more samples
+		 */
+		boolean next();
+
+		/** @return time of the current sample */
+		long time();
+
+		/** @return value of the current sample */
+		double value();
+	}
+
+	/**
+	 * Samples that can be read more than once
+	 */
+	public interface Source {
+		/**
+		 * @return a new cursor, before the first sample
+		 */
+		Cursor open();
+	}
+
+	/*
+	 * Samples in a range of two arrays
+	 */
+	private static class ArraySource implements Source {
+		final long[] times;
+		final double[] values;
+		final int offset;
+		final int count;
+
+		ArraySource(long[] times, double[] values, int offset, int count) {
+			this.times = times;
+			this.values = values;
+			this.offset = offset;
+			this.count = count;
+		}
+
+		@Override
+		public Cursor open() {
+			return new Cursor() {
+				int i = offset - 1;
+
+				@Override
+				public boolean next() {
+					if (i + 1 >= offset + count) return false;
+					i += 1;
+					return true;
+				}
+
+				@Override
+				public long time() {
+					return times[i];
+				}
+
+				@Override
+				public double value() {
+					return values[i];
+				}
+			};
+		}
+	}
+
+	/*
+	 * This class contains only static utility methods
+	 */
+	private Downsampler() {}
+
+	/**
+	 * Largest triangle three buckets (LTTB) over samples in arrays
+	 *
+	 * @see #lttb(Source, int, int, long[], double[])
+	 * @param times sample times, in increasing order
+	 * @param values sample values
+	 * @param offset index of the first sample
+	 * @param count number of samples
+	 * @param points number of points wanted; at least 3
+	 * @param outTimes array to write the point times to; must hold min(count, points)
+	 * @param outValues array to write the point values to; must hold min(count, points)
+	 * @return number of points written
+	 */
+	public static int lttb(long[] times, double[] values, int offset, int count, int points, long[] outTimes, double[] outValues) {
+		return lttb(new ArraySource(times, values, offset, count), count, points, outTimes, outValues);
+	}
+
+	/**
+	 * Largest triangle three buckets (LTTB)
+	 * <p>
+	 * The first and last samples are kept. The samples between are split into points - 2 buckets,
+	 * and from each bucket the sample is kept that forms the largest triangle with the sample kept
+	 * from the previous bucket and the mean of the next bucket. Peaks and edges survive, unlike
+	 * with averaging or decimation.
+	 * <p>
+	 * Two cursors are read side by side, one a bucket ahead of the other for the means, so every
+	 * sample is read twice and none is held.
+	 *
+	 * @param source samples, in increasing time order
+	 * @param count number of samples in the source
+	 * @param points number of points wanted; at least 3
+	 * @param outTimes array to write the point times to; must hold min(count, points)
+	 * @param outValues array to write the point values to; must hold min(count, points)
+	 * @return number of points written
+	 */
+	public static int lttb(Source source, int count, int points, long[] outTimes, double[] outValues) {
+		if (points < 3) throw new IllegalArgumentException("LTTB needs at least 3 points, not " + points);
+
+		Cursor trail = source.open();
+		if (count <= points) return copy(trail, count, outTimes, outValues);
+
+		Cursor lead = source.open();
+		int buckets = points - 2;
+		double every = (double) (count - 2) / buckets;
+
+		// the first sample
+		trail.next();
+		long base = trail.time();
+		outTimes[0] = base;
+		outValues[0] = trail.value();
+		int out = 1;
+
+		double selectedTime = 0; // sample kept from the previous bucket, relative to base
+		double selectedValue = trail.value();
+
+		// the lead cursor starts at the second bucket
+		int leadIndex = 0;
+		int bucketStart = 1;
+		int bucketEnd = bucketEnd(0, buckets, every, count);
+		while (leadIndex < bucketEnd) {
+			lead.next();
+			leadIndex += 1;
+		}
+
+		for (int b = 0; b < buckets; b++) {
+			int nextEnd = b == buckets - 1 ? count : bucketEnd(b + 1, buckets, every, count);
+
+			// mean of the next bucket; the last sample on the final bucket
+			double meanTime = 0;
+			double meanValue = 0;
+			int nextCount = nextEnd - leadIndex;
+			while (leadIndex < nextEnd) {
+				lead.next();
+				leadIndex += 1;
+				meanTime += lead.time() - base;
+				meanValue += lead.value();
+			}
+			meanTime /= nextCount;
+			meanValue /= nextCount;
+
+			// the sample of this bucket forming the largest triangle
+			double maxArea = -1;
+			long bestTime = 0;
+			double bestValue = 0;
+			for (int i = bucketStart; i < bucketEnd; i++) {
+				trail.next();
+				long time = trail.time();
+				double value = trail.value();
+				// twice the triangle area; only the comparison matters
+				double area = Math.abs((selectedTime - meanTime) * (value - selectedValue)
+						- (selectedTime - (time - base)) * (meanValue - selectedValue));
+				if (area > maxArea) {
+					maxArea = area;
+					bestTime = time;
+					bestValue = value;
+				}
+			}
+
+			outTimes[out] = bestTime;
+			outValues[out] = bestValue;
+			out += 1;
+
+			selectedTime = bestTime - base;
+			selectedValue = bestValue;
+			bucketStart = bucketEnd;
+			bucketEnd = nextEnd;
+		}
+
+		// the last sample, where the lead cursor stopped
+		outTimes[out] = lead.time();
+		outValues[out] = lead.value();
+		return out + 1;
+	}
+
+	/*
+	 * Index after the last sample of an LTTB bucket; the final bucket ends before the last sample
+	 */
+	private static int bucketEnd(int bucket, int buckets, double every, int count) {
+		return bucket == buckets - 1 ? count - 1 : (int) ((bucket + 1) * every) + 1;
+	}
+
+	/**
+	 * Min/max envelope over samples in arrays
+	 *
+	 * @see #minMax(Cursor, int, int, long[], double[])
+	 * @param times sample times, in increasing order
+	 * @param values sample values
+	 * @param offset index of the first sample
+	 * @param count number of samples
+	 * @param buckets number of buckets; at least 1
+	 * @param outTimes array to write the point times to; must hold min(count, 2 * buckets)
+	 * @param outValues array to write the point values to; must hold min(count, 2 * buckets)
+	 * @return number of points written
+	 */
+	public static int minMax(long[] times, double[] values, int offset, int count, int buckets, long[] outTimes, double[] outValues) {
+		return minMax(new ArraySource(times, values, offset, count).open(), count, buckets, outTimes, outValues);
+	}
+
+	/**
+	 * Min/max envelope
+	 * <p>
+	 * The samples are split into buckets, and the lowest and highest sample of each bucket are
+	 * kept, in time order. Every extreme survives, so a plot of the points has the same outline
+	 * as a plot of all the samples.
+	 *
+	 * @param cursor samples, in increasing time order
+	 * @param count number of samples the cursor reads
+	 * @param buckets number of buckets; at least 1
+	 * @param outTimes array to write the point times to; must hold min(count, 2 * buckets)
+	 * @param outValues array to write the point values to; must hold min(count, 2 * buckets)
+	 * @return number of points written
+	 */
+	public static int minMax(Cursor cursor, int count, int buckets, long[] outTimes, double[] outValues) {
+		if (buckets < 1) throw new IllegalArgumentException("Invalid bucket count " + buckets);
+
+		if (count <= 2 * buckets) return copy(cursor, count, outTimes, outValues);
+
+		int out = 0;
+		double every = (double) count / buckets;
+		int bucketStart = 0;
+
+		for (int b = 0; b < buckets; b++) {
+			int bucketEnd = b == buckets - 1 ? count : (int) ((b + 1) * every);
+
+			cursor.next();
+			int minIndex = bucketStart;
+			long minTime = cursor.time();
+			double min = cursor.value();
+			int maxIndex = bucketStart;
+			long maxTime = minTime;
+			double max = min;
+			for (int i = bucketStart + 1; i < bucketEnd; i++) {
+				cursor.next();
+				double value = cursor.value();
+				if (value < min) {
+					minIndex = i;
+					minTime = cursor.time();
+					min = value;
+				}
+				if (value > max) {
+					maxIndex = i;
+					maxTime = cursor.time();
+					max = value;
+				}
+			}
+
+			// in the order they were read
+			boolean minFirst = minIndex <= maxIndex;
+			outTimes[out] = minFirst ? minTime : maxTime;
+			outValues[out] = minFirst ? min : max;
+			out += 1;
+			if (minIndex != maxIndex) {
+				outTimes[out] = minFirst ? maxTime : minTime;
+				outValues[out] = minFirst ? max : min;
+				out += 1;
+			}
+
+			bucketStart = bucketEnd;
+		}
+
+		return out;
+	}
+
+	private static int copy(Cursor cursor, int count, long[] outTimes, double[] outValues) {
+		int out = 0;
+		while (out < count && cursor.next()) {
+			outTimes[out] = cursor.time();
+			outValues[out] = cursor.value();
+			out += 1;
+		}
+		return out;
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.qualcomm.robotcore.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a loop at a fixed rate against absolute deadlines
+ * <p>
+ * Each call to awaitNext() waits for the next deadline, one period after the previous one, so the
+ * time taken by the loop body does not shift the schedule. The wait parks the thread until a few
+ * hundred microseconds before the deadline, then spins, since park wakes up too late to hit a
+ * deadline by itself. A loop body that runs past the next deadline is an overrun, handled by the
+ * catch up policy. Under CATCH_UP, the iterations run back to back for the periods missed are part
+ * of the same overrun; they are not counted again, nor recorded as jitter.
+ * <p>
+ * Intended for a single loop thread; readers of the statistics on other threads may see a
+ * slightly inconsistent snapshot.
+ */
+public class FixedRateScheduler {
+
+	/** Time before a deadline to stop parking and start spinning, in nanoseconds */
+	public static final long DEFAULT_SPIN_THRESHOLD = 300000;
+
+	/** Most periods CATCH_UP runs back to back before it skips instead */
+	public static final int MAX_CATCH_UP = 5;
+
+	/**
+	 * What to do with the periods missed when the loop body overruns
+	 */
+	public enum CatchUp {
+		/** run the late iteration now, drop any periods missed entirely, and stay on the original schedule */
+		SKIP,
+		/** run the missed periods back to back, up to MAX_CATCH_UP, keeping the count of iterations */
+		CATCH_UP,
+		/** run now, and schedule from now on; the schedule shifts by the overrun */
+		RESTART
+	}
+
+	private static final int RATE_SMOOTHING = 16; // periods
+
+	private final long period;
+	private final CatchUp policy;
+	private long spinThreshold = DEFAULT_SPIN_THRESHOLD;
+
+	private boolean started = false;
+	private long deadline = 0;
+	private long behind = 0; // last deadline already missed when CATCH_UP began catching up
+	private long lastStart = 0;
+	private double smoothedPeriod = 0;
+
+	private final LogLinearHistogram jitter = new LogLinearHistogram();
+	private long iterations = 0;
+	private long overruns = 0;
+	private long missedPeriods = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param frequency target loop rate, in Hz
+	 * @param policy what to do when the loop body overruns
+	 */
+	public FixedRateScheduler(double frequency, CatchUp policy) {
+		if (frequency <= 0 || frequency > 1e6) {
+			throw new IllegalArgumentException("Invalid loop frequency " + frequency);
+		}
+		this.period = Math.round(1e9 / frequency);
+		this.policy = policy;
+		this.smoothedPeriod = period;
+	}
+
+	/**
+	 * Set how long before a deadline to stop parking and start spinning
+	 * <p>
+	 * A longer spin hits deadlines more precisely on a coarse scheduler, at the cost of CPU time.
+	 *
+	 * @param spinThreshold spin time, in nanoseconds; 0 to never spin
+	 */
+	public void setSpinThreshold(long spinThreshold) {
+		this.spinThreshold = Math.max(0, spinThreshold);
+	}
+
+	/**
+	 * Start a new schedule on the next call to awaitNext(), which returns at once; call this after
+	 * the loop has paused, so the pause is not counted as an overrun
+	 */
+	public void restart() {
+		started = false;
+	}
+
+	/**
+	 * Wait for the next deadline
+	 * <p>
+	 * The first call returns at once and starts the schedule.
+	 *
+	 * @return how late this iteration starts, in nanoseconds
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public long awaitNext() throws InterruptedException {
+		long now = System.nanoTime();
+
+		if (!started) {
+			started = true;
+			deadline = now;
+			behind = now;
+			lastStart = now;
+			return 0;
+		}
+
+		deadline += period;
+		boolean catchingUp = deadline - behind <= 0;
+		if (now - deadline > 0) {
+			// the last iteration ran past this deadline; run now, and deal with any whole periods missed
+			long missed = (now - deadline) / period;
+			if (!catchingUp) overruns += 1;
+
+			if (policy == CatchUp.CATCH_UP && missed < MAX_CATCH_UP) {
+				// the next iterations will be late too, and run at once
+				if (!catchingUp) behind = deadline + missed * period;
+			} else if (policy == CatchUp.RESTART) {
+				deadline = now;
+				missedPeriods += missed;
+			} else {
+				// SKIP, or CATCH_UP too far behind to catch up
+				deadline += missed * period;
+				missedPeriods += missed;
+			}
+		}
+
+		waitUntil(deadline);
+
+		long start = System.nanoTime();
+		long actualPeriod = start - lastStart;
+		lastStart = start;
+
+		iterations += 1;
+		if (!catchingUp) jitter.record(Math.abs(actualPeriod - period));
+		smoothedPeriod += (actualPeriod - smoothedPeriod) / RATE_SMOOTHING;
+
+		return start - deadline;
+	}
+
+	/**
+	 * @return target loop rate, in Hz
+	 */
+	public double getTargetRate() {
+		return 1e9 / period;
+	}
+
+	/**
+	 * @return target period, in nanoseconds
+	 */
+	public long getPeriod() {
+		return period;
+	}
+
+	public CatchUp getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return loop rate over roughly the last 16 periods, in Hz
+	 */
+	public double getAchievedRate() {
+		return smoothedPeriod <= 0 ? 0 : 1e9 / smoothedPeriod;
+	}
+
+	/**
+	 * Get a percentile of the jitter: how far each period was from the target
+	 *
+	 * @param percentile between 0 and 100
+	 * @return jitter, in nanoseconds
+	 */
+	public long getJitterPercentile(double percentile) {
+		return jitter.getPercentile(percentile);
+	}
+
+	/**
+	 * @return largest jitter, in nanoseconds
+	 */
+	public long getMaxJitter() {
+		return jitter.getMax();
+	}
+
+	/**
+	 * @return number of iterations run
+	 */
+	public long getIterationCount() {
+		return iterations;
+	}
+
+	/**
+	 * @return number of iterations that started late, because the one before ran past their
+	 *         deadline; the CATCH_UP iterations that follow are not counted
+	 */
+	public long getOverrunCount() {
+		return overruns;
+	}
+
+	/**
+	 * @return number of periods dropped by SKIP, by RESTART, or by CATCH_UP when too far behind
+	 */
+	public long getMissedPeriods() {
+		return missedPeriods;
+	}
+
+	/**
+	 * Clear the jitter histogram and counters
+	 */
+	public void resetStatistics() {
+		jitter.reset();
+		iterations = 0;
+		overruns = 0;
+		missedPeriods = 0;
+	}
+
+	private void waitUntil(long deadline) throws InterruptedException {
+		while (true) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= spinThreshold) break;
+
+			LockSupport.parkNanos(remaining - spinThreshold);
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+
+		while (System.nanoTime() - deadline < 0) {
+			// spin for the last stretch
+		}
+	}
+
+}
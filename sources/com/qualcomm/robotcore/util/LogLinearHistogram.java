@@ -0,0 +1,114 @@
+package com.qualcomm.robotcore.util;
+
+/**
+ * Fixed memory histogram of non-negative long values, such as latencies in nanoseconds
+ * <p>
+ * Buckets are linear below 16, then each power of two is split into 16 linear sub-buckets, so
+ * any recorded value is reported to within about 6%. Recording never allocates. Intended for a
+ * single writer; readers on other threads may see a slightly inconsistent snapshot.
+ */
+public class LogLinearHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long total = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * Record a value; negative values are recorded as 0
+	 *
+	 * @param value value to record
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+
+		counts[bucketOf(value)] += 1;
+		count += 1;
+		total += value;
+		if (value < min) min = value;
+		if (value > max) max = value;
+	}
+
+	/**
+	 * Clear all recorded values
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) counts[i] = 0;
+		count = 0;
+		total = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return smallest value recorded, or 0 if nothing recorded
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @return largest value recorded, or 0 if nothing recorded
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return mean of the recorded values, or 0 if nothing recorded
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) total / count;
+	}
+
+	/**
+	 * Get the value at a given percentile
+	 * <p>
+	 * The result is the upper bound of the bucket holding that percentile, capped at getMax().
+	 *
+	 * @param percentile between 0 and 100
+	 * @return value at the percentile, or 0 if nothing recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) return 0;
+
+		long rank = (long) Math.ceil(Range.clip(percentile, 0, 100) / 100.0 * count);
+		if (rank < 1) rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(max, upperBoundOf(i));
+		}
+
+		return max;
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long mantissa = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long bound = ((SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+		return bound < 0 ? Long.MAX_VALUE : bound; // top buckets overflow
+	}
+
+}
@@ -0,0 +1,983 @@
+package com.qualcomm.robotcore.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Append only, columnar store of numeric samples, kept on the robot for analysis after a match
+ * <p>
+ * Samples of each key are buffered in memory, and written as a block of times followed by a
+ * block of values once BLOCK_SAMPLES have been collected. Blocks go to fixed size segment files
+ * that are memory mapped, so a write is a copy into memory with no system call. A writer thread
+ * keeps the next segment mapped and ready; when a segment is full, append() switches to it and
+ * leaves the full one to the writer thread to force to disk and close. The writer thread deletes
+ * the oldest segments to keep at most the maximum, counting the one ready, which bounds the disk
+ * used to segment size times segment count. If the next segment is not ready in time, the block
+ * that needs it is dropped rather than waiting for the disk.
+ * <p>
+ * Queries take the append lock only to copy the list of segments, how much of the current one is
+ * written, and the samples of their key still buffered in memory; the segments themselves are
+ * read without it, so a query never holds up append().
+ * <p>
+ * A segment starts with a header of magic, version, the wall clock time in milliseconds the store
+ * that wrote it was opened, and the lowest and highest sample time in it. Records follow: a key
+ * record (type, key id, name length, UTF-8 name) before the first block of a key in the segment,
+ * and block records (type, key id, sample count, lowest and highest time, the times, the values).
+ * A type of 0 marks the end. The type of a record is written last, so a reader never sees a
+ * partial record.
+ * <p>
+ * Sample times are stored as wall clock time in nanoseconds, so segments left by earlier runs
+ * can be queried alongside the current one.
+ */
+public class TimeSeriesStore {
+
+	public static final int MAGIC = 0x54535331; // "TSS1"
+	public static final short VERSION = 1;
+	public static final int SEGMENT_HEADER_LENGTH = 32;
+	public static final String SEGMENT_SUFFIX = ".tss";
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+	public static final int MIN_SEGMENT_SIZE = 64 << 10;
+
+	/** Samples of a key buffered in memory before they are written as a block */
+	public static final int BLOCK_SAMPLES = 256;
+
+	public static final int MAX_KEYS = 0xFFFF;
+	public static final int MAX_KEY_LENGTH = 0xFF; // in UTF-8 bytes
+
+	private static final byte RECORD_END = 0;
+	private static final byte RECORD_KEY = 1;
+	private static final byte RECORD_BLOCK = 2;
+
+	private static final int KEY_HEADER_LENGTH = 4;     // type, id, name length
+	private static final int BLOCK_HEADER_LENGTH = 21;  // type, id, count, lowest and highest time
+	private static final int MIN_TIME_OFFSET = 16;
+	private static final int MAX_TIME_OFFSET = 24;
+
+	private static final int PAGE_SIZE = 4096;
+
+	// how long the writer waits before trying again to make a spare segment it failed to make
+	private static final long SPARE_RETRY_INTERVAL = 1000; // in milliseconds
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Samples of a key returned by a query
+	 */
+	public static class Series {
+		public final String key;
+		public final long[] times;    // wall clock time, in nanoseconds
+		public final double[] values;
+
+		Series(String key, long[] times, double[] values) {
+			this.key = key;
+			this.times = times;
+			this.values = values;
+		}
+
+		public int size() {
+			return times.length;
+		}
+	}
+
+	private static class Column {
+		final int id;
+		final byte[] name;
+		final long[] times = new long[BLOCK_SAMPLES];
+		final double[] values = new double[BLOCK_SAMPLES];
+		int count = 0;
+		boolean defined = false; // key record written to the current segment
+
+		Column(int id, byte[] name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+
+	private static class Segment {
+		final File file;
+		volatile long minTime;
+		volatile long maxTime;
+
+		// while the segment is mapped for writing
+		RandomAccessFile access;
+		FileChannel channel;
+		MappedByteBuffer region;
+		int length; // of the complete records, guarded by the store
+
+		Segment(File file, long minTime, long maxTime) {
+			this.file = file;
+			this.minTime = minTime;
+			this.maxTime = maxTime;
+		}
+
+		boolean overlaps(long startTime, long endTime) {
+			return minTime <= endTime && maxTime >= startTime;
+		}
+	}
+
+	/*
+	 * What a query reads: the closed segments, the written part of the current one, and the
+	 * samples of its key still buffered in memory
+	 */
+	private static class Snapshot {
+		List<Segment> segments;
+		Segment current;     // null once the store is closed
+		ByteBuffer region;   // of the current segment, limited to its complete records
+		long[] times = new long[0];
+		double[] values = new double[0];
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+
+	private final long wallAnchor;  // in nanoseconds
+	private final long nanoAnchor;
+
+	private final Map<String, Column> columns = new HashMap<String, Column>();
+	private Segment current;
+
+	private boolean open = true;
+	private boolean waitingForSegment = false;
+	private long samples = 0;
+	private long dropped = 0;
+	private long rotations = 0;
+
+	// guarded by writerLock; never held while doing I/O
+	private final Object writerLock = new Object();
+	private final List<Segment> closed = new ArrayList<Segment>();
+	private final List<Segment> toClose = new ArrayList<Segment>();
+	private Segment spare = null;
+	private boolean spareFailed = false; // retried every SPARE_RETRY_INTERVAL
+	private boolean writerRunning = true;
+
+	private final Thread writerThread;
+	private int nextSegmentNumber = 0; // writer thread only, once started
+
+	/**
+	 * Constructor; uses the default segment size and count
+	 *
+	 * @param directory directory to keep the segment files in; created if missing
+	 * @throws IOException if the directory or the first segment cannot be created
+	 */
+	public TimeSeriesStore(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Constructor
+	 * <p>
+	 * Segments left in the directory by earlier runs are kept, and count against the maximum.
+	 *
+	 * @param directory directory to keep the segment files in; created if missing
+	 * @param segmentSize size of each segment file, in bytes
+	 * @param maxSegments most segment files to keep, at least 2: the one written and the next
+	 * @throws IOException if the directory or the first segment cannot be created
+	 */
+	public TimeSeriesStore(File directory, int segmentSize, int maxSegments) throws IOException {
+		if (segmentSize < MIN_SEGMENT_SIZE || maxSegments < 2) {
+			throw new IllegalArgumentException(String.format("Invalid segment size %d or count %d", segmentSize, maxSegments));
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create time series directory " + directory);
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.wallAnchor = System.currentTimeMillis() * 1000000L;
+		this.nanoAnchor = System.nanoTime();
+
+		loadSegments();
+		makeRoom(1);
+		current = createSegment();
+
+		writerThread = new Thread(new WriterRunnable(), "Time series writer");
+		writerThread.start();
+	}
+
+	/**
+	 * Convert a System.nanoTime() timestamp to the wall clock time samples are stored at
+	 *
+	 * @param nanoTime System.nanoTime()
+	 * @return wall clock time, in nanoseconds
+	 */
+	public long toStoreTime(long nanoTime) {
+		return wallAnchor + (nanoTime - nanoAnchor);
+	}
+
+	/**
+	 * Append a sample
+	 *
+	 * @param key key the sample belongs to
+	 * @param nanoTime System.nanoTime() the sample was taken at
+	 * @param value sample value
+	 */
+	public synchronized void append(String key, long nanoTime, double value) {
+		if (!open) return;
+
+		Column column = columns.get(key);
+		if (column == null) {
+			column = addColumn(key);
+			if (column == null) {
+				dropped += 1;
+				return;
+			}
+		}
+
+		column.times[column.count] = toStoreTime(nanoTime);
+		column.values[column.count] = value;
+		column.count += 1;
+		samples += 1;
+
+		if (column.count == BLOCK_SAMPLES) writeBlock(column);
+	}
+
+	/**
+	 * Write the samples still buffered in memory to the current segment, and force it to disk on
+	 * the calling thread
+	 */
+	public synchronized void flush() {
+		if (!open) return;
+
+		for (Column column : columns.values()) {
+			if (column.count > 0) writeBlock(column);
+		}
+		current.region.force();
+	}
+
+	/**
+	 * Flush, close every segment, trimming the current one to its used length, and stop the
+	 * writer thread
+	 */
+	public synchronized void close() {
+		if (!open) return;
+		flush();
+		open = false;
+
+		// the writer thread closes the segments it was handed before it exits
+		synchronized (writerLock) {
+			writerRunning = false;
+			writerLock.notifyAll();
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		closeSegment(current, true);
+		Segment unused;
+		synchronized (writerLock) {
+			closed.add(current);
+			unused = spare;
+			spare = null;
+		}
+		current = null;
+
+		if (unused != null) {
+			closeSegment(unused, false);
+			if (!unused.file.delete()) RobotLog.w("Unable to delete time series segment " + unused.file);
+		}
+	}
+
+	/**
+	 * Get the samples of a key in a time range
+	 * <p>
+	 * With a downsampling factor above 1, each run of that many consecutive samples is replaced by
+	 * one at their mean time and mean value.
+	 *
+	 * @param key key to query
+	 * @param startTime earliest wall clock time to include, in nanoseconds
+	 * @param endTime latest wall clock time to include, in nanoseconds
+	 * @param downsample downsampling factor; 1 for every sample
+	 * @return samples in time order; empty if there are none
+	 */
+	public Series query(String key, long startTime, long endTime, int downsample) {
+		if (downsample < 1) throw new IllegalArgumentException("Invalid downsampling factor " + downsample);
+
+		Samples samples = samples(key, startTime, endTime);
+		int count = samples.count();
+		long[] times = new long[(count + downsample - 1) / downsample];
+		double[] values = new double[times.length];
+
+		// the mean time and value of each run of samples, in one pass
+		Downsampler.Cursor cursor = samples.open();
+		for (int out = 0; out < times.length; out++) {
+			int run = Math.min(downsample, count - out * downsample);
+			cursor.next();
+			long base = cursor.time();
+			long offsets = 0;
+			double sum = cursor.value();
+			for (int i = 1; i < run; i++) {
+				cursor.next();
+				offsets += cursor.time() - base;
+				sum += cursor.value();
+			}
+			times[out] = base + offsets / run;
+			values[out] = sum / run;
+		}
+
+		return new Series(key, times, values);
+	}
+
+	/**
+	 * Get the samples of a key in a time range, reduced to at most a number of points with
+	 * largest triangle three buckets downsampling
+	 *
+	 * @see Downsampler#lttb
+	 * @param key key to query
+	 * @param startTime earliest wall clock time to include, in nanoseconds
+	 * @param endTime latest wall clock time to include, in nanoseconds
+	 * @param points most points to return; at least 3
+	 * @return points in time order; empty if there are no samples
+	 */
+	public Series queryLttb(String key, long startTime, long endTime, int points) {
+		if (points < 3) throw new IllegalArgumentException("LTTB needs at least 3 points, not " + points);
+
+		Samples samples = samples(key, startTime, endTime);
+		int count = samples.count();
+		long[] times = new long[Math.min(count, points)];
+		double[] values = new double[times.length];
+		Downsampler.lttb(samples, count, points, times, values);
+		return new Series(key, times, values);
+	}
+
+	/**
+	 * Get the samples of a key in a time range, reduced to the lowest and highest sample of each
+	 * of a number of buckets
+	 *
+	 * @see Downsampler#minMax
+	 * @param key key to query
+	 * @param startTime earliest wall clock time to include, in nanoseconds
+	 * @param endTime latest wall clock time to include, in nanoseconds
+	 * @param buckets number of buckets; at most twice as many points are returned
+	 * @return points in time order; empty if there are no samples
+	 */
+	public Series queryEnvelope(String key, long startTime, long endTime, int buckets) {
+		if (buckets < 1) throw new IllegalArgumentException("Invalid bucket count " + buckets);
+
+		Samples samples = samples(key, startTime, endTime);
+		int count = samples.count();
+		long[] times = new long[Math.min(count, 2 * buckets)];
+		double[] values = new double[times.length];
+		int size = Downsampler.minMax(samples.open(), count, buckets, times, values);
+		if (size < times.length) {
+			times = Arrays.copyOf(times, size);
+			values = Arrays.copyOf(values, size);
+		}
+		return new Series(key, times, values);
+	}
+
+	/*
+	 * The samples of a key in a time range, in the segments mapped for reading and the snapshot of
+	 * the samples still buffered in memory
+	 */
+	private Samples samples(String key, long startTime, long endTime) {
+		Snapshot snapshot = snapshot(key);
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+		for (Segment segment : snapshot.segments) {
+			if (!segment.overlaps(startTime, endTime)) continue;
+			ByteBuffer buffer = mapReadOnly(segment.file);
+			if (buffer != null) buffers.add(buffer);
+		}
+		if (snapshot.current != null && snapshot.current.overlaps(startTime, endTime)) {
+			buffers.add(snapshot.region);
+		}
+
+		return new Samples(buffers.toArray(new ByteBuffer[buffers.size()]), key.getBytes(CHARSET),
+				startTime, endTime, snapshot.times, snapshot.values);
+	}
+
+	/*
+	 * Copy what a query of a key reads; the only part of a query that takes the append lock
+	 */
+	private Snapshot snapshot(String key) {
+		Snapshot snapshot = new Snapshot();
+
+		synchronized (this) {
+			synchronized (writerLock) {
+				snapshot.segments = new ArrayList<Segment>(closed);
+				snapshot.segments.addAll(toClose);
+			}
+			if (!open) return snapshot;
+
+			snapshot.current = current;
+			ByteBuffer region = current.region.duplicate();
+			region.limit(current.length);
+			snapshot.region = region;
+
+			Column column = key == null ? null : columns.get(key);
+			if (column != null) {
+				snapshot.times = Arrays.copyOf(column.times, column.count);
+				snapshot.values = Arrays.copyOf(column.values, column.count);
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Get every key stored, in this run or in segments left by earlier runs
+	 *
+	 * @return keys in sorted order
+	 */
+	public Set<String> getKeys() {
+		Set<String> keys;
+		synchronized (this) {
+			keys = new TreeSet<String>(columns.keySet());
+		}
+		for (Segment segment : snapshot(null).segments) {
+			ByteBuffer buffer = mapReadOnly(segment.file);
+			if (buffer != null) scanKeys(buffer, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Number of samples appended
+	 *
+	 * @return sample count
+	 */
+	public synchronized long getSampleCount() {
+		return samples;
+	}
+
+	/**
+	 * Number of samples that could not be stored
+	 *
+	 * @return dropped count
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Number of times a full segment was replaced by a new one
+	 *
+	 * @return rotation count
+	 */
+	public synchronized long getRotationCount() {
+		return rotations;
+	}
+
+	/**
+	 * Number of segment files on disk, including the one being written
+	 *
+	 * @return segment count
+	 */
+	public synchronized int getSegmentCount() {
+		synchronized (writerLock) {
+			return closed.size() + toClose.size() + (open ? 1 : 0) + (spare != null ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Number of bytes the segment files take on disk
+	 *
+	 * @return disk usage
+	 */
+	public synchronized long getDiskUsage() {
+		synchronized (writerLock) {
+			long usage = 0;
+			for (Segment segment : closed) {
+				usage += segment.file.length();
+			}
+			usage += (long) segmentSize * (toClose.size() + (open ? 1 : 0) + (spare != null ? 1 : 0));
+			return usage;
+		}
+	}
+
+	private Column addColumn(String key) {
+		if (columns.size() >= MAX_KEYS) return null;
+
+		byte[] name = key.getBytes(CHARSET);
+		if (name.length > MAX_KEY_LENGTH) return null;
+
+		Column column = new Column(columns.size(), name);
+		columns.put(key, column);
+		return column;
+	}
+
+	private void writeBlock(Column column) {
+		int keySize = column.defined ? 0 : KEY_HEADER_LENGTH + column.name.length;
+		int blockSize = BLOCK_HEADER_LENGTH + column.count * 16;
+
+		if (current.region.remaining() < keySize + blockSize + 1) { // always leave room for the end marker
+			if (!rotate()) {
+				dropped += column.count;
+				column.count = 0;
+				return;
+			}
+			keySize = KEY_HEADER_LENGTH + column.name.length;
+		}
+		MappedByteBuffer region = current.region;
+
+		if (!column.defined) {
+			int start = region.position();
+			region.position(start + 1);
+			region.putShort((short) column.id);
+			region.put((byte) column.name.length);
+			region.put(column.name);
+			region.put(start, RECORD_KEY);
+			column.defined = true;
+		}
+
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		for (int i = 0; i < column.count; i++) {
+			minTime = Math.min(minTime, column.times[i]);
+			maxTime = Math.max(maxTime, column.times[i]);
+		}
+
+		int start = region.position();
+		region.position(start + 1);
+		region.putShort((short) column.id);
+		region.putShort((short) column.count);
+		region.putLong(minTime);
+		region.putLong(maxTime);
+		for (int i = 0; i < column.count; i++) {
+			region.putLong(column.times[i]);
+		}
+		for (int i = 0; i < column.count; i++) {
+			region.putDouble(column.values[i]);
+		}
+		region.put(start, RECORD_BLOCK);
+		column.count = 0;
+
+		if (minTime < current.minTime) {
+			current.minTime = minTime;
+			region.putLong(MIN_TIME_OFFSET, minTime);
+		}
+		if (maxTime > current.maxTime) {
+			current.maxTime = maxTime;
+			region.putLong(MAX_TIME_OFFSET, maxTime);
+		}
+		current.length = region.position();
+	}
+
+	/*
+	 * Switch to the segment the writer thread has ready, and hand it the full one to close
+	 */
+	private boolean rotate() {
+		Segment next;
+		synchronized (writerLock) {
+			next = spare;
+			if (next != null) {
+				toClose.add(current);
+				current = next;
+				spare = null;
+				writerLock.notifyAll();
+			}
+		}
+		if (next == null) {
+			// the writer thread is behind, or failed to create the segment
+			if (!waitingForSegment) {
+				waitingForSegment = true;
+				RobotLog.w("Next time series segment not ready, dropping samples");
+			}
+			return false;
+		}
+		waitingForSegment = false;
+		rotations += 1;
+
+		for (Column column : columns.values()) {
+			column.defined = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes full segments and keeps the next segment ready, so append() does no I/O of its own
+	 */
+	private class WriterRunnable implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				Segment full;
+				boolean needSpare;
+				synchronized (writerLock) {
+					try {
+						long retry = System.currentTimeMillis() + SPARE_RETRY_INTERVAL;
+						while (writerRunning && toClose.isEmpty() && spare == null && spareFailed) {
+							long remaining = retry - System.currentTimeMillis();
+							if (remaining <= 0) break;
+							writerLock.wait(remaining);
+						}
+						while (writerRunning && toClose.isEmpty() && spare != null) {
+							writerLock.wait();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (!writerRunning && toClose.isEmpty()) return;
+
+					full = toClose.isEmpty() ? null : toClose.get(0);
+					needSpare = writerRunning && spare == null;
+				}
+
+				if (full != null) {
+					closeSegment(full, false);
+					synchronized (writerLock) {
+						toClose.remove(full);
+						closed.add(full);
+					}
+				}
+
+				if (needSpare) {
+					makeRoom(2); // the current segment and the new one
+					try {
+						Segment segment = createSegment();
+						boolean recovered;
+						synchronized (writerLock) {
+							spare = segment;
+							recovered = spareFailed;
+							spareFailed = false;
+						}
+						if (recovered) RobotLog.i("Started a new time series segment after an earlier failure");
+					} catch (IOException e) {
+						boolean first;
+						synchronized (writerLock) {
+							first = !spareFailed;
+							spareFailed = true;
+						}
+						// log once per run of failures; the writer keeps retrying
+						if (first) RobotLog.w("Unable to start a new time series segment, will retry: " + e.toString());
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Delete the oldest closed segments until there is room for a number of open ones
+	 */
+	private void makeRoom(int open) {
+		while (true) {
+			Segment oldest;
+			synchronized (writerLock) {
+				if (closed.size() + toClose.size() + open <= maxSegments || closed.isEmpty()) return;
+				oldest = closed.remove(0);
+			}
+			if (!oldest.file.delete()) {
+				RobotLog.w("Unable to delete time series segment " + oldest.file);
+			}
+		}
+	}
+
+	private Segment createSegment() throws IOException {
+		File segmentFile = new File(directory, String.format("%08d%s", nextSegmentNumber, SEGMENT_SUFFIX));
+		nextSegmentNumber += 1;
+
+		Segment segment = new Segment(segmentFile, Long.MAX_VALUE, Long.MIN_VALUE);
+		segment.access = new RandomAccessFile(segmentFile, "rw");
+		try {
+			segment.access.setLength(0);
+			segment.channel = segment.access.getChannel();
+			segment.region = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} catch (IOException e) {
+			segment.access.close();
+			if (!segmentFile.delete()) RobotLog.w("Unable to delete time series segment " + segmentFile);
+			throw e;
+		}
+
+		// touch every page here, so append() does not take the page faults
+		MappedByteBuffer region = segment.region;
+		for (int i = 0; i < segmentSize; i += PAGE_SIZE) {
+			region.put(i, (byte) 0);
+		}
+
+		region.putInt(MAGIC);
+		region.putShort(VERSION);
+		region.putShort((short) 0); // reserved
+		region.putLong(wallAnchor / 1000000L);
+		region.putLong(segment.minTime);
+		region.putLong(segment.maxTime);
+		segment.length = region.position();
+		return segment;
+	}
+
+	private static void closeSegment(Segment segment, boolean trim) {
+		try {
+			segment.region.force();
+			if (trim) segment.channel.truncate(segment.region.position() + 1); // end marker is the zeroed tail
+			segment.access.close();
+		} catch (IOException e) {
+			RobotLog.w("Unable to close time series segment: " + e.toString());
+		}
+
+		// queries map closed segments afresh
+		segment.access = null;
+		segment.channel = null;
+		segment.region = null;
+	}
+
+	private void loadSegments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null) return;
+		Arrays.sort(files);
+
+		for (File segmentFile : files) {
+			String name = segmentFile.getName();
+			try {
+				int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			ByteBuffer buffer = mapReadOnly(segmentFile);
+			if (buffer == null || buffer.remaining() < SEGMENT_HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+				RobotLog.w("Ignoring invalid time series segment " + segmentFile);
+				continue;
+			}
+			closed.add(new Segment(segmentFile, buffer.getLong(MIN_TIME_OFFSET), buffer.getLong(MAX_TIME_OFFSET)));
+		}
+	}
+
+	private static ByteBuffer mapReadOnly(File segmentFile) {
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(segmentFile, "r");
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		} catch (IOException e) {
+			RobotLog.w("Unable to read time series segment " + segmentFile + ": " + e.toString());
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// the mapping stays valid
+				}
+			}
+		}
+	}
+
+	/*
+	 * Samples of a key in a time range, read in place from segment buffers, then from the samples
+	 * buffered in memory; as many cursors as needed can read them at once
+	 */
+	private static class Samples implements Downsampler.Source {
+		final ByteBuffer[] buffers;
+		final byte[] name;
+		final long startTime;
+		final long endTime;
+		final long[] times;
+		final double[] values;
+
+		Samples(ByteBuffer[] buffers, byte[] name, long startTime, long endTime, long[] times, double[] values) {
+			this.buffers = buffers;
+			this.name = name;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.times = times;
+			this.values = values;
+		}
+
+		@Override
+		public SampleCursor open() {
+			return new SampleCursor(this);
+		}
+
+		/*
+		 * Count the samples; a block entirely in the range is counted from its header alone
+		 */
+		int count() {
+			return open().count();
+		}
+	}
+
+	private static class SampleCursor implements Downsampler.Cursor {
+		private final Samples samples;
+
+		private int buffer = 0;
+		private int position = SEGMENT_HEADER_LENGTH; // of the next record
+		private int id = -1;                          // of the key in this buffer
+
+		// block being read
+		private int times;
+		private int values;
+		private int count = 0;
+		private int index = 0;
+
+		private int memoryIndex = -1;
+		private long time;
+		private double value;
+
+		SampleCursor(Samples samples) {
+			this.samples = samples;
+		}
+
+		@Override
+		public boolean next() {
+			while (true) {
+				if (buffer < samples.buffers.length) {
+					ByteBuffer in = samples.buffers[buffer];
+					while (index < count) {
+						int i = index++;
+						long t = in.getLong(times + i * 8);
+						if (t >= samples.startTime && t <= samples.endTime) {
+							time = t;
+							value = in.getDouble(values + i * 8);
+							return true;
+						}
+					}
+					nextBlock();
+				} else {
+					while (memoryIndex + 1 < samples.times.length) {
+						memoryIndex += 1;
+						long t = samples.times[memoryIndex];
+						if (t >= samples.startTime && t <= samples.endTime) {
+							time = t;
+							value = samples.values[memoryIndex];
+							return true;
+						}
+					}
+					return false;
+				}
+			}
+		}
+
+		@Override
+		public long time() {
+			return time;
+		}
+
+		@Override
+		public double value() {
+			return value;
+		}
+
+		int count() {
+			int total = 0;
+			while (buffer < samples.buffers.length) {
+				ByteBuffer in = samples.buffers[buffer];
+				int blockStart = times - BLOCK_HEADER_LENGTH;
+				if (count > 0 && in.getLong(blockStart + 5) >= samples.startTime && in.getLong(blockStart + 13) <= samples.endTime) {
+					total += count;
+				} else {
+					for (int i = 0; i < count; i++) {
+						long t = in.getLong(times + i * 8);
+						if (t >= samples.startTime && t <= samples.endTime) total += 1;
+					}
+				}
+				count = 0;
+				nextBlock();
+			}
+			for (long t : samples.times) {
+				if (t >= samples.startTime && t <= samples.endTime) total += 1;
+			}
+			return total;
+		}
+
+		/*
+		 * Move to the next block of the key that overlaps the range, in this buffer or the next
+		 */
+		private void nextBlock() {
+			count = 0;
+			index = 0;
+
+			ByteBuffer in = samples.buffers[buffer];
+			int limit = in.limit();
+
+			while (position < limit) {
+				byte type = in.get(position);
+
+				if (type == RECORD_KEY) {
+					if (position + KEY_HEADER_LENGTH > limit) break;
+					int length = in.get(position + 3) & 0xFF;
+					if (position + KEY_HEADER_LENGTH + length > limit) break;
+					if (id < 0 && nameEquals(in, position + KEY_HEADER_LENGTH, samples.name, length)) {
+						id = in.getShort(position + 1) & 0xFFFF;
+					}
+					position += KEY_HEADER_LENGTH + length;
+
+				} else if (type == RECORD_BLOCK) {
+					if (position + BLOCK_HEADER_LENGTH > limit) break;
+					int blockCount = in.getShort(position + 3) & 0xFFFF;
+					int blockTimes = position + BLOCK_HEADER_LENGTH;
+					int blockValues = blockTimes + blockCount * 8;
+					if (blockValues + blockCount * 8 > limit) break;
+					position = blockValues + blockCount * 8;
+
+					if (id >= 0 && (in.getShort(blockTimes - BLOCK_HEADER_LENGTH + 1) & 0xFFFF) == id
+							&& in.getLong(blockTimes - BLOCK_HEADER_LENGTH + 5) <= samples.endTime
+							&& in.getLong(blockTimes - BLOCK_HEADER_LENGTH + 13) >= samples.startTime) {
+						times = blockTimes;
+						values = blockValues;
+						count = blockCount;
+						return;
+					}
+
+				} else {
+					break; // RECORD_END, or an unknown record
+				}
+			}
+
+			// the end of this buffer
+			buffer += 1;
+			position = SEGMENT_HEADER_LENGTH;
+			id = -1;
+		}
+	}
+
+	private static void scanKeys(ByteBuffer buffer, Set<String> keys) {
+		int position = SEGMENT_HEADER_LENGTH;
+		int limit = buffer.limit();
+
+		while (position < limit) {
+			byte type = buffer.get(position);
+
+			if (type == RECORD_KEY) {
+				if (position + KEY_HEADER_LENGTH > limit) return;
+				int length = buffer.get(position + 3) & 0xFF;
+				if (position + KEY_HEADER_LENGTH + length > limit) return;
+				byte[] name = new byte[length];
+				for (int i = 0; i < length; i++) {
+					name[i] = buffer.get(position + KEY_HEADER_LENGTH + i);
+				}
+				keys.add(new String(name, CHARSET));
+				position += KEY_HEADER_LENGTH + length;
+
+			} else if (type == RECORD_BLOCK) {
+				if (position + BLOCK_HEADER_LENGTH > limit) return;
+				position += BLOCK_HEADER_LENGTH + (buffer.getShort(position + 3) & 0xFFFF) * 16;
+
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static boolean nameEquals(ByteBuffer buffer, int offset, byte[] name, int length) {
+		if (length != name.length) return false;
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(offset + i) != name[i]) return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.qualcomm.robotcore.util;
+
+/**
+ * Token bucket rate limiter
+ * <p>
+ * Tokens accrue at a fixed rate up to a burst capacity. Consuming is allowed whenever the bucket
+ * is not empty, and may leave it in debt; so a single item larger than the capacity is still
+ * let through, and the items after it wait until the debt is paid off. Not thread safe.
+ */
+public class TokenBucket {
+
+	public static final double UNLIMITED = Double.POSITIVE_INFINITY;
+
+	private double rate;
+	private double capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Constructor; the bucket starts full
+	 *
+	 * @param rate tokens per second, or UNLIMITED
+	 * @param capacity largest burst, in tokens
+	 */
+	public TokenBucket(double rate, double capacity) {
+		this.lastRefill = System.nanoTime();
+		setRate(rate, capacity);
+		this.tokens = capacity;
+	}
+
+	/**
+	 * Change the rate and capacity; tokens already in the bucket are kept, up to the new capacity
+	 *
+	 * @param rate tokens per second, or UNLIMITED
+	 * @param capacity largest burst, in tokens
+	 */
+	public void setRate(double rate, double capacity) {
+		if (rate <= 0) throw new IllegalArgumentException("Rate must be positive, was " + rate);
+
+		refill(System.nanoTime());
+		this.rate = rate;
+		this.capacity = capacity;
+		if (tokens > capacity) tokens = capacity;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public double getCapacity() {
+		return capacity;
+	}
+
+	public boolean isUnlimited() {
+		return rate == UNLIMITED;
+	}
+
+	/**
+	 * Tokens in the bucket; negative while in debt
+	 *
+	 * @param now System.nanoTime()
+	 * @return tokens
+	 */
+	public double getTokens(long now) {
+		refill(now);
+		return tokens;
+	}
+
+	/**
+	 * Time until consume() is allowed
+	 *
+	 * @param now System.nanoTime()
+	 * @return delay in nanoseconds; 0 if allowed now
+	 */
+	public long getDelay(long now) {
+		if (isUnlimited()) return 0;
+
+		refill(now);
+		if (tokens > 0) return 0;
+		return (long) Math.ceil((-tokens + 1) / rate * 1e9);
+	}
+
+	/**
+	 * Take tokens from the bucket if it is not empty
+	 *
+	 * @param amount tokens to take
+	 * @param now System.nanoTime()
+	 * @return true if taken; false if the bucket is empty
+	 */
+	public boolean tryConsume(double amount, long now) {
+		if (getDelay(now) > 0) return false;
+		if (!isUnlimited()) tokens -= amount;
+		return true;
+	}
+
+	private void refill(long now) {
+		long elapsed = now - lastRefill;
+		lastRefill = now;
+		if (isUnlimited() || elapsed <= 0) return;
+
+		tokens = Math.min(capacity, tokens + rate * elapsed / 1e9);
+	}
+
+}